@@ -190,7 +190,8 @@ public class ConfirmIdentityDialog extends AlertDialog {
             ApplicationContext.getInstance(getContext())
                               .getJobManager()
                               .add(new PushDecryptJob(getContext(), pushId, messageRecord.getId(),
-                                                      messageRecord.getIndividualRecipient().getNumber()));
+                                                      messageRecord.getIndividualRecipient().getNumber(),
+                                                      messageRecord.getRecipientDeviceId()));
           } catch (IOException e) {
             throw new AssertionError(e);
           }
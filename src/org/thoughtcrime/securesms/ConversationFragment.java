@@ -142,9 +142,8 @@ public class ConversationFragment extends Fragment
     loadMoreView.setOnClickListener(new OnClickListener() {
       @Override
       public void onClick(View v) {
-        Bundle args = new Bundle();
-        args.putLong("limit", 0);
-        getLoaderManager().restartLoader(0, args, ConversationFragment.this);
+        Loader<Cursor> loader = getLoaderManager().getLoader(0);
+        if (loader != null) ((ConversationLoader)loader).loadOlder();
       }
     });
     return view;
@@ -416,7 +415,7 @@ public class ConversationFragment extends Fragment
 
   @Override
   public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-    return new ConversationLoader(getActivity(), threadId, args.getLong("limit", PARTIAL_CONVERSATION_LIMIT), lastSeen);
+    return new ConversationLoader(getActivity(), threadId, PARTIAL_CONVERSATION_LIMIT, lastSeen);
   }
 
 
@@ -426,7 +425,7 @@ public class ConversationFragment extends Fragment
     ConversationLoader loader = (ConversationLoader)cursorLoader;
 
     if (list.getAdapter() != null) {
-      if (cursor.getCount() >= PARTIAL_CONVERSATION_LIMIT && loader.hasLimit()) {
+      if (loader.hasOlder()) {
         getListAdapter().setFooterView(loadMoreView);
       } else {
         getListAdapter().setFooterView(null);
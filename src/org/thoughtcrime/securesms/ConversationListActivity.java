@@ -228,7 +228,7 @@ public class ConversationListActivity extends PassphraseRequiredActionBarActivit
       public void onChange(boolean selfChange) {
         super.onChange(selfChange);
         Log.w(TAG, "Detected android contact data changed, refreshing cache");
-        RecipientFactory.clearCache(ConversationListActivity.this);
+        RecipientFactory.clearCacheForChangedContacts(ConversationListActivity.this);
         ConversationListActivity.this.runOnUiThread(new Runnable() {
           @Override
           public void run() {
@@ -39,10 +39,12 @@ import org.thoughtcrime.securesms.database.MmsDatabase.Reader;
 import org.thoughtcrime.securesms.database.PushDatabase;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.jobs.AttachmentDownloadJob;
+import org.thoughtcrime.securesms.jobs.AttachmentFormatMigrationJob;
 import org.thoughtcrime.securesms.jobs.CreateSignedPreKeyJob;
 import org.thoughtcrime.securesms.jobs.DirectoryRefreshJob;
 import org.thoughtcrime.securesms.jobs.PushDecryptJob;
 import org.thoughtcrime.securesms.jobs.RefreshAttributesJob;
+import org.thoughtcrime.securesms.jobs.SearchIndexBackfillJob;
 import org.thoughtcrime.securesms.notifications.MessageNotifier;
 import org.thoughtcrime.securesms.util.Util;
 import org.thoughtcrime.securesms.util.VersionTracker;
@@ -68,6 +70,8 @@ public class DatabaseUpgradeActivity extends BaseActivity {
   public static final int CONTACTS_ACCOUNT_VERSION             = 136;
   public static final int MEDIA_DOWNLOAD_CONTROLS_VERSION      = 151;
   public static final int REDPHONE_SUPPORT_VERSION             = 157;
+  public static final int SEARCH_INDEX_VERSION                 = 268;
+  public static final int CHUNKED_ATTACHMENTS_VERSION          = 268;
 //  public static final int FINGERPRINTS_NON_BLOCKING_VESRION    = 212;
 
   private static final SortedSet<Integer> UPGRADE_VERSIONS = new TreeSet<Integer>() {{
@@ -82,6 +86,8 @@ public class DatabaseUpgradeActivity extends BaseActivity {
     add(MIGRATE_SESSION_PLAINTEXT);
     add(MEDIA_DOWNLOAD_CONTROLS_VERSION);
     add(REDPHONE_SUPPORT_VERSION);
+    add(SEARCH_INDEX_VERSION);
+    add(CHUNKED_ATTACHMENTS_VERSION);
 //    add(FINGERPRINTS_NON_BLOCKING_VESRION);
   }};
 
@@ -233,6 +239,18 @@ public class DatabaseUpgradeActivity extends BaseActivity {
                           .add(new DirectoryRefreshJob(getApplicationContext()));
       }
 
+      if (params[0] < SEARCH_INDEX_VERSION) {
+        ApplicationContext.getInstance(getApplicationContext())
+                          .getJobManager()
+                          .add(new SearchIndexBackfillJob(getApplicationContext()));
+      }
+
+      if (params[0] < CHUNKED_ATTACHMENTS_VERSION) {
+        ApplicationContext.getInstance(getApplicationContext())
+                          .getJobManager()
+                          .add(new AttachmentFormatMigrationJob(getApplicationContext()));
+      }
+
 //      if (params[0] < FINGERPRINTS_NON_BLOCKING_VESRION) {
 //        TextSecurePreferences.setBlockingIdentityUpdates(getApplicationContext(), true);
 //      }
@@ -275,7 +293,8 @@ public class DatabaseUpgradeActivity extends BaseActivity {
                             .getJobManager()
                             .add(new PushDecryptJob(getApplicationContext(),
                                                     pushReader.getLong(pushReader.getColumnIndexOrThrow(PushDatabase.ID)),
-                                                    pushReader.getString(pushReader.getColumnIndexOrThrow(PushDatabase.SOURCE))));
+                                                    pushReader.getString(pushReader.getColumnIndexOrThrow(PushDatabase.SOURCE)),
+                                                    pushReader.getInt(pushReader.getColumnIndexOrThrow(PushDatabase.DEVICE_ID))));
         }
       } finally {
         if (pushReader != null)
@@ -127,7 +127,13 @@ public class ImportExportFragment extends Fragment {
     builder.setPositiveButton(getActivity().getString(R.string.ExportFragment_export), new Dialog.OnClickListener() {
       @Override
       public void onClick(DialogInterface dialog, int which) {
-        new ExportPlaintextTask().execute();
+        new ExportPlaintextTask(false).execute();
+      }
+    });
+    builder.setNeutralButton(getActivity().getString(R.string.ExportFragment_export_compressed), new Dialog.OnClickListener() {
+      @Override
+      public void onClick(DialogInterface dialog, int which) {
+        new ExportPlaintextTask(true).execute();
       }
     });
     builder.setNegativeButton(getActivity().getString(R.string.ExportFragment_cancel), null);
@@ -187,21 +193,44 @@ public class ImportExportFragment extends Fragment {
     }
   }
 
-  private class ExportPlaintextTask extends AsyncTask<Void, Void, Integer> {
+  private class ExportPlaintextTask extends AsyncTask<Void, Integer, Integer> {
+    private final boolean compress;
+
     private ProgressDialog dialog;
 
+    private ExportPlaintextTask(boolean compress) {
+      this.compress = compress;
+    }
+
     @Override
     protected void onPreExecute() {
-      dialog = ProgressDialog.show(getActivity(),
-                                   getActivity().getString(R.string.ExportFragment_exporting),
-                                   getActivity().getString(R.string.ExportFragment_exporting_plaintext_to_storage),
-                                   true, false);
+      dialog = new ProgressDialog(getActivity());
+      dialog.setTitle(getActivity().getString(R.string.ExportFragment_exporting));
+      dialog.setMessage(getActivity().getString(R.string.ExportFragment_exporting_plaintext_to_storage));
+      dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+      dialog.setIndeterminate(false);
+      dialog.setCancelable(false);
+      dialog.show();
+    }
+
+    @Override
+    protected void onProgressUpdate(Integer... progress) {
+      if (dialog != null) {
+        dialog.setMax(progress[1]);
+        dialog.setProgress(progress[0]);
+      }
     }
 
     @Override
     protected Integer doInBackground(Void... params) {
       try {
-        PlaintextBackupExporter.exportPlaintextToSd(getActivity(), masterSecret);
+        PlaintextBackupExporter.exportPlaintextToSd(getActivity(), masterSecret, compress,
+                                                    new PlaintextBackupExporter.ProgressListener() {
+          @Override
+          public void onProgress(int exported, int total) {
+            publishProgress(exported, total);
+          }
+        });
         return SUCCESS;
       } catch (NoExternalStorageException e) {
         Log.w("ExportFragment", e);
@@ -4,6 +4,7 @@ package org.thoughtcrime.securesms.attachments;
 import android.content.Context;
 import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import org.spongycastle.util.encoders.Hex;
@@ -28,6 +29,12 @@ import java.security.MessageDigest;
 import java.util.Map;
 import java.util.Properties;
 import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author      Stefan "frostymarvelous" Froelich <stefan d0t froelich At whisppa DoT com>
@@ -36,12 +43,23 @@ public class AttachmentServer implements Runnable {
 
   private static final String TAG = AttachmentServer.class.getSimpleName();
 
-  private final Context      context;
-  private final MasterSecret masterSecret;
-  private final Attachment   attachment;
-  private final ServerSocket socket;
-  private final int          port;
-  private final String       auth;
+  /**
+   * A player holds a connection open for as long as it streams, and opens another to seek
+   * before it has closed the first, so each connection gets its own thread rather than
+   * waiting in a queue behind a stream that might not end.
+   */
+  private static final int MAX_CONNECTIONS = 8;
+
+  private final Context         context;
+  private final MasterSecret    masterSecret;
+  private final Attachment      attachment;
+  private final ServerSocket    socket;
+  private final int             port;
+  private final String          auth;
+  private final ExecutorService connectionExecutor;
+
+  private final AtomicLong firstByteRequests    = new AtomicLong();
+  private final AtomicLong firstByteTotalMillis = new AtomicLong();
 
   private volatile boolean isRunning;
 
@@ -56,6 +74,8 @@ public class AttachmentServer implements Runnable {
       this.port         = socket.getLocalPort();
       this.auth         = new String(Hex.encode(Util.getSecretBytes(16)));
 
+      this.connectionExecutor = newConnectionExecutor();
+
       this.socket.setSoTimeout(5000);
     } catch (UnknownHostException e) {
       throw new AssertionError(e);
@@ -68,56 +88,161 @@ public class AttachmentServer implements Runnable {
 
   public void start() {
     isRunning = true;
-    new Thread(this).start();
+    new Thread(this, TAG + ":" + port).start();
   }
 
   public void stop() {
     isRunning = false;
+
+    try {
+      socket.close();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+
+    connectionExecutor.shutdown();
+
+    long requests = firstByteRequests.get();
+
+    if (requests > 0) {
+      Log.i(TAG, "Served " + requests + " requests, average time to first byte: " +
+                 (firstByteTotalMillis.get() / requests) + "ms");
+    }
   }
 
   @Override
   public void run() {
     while (isRunning) {
-      Socket client = null;
-
       try {
-        client = socket.accept();
+        final Socket client     = socket.accept();
+        final long   acceptTime = System.currentTimeMillis();
 
         if (client != null) {
-          StreamToMediaPlayerTask task = new StreamToMediaPlayerTask(client, "/" + auth);
-
-          if (task.processRequest()) {
-            task.execute();
+          try {
+            connectionExecutor.execute(new Runnable() {
+              @Override
+              public void run() {
+                serve(client, acceptTime);
+              }
+            });
+          } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Too many connections, dropping request");
+            close(client);
           }
         }
-
       } catch (SocketTimeoutException e) {
         Log.w(TAG, e);
       } catch (IOException e) {
-        Log.e(TAG, "Error connecting to client", e);
-      } finally {
-        try {if (client != null) client.close();} catch (IOException e) {}
+        if (isRunning) Log.e(TAG, "Error connecting to client", e);
       }
     }
 
     Log.d(TAG, "Proxy interrupted. Shutting down.");
   }
 
+  private void serve(@NonNull Socket client, long acceptTime) {
+    try {
+      StreamToMediaPlayerTask task = new StreamToMediaPlayerTask(client, "/" + auth, acceptTime);
+
+      if (task.processRequest()) {
+        task.execute();
+      }
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    } finally {
+      close(client);
+    }
+  }
+
+  private void recordTimeToFirstByte(long startTime, long offset) {
+    long elapsed = System.currentTimeMillis() - startTime;
+
+    firstByteRequests.incrementAndGet();
+    firstByteTotalMillis.addAndGet(elapsed);
+
+    Log.i(TAG, "Time to first byte at offset " + offset + ": " + elapsed + "ms");
+  }
+
+  private static void close(@NonNull Socket client) {
+    try {
+      client.close();
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    }
+  }
+
+  private static ExecutorService newConnectionExecutor() {
+    return new ThreadPoolExecutor(0, MAX_CONNECTIONS, 30, TimeUnit.SECONDS,
+                                  new SynchronousQueue<Runnable>());
+  }
+
+  /**
+   * A single byte range, parsed from a "bytes=start-end", "bytes=start-" or "bytes=-suffix"
+   * Range header against a resource of a known size. Only the first range of a multi-range
+   * request is honored.
+   */
+  static class ByteRange {
+
+    final long start;
+    final long end;
+
+    ByteRange(long start, long end) {
+      this.start = start;
+      this.end   = end;
+    }
+
+    long getLength() {
+      return end - start + 1;
+    }
+
+    static @Nullable ByteRange parse(@Nullable String header, long size) {
+      if (header == null || !header.trim().startsWith("bytes=")) return null;
+
+      String spec  = header.trim().substring("bytes=".length());
+      int    comma = spec.indexOf(',');
+
+      if (comma >= 0) spec = spec.substring(0, comma);
+
+      int dash = spec.indexOf('-');
+      if (dash < 0) return null;
+
+      try {
+        String startValue = spec.substring(0, dash).trim();
+        String endValue   = spec.substring(dash + 1).trim();
+
+        if (startValue.isEmpty()) {
+          long suffix = Long.parseLong(endValue);
+          return suffix <= 0 ? null : new ByteRange(Math.max(0, size - suffix), size - 1);
+        }
+
+        long start = Long.parseLong(startValue);
+        long end   = endValue.isEmpty() ? size - 1 : Math.min(Long.parseLong(endValue), size - 1);
+
+        return end < start ? null : new ByteRange(start, end);
+      } catch (NumberFormatException e) {
+        Log.w(TAG, e);
+        return null;
+      }
+    }
+  }
 
   private class StreamToMediaPlayerTask {
 
     private final @NonNull Socket client;
     private final @NonNull String auth;
 
-    private long       cbSkip;
+    private final long startTime;
+
+    private String     range;
     private Properties parameters;
     private Properties request;
     private Properties requestHeaders;
 //    private String filePath;
 
-    public StreamToMediaPlayerTask(@NonNull Socket client, @NonNull String auth) {
-      this.client = client;
-      this.auth   = auth;
+    public StreamToMediaPlayerTask(@NonNull Socket client, @NonNull String auth, long startTime) {
+      this.client    = client;
+      this.auth      = auth;
+      this.startTime = startTime;
     }
 
     public boolean processRequest() throws IOException {
@@ -157,18 +282,7 @@ public class AttachmentServer implements Runnable {
         Log.i(TAG, "Header: " + e.getKey() + " : " + e.getValue());
       }
 
-      String range = requestHeaders.getProperty("range");
-
-      if (range != null) {
-        Log.i(TAG, "range is: " + range);
-        range = range.substring(6);
-        int charPos = range.indexOf('-');
-        if (charPos > 0) {
-          range = range.substring(0, charPos);
-        }
-        cbSkip = Long.parseLong(range);
-        Log.i(TAG, "range found!! " + cbSkip);
-      }
+      range = requestHeaders.getProperty("range");
 
       if (!"GET".equals(request.get("method"))) {
         Log.e(TAG, "Only GET is supported: " + request.get("method"));
@@ -188,44 +302,75 @@ public class AttachmentServer implements Runnable {
     }
 
     protected void execute() throws IOException {
-      InputStream inputStream = PartAuthority.getAttachmentStream(context, masterSecret, attachment.getDataUri());
-      long        fileSize    = attachment.getSize();
+      long      fileSize  = attachment.getSize();
+      ByteRange byteRange = ByteRange.parse(range, fileSize);
+
+      if (range != null && byteRange == null) {
+        Log.w(TAG, "Unsatisfiable range: " + range);
+        OutputStream output = client.getOutputStream();
+        output.write(("HTTP/1.1 416 Requested Range Not Satisfiable\r\n" +
+                      "Content-Range: bytes */" + fileSize + "\r\n" +
+                      "Connection: close\r\n" +
+                      "\r\n").getBytes());
+        output.flush();
+        return;
+      }
+
+      if (byteRange == null) {
+        byteRange = new ByteRange(0, fileSize - 1);
+      }
 
       String headers = "";
-      if (cbSkip > 0) {// It is a seek or skip request if there's a Range
-        // header
+      if (range != null) {
         headers += "HTTP/1.1 206 Partial Content\r\n";
         headers += "Content-Type: " + attachment.getContentType() + "\r\n";
         headers += "Accept-Ranges: bytes\r\n";
-        headers += "Content-Length: " + (fileSize - cbSkip) + "\r\n";
-        headers += "Content-Range: bytes " + cbSkip + "-" + (fileSize - 1) + "/" + fileSize + "\r\n";
-        headers += "Connection: Keep-Alive\r\n";
+        headers += "Content-Length: " + byteRange.getLength() + "\r\n";
+        headers += "Content-Range: bytes " + byteRange.start + "-" + byteRange.end + "/" + fileSize + "\r\n";
+        headers += "Connection: close\r\n";
         headers += "\r\n";
       } else {
         headers += "HTTP/1.1 200 OK\r\n";
         headers += "Content-Type: " + attachment.getContentType() + "\r\n";
         headers += "Accept-Ranges: bytes\r\n";
         headers += "Content-Length: " + fileSize + "\r\n";
-        headers += "Connection: Keep-Alive\r\n";
+        headers += "Connection: close\r\n";
         headers += "\r\n";
       }
 
       Log.i(TAG, "headers: " + headers);
 
-      OutputStream output = null;
-      byte[] buff = new byte[64 * 1024];
+      InputStream  inputStream = null;
+      OutputStream output      = null;
+      byte[]       buff        = new byte[64 * 1024];
+
       try {
-        output = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
+        inputStream = PartAuthority.getAttachmentStream(context, masterSecret, attachment.getDataUri());
+        output      = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
         output.write(headers.getBytes());
 
-        inputStream.skip(cbSkip);
-//        dataSource.skipFully(data, cbSkip);//try to skip as much as possible
+        // Parts in the chunked format skip by seeking, so this doesn't
+        // decrypt anything before the requested offset.
+        skipFully(inputStream, byteRange.start);
+
+        long    remaining = byteRange.getLength();
+        boolean firstByte = true;
+        int     cbRead;
 
-        // Loop as long as there's stuff to send and client has not closed
-        int cbRead;
-        while (!client.isClosed() && (cbRead = inputStream.read(buff, 0, buff.length)) != -1) {
+        while (remaining > 0 && !client.isClosed() &&
+               (cbRead = inputStream.read(buff, 0, (int)Math.min(buff.length, remaining))) != -1)
+        {
           output.write(buff, 0, cbRead);
+          remaining -= cbRead;
+
+          if (firstByte) {
+            output.flush();
+            recordTimeToFirstByte(startTime, byteRange.start);
+            firstByte = false;
+          }
         }
+
+        output.flush();
       }
       catch (SocketException socketException) {
         Log.e(TAG, "SocketException() thrown, proxy client has probably closed. This can exit harmlessly");
@@ -237,15 +382,30 @@ public class AttachmentServer implements Runnable {
 
       // Cleanup
       try {
+        if (inputStream != null) {
+          inputStream.close();
+        }
+
         if (output != null) {
           output.close();
         }
-        client.close();
       }
       catch (IOException e) {
         Log.e(TAG, "IOException while cleaning up streaming task:");
         Log.e(TAG, e.getClass().getName() + " : " + e.getLocalizedMessage());
-        e.printStackTrace();
+      }
+    }
+
+    private void skipFully(InputStream in, long count) throws IOException {
+      while (count > 0) {
+        long skipped = in.skip(count);
+
+        if (skipped <= 0) {
+          if (in.read() == -1) throw new IOException("Range starts past end of stream");
+          skipped = 1;
+        }
+
+        count -= skipped;
       }
     }
 
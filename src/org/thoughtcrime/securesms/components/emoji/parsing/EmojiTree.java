@@ -22,11 +22,13 @@ package org.thoughtcrime.securesms.components.emoji.parsing;
 
 import android.support.annotation.Nullable;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * Based in part on code from emoji-java
+ *
+ * Each node keeps its children in a sorted char array searched by bisection, so a lookup
+ * neither boxes characters nor allocates.
  */
 public class EmojiTree {
 
@@ -35,48 +37,41 @@ public class EmojiTree {
   public void add(String emojiEncoding, EmojiDrawInfo emoji) {
     EmojiTreeNode tree = root;
 
-    for (char c: emojiEncoding.toCharArray()) {
-      if (!tree.hasChild(c)) {
-        tree.addChild(c);
-      }
-
-      tree = tree.getChild(c);
+    for (int i=0;i<emojiEncoding.length();i++) {
+      tree = tree.getOrAddChild(emojiEncoding.charAt(i));
     }
 
     tree.setEmoji(emoji);
   }
 
-  public Matches isEmoji(CharSequence sequence, int startPosition, int endPosition) {
-    if (sequence == null) {
-      return Matches.POSSIBLY;
-    }
-
+  /**
+   * Walks the tree once from {@code startPosition}.
+   *
+   * @return the end of the longest emoji starting at {@code startPosition}, or -1 if none does.
+   */
+  public int getEmojiEnd(CharSequence sequence, int startPosition) {
     EmojiTreeNode tree = root;
+    int           end  = -1;
 
-    for (int i=startPosition; i<endPosition; i++) {
-      char character = sequence.charAt(i);
+    for (int i=startPosition;i<sequence.length();i++) {
+      tree = tree.getChild(sequence.charAt(i));
 
-      if (!tree.hasChild(character)) {
-        return Matches.IMPOSSIBLE;
-      }
-
-      tree = tree.getChild(character);
+      if (tree == null)        break;
+      if (tree.isEndOfEmoji()) end = i + 1;
     }
 
-    return tree.isEndOfEmoji() ? Matches.EXACTLY : Matches.POSSIBLY;
+    return end;
   }
 
   public @Nullable EmojiDrawInfo getEmoji(CharSequence unicode, int startPosition, int endPostiion) {
     EmojiTreeNode tree = root;
 
     for (int i=startPosition; i<endPostiion; i++) {
-      char character = unicode.charAt(i);
+      tree = tree.getChild(unicode.charAt(i));
 
-      if (!tree.hasChild(character)) {
+      if (tree == null) {
         return null;
       }
-
-      tree = tree.getChild(character);
     }
 
     return tree.getEmoji();
@@ -85,8 +80,12 @@ public class EmojiTree {
 
   private static class EmojiTreeNode {
 
-    private Map<Character, EmojiTreeNode> children = new HashMap<>();
-    private EmojiDrawInfo emoji;
+    private static final char[]          NO_KEYS     = new char[0];
+    private static final EmojiTreeNode[] NO_CHILDREN = new EmojiTreeNode[0];
+
+    private char[]          keys     = NO_KEYS;
+    private EmojiTreeNode[] children = NO_CHILDREN;
+    private EmojiDrawInfo   emoji;
 
     public void setEmoji(EmojiDrawInfo emoji) {
       this.emoji = emoji;
@@ -96,32 +95,39 @@ public class EmojiTree {
       return emoji;
     }
 
-    boolean hasChild(char child) {
-      return children.containsKey(child);
+    @Nullable EmojiTreeNode getChild(char child) {
+      int index = Arrays.binarySearch(keys, child);
+      return index >= 0 ? children[index] : null;
     }
 
-    void addChild(char child) {
-      children.put(child, new EmojiTreeNode());
-    }
+    EmojiTreeNode getOrAddChild(char child) {
+      int index = Arrays.binarySearch(keys, child);
 
-    EmojiTreeNode getChild(char child) {
-      return children.get(child);
-    }
+      if (index >= 0) {
+        return children[index];
+      }
 
-    boolean isEndOfEmoji() {
-      return emoji != null;
-    }
-  }
+      int             insertion   = -index - 1;
+      char[]          newKeys     = new char[keys.length + 1];
+      EmojiTreeNode[] newChildren = new EmojiTreeNode[children.length + 1];
+      EmojiTreeNode   node        = new EmojiTreeNode();
+
+      System.arraycopy(keys, 0, newKeys, 0, insertion);
+      System.arraycopy(keys, insertion, newKeys, insertion + 1, keys.length - insertion);
+      System.arraycopy(children, 0, newChildren, 0, insertion);
+      System.arraycopy(children, insertion, newChildren, insertion + 1, children.length - insertion);
+
+      newKeys[insertion]     = child;
+      newChildren[insertion] = node;
 
-  public enum Matches {
-    EXACTLY, POSSIBLY, IMPOSSIBLE;
+      keys     = newKeys;
+      children = newChildren;
 
-    public boolean exactMatch() {
-      return this == EXACTLY;
+      return node;
     }
 
-    public boolean impossibleMatch() {
-      return this == IMPOSSIBLE;
+    boolean isEndOfEmoji() {
+      return emoji != null;
     }
   }
 
@@ -38,19 +38,18 @@ public enum Fitzpatrick {
 
 
   public static Fitzpatrick fitzpatrickFromUnicode(CharSequence unicode, int index) {
-    for (Fitzpatrick v : values()) {
-      boolean match = true;
-
-      for (int i=0;i<v.unicode.toCharArray().length;i++) {
-        if (v.unicode.toCharArray()[i] != unicode.charAt(index + i)) {
-          match = false;
-        }
-      }
-
-      if (match) return v;
+    if (index + 2 > unicode.length() || unicode.charAt(index) != '\uD83C') {
+      return null;
     }
 
-    return null;
+    switch (unicode.charAt(index + 1)) {
+      case '\uDFFB': return TYPE_1_2;
+      case '\uDFFC': return TYPE_3;
+      case '\uDFFD': return TYPE_4;
+      case '\uDFFE': return TYPE_5;
+      case '\uDFFF': return TYPE_6;
+      default:       return null;
+    }
   }
 
   public static Fitzpatrick fitzpatrickFromType(String type) {
@@ -22,19 +22,25 @@ import android.database.MatrixCursor;
 import android.database.MergeCursor;
 import android.provider.ContactsContract;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.v4.content.CursorLoader;
 import android.text.TextUtils;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
-import org.thoughtcrime.securesms.recipients.RecipientFactory;
-import org.thoughtcrime.securesms.recipients.Recipients;
-import org.thoughtcrime.securesms.util.DirectoryHelper;
-import org.thoughtcrime.securesms.util.DirectoryHelper.UserCapabilities.Capability;
+import org.thoughtcrime.securesms.database.TextSecureDirectory;
+import org.thoughtcrime.securesms.database.TextSecureDirectory.Capabilities;
 import org.thoughtcrime.securesms.util.NumberUtil;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.thoughtcrime.securesms.util.Util;
+import org.whispersystems.signalservice.api.util.InvalidNumberException;
 
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 /**
  * CursorLoader that initializes a ContactsDatabase instance
@@ -101,25 +107,51 @@ public class ContactsCursorLoader extends CursorLoader {
                                                                 ContactsDatabase.NUMBER_TYPE_COLUMN,
                                                                 ContactsDatabase.LABEL_COLUMN,
                                                                 ContactsDatabase.CONTACT_TYPE_COLUMN});
+
+      final boolean        pushRegistered = TextSecurePreferences.isPushRegistered(getContext());
+      final List<Object[]> rows           = new LinkedList<>();
+      final List<String>   e164numbers    = new LinkedList<>();
+
       while (cursor.moveToNext()) {
         final String number = cursor.getString(cursor.getColumnIndexOrThrow(ContactsDatabase.NUMBER_COLUMN));
-        final Recipients recipients = RecipientFactory.getRecipientsFromString(getContext(), number, true);
-
-        if (DirectoryHelper.getUserCapabilities(getContext(), recipients)
-                           .getTextCapability() != Capability.SUPPORTED)
-        {
-          matrix.addRow(new Object[]{cursor.getLong(cursor.getColumnIndexOrThrow(ContactsDatabase.ID_COLUMN)),
-                                     cursor.getString(cursor.getColumnIndexOrThrow(ContactsDatabase.NAME_COLUMN)),
-                                     number,
-                                     cursor.getString(cursor.getColumnIndexOrThrow(ContactsDatabase.NUMBER_TYPE_COLUMN)),
-                                     cursor.getString(cursor.getColumnIndexOrThrow(ContactsDatabase.LABEL_COLUMN)),
-                                     ContactsDatabase.NORMAL_TYPE});
+
+        rows.add(new Object[]{cursor.getLong(cursor.getColumnIndexOrThrow(ContactsDatabase.ID_COLUMN)),
+                              cursor.getString(cursor.getColumnIndexOrThrow(ContactsDatabase.NAME_COLUMN)),
+                              number,
+                              cursor.getString(cursor.getColumnIndexOrThrow(ContactsDatabase.NUMBER_TYPE_COLUMN)),
+                              cursor.getString(cursor.getColumnIndexOrThrow(ContactsDatabase.LABEL_COLUMN)),
+                              ContactsDatabase.NORMAL_TYPE});
+        e164numbers.add(pushRegistered ? getE164Number(number) : null);
+      }
+
+      final Map<String, Capabilities> capabilities = TextSecureDirectory.getInstance(getContext())
+                                                                        .getCapabilities(e164numbers);
+
+      Iterator<String> e164iterator = e164numbers.iterator();
+
+      for (Object[] row : rows) {
+        Capabilities rowCapabilities = capabilities.get(e164iterator.next());
+
+        if (rowCapabilities == null || !rowCapabilities.isRegistered()) {
+          matrix.addRow(row);
         }
       }
+
       Log.w(TAG, "filterNonPushContacts() -> " + (System.currentTimeMillis() - startMillis) + "ms");
       return matrix;
     } finally {
       cursor.close();
     }
   }
+
+  private @Nullable String getE164Number(@Nullable String number) {
+    if (number == null) return null;
+
+    try {
+      return Util.canonicalizeNumber(getContext(), number);
+    } catch (InvalidNumberException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
 }
@@ -0,0 +1,172 @@
+package org.thoughtcrime.securesms.crypto;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Writes an attachment in the seekable, chunked format read by {@link DecryptingPartChannel}.
+ *
+ * The file starts with a header of a magic number, the chunk size, and a random nonce.
+ * The plaintext is then split into fixed size chunks, each encrypted with AES-CTR starting
+ * at its own counter offset, and each followed by an HMAC over the header, the chunk's index,
+ * whether it is the last chunk, and its ciphertext. Any chunk can therefore be decrypted and
+ * authenticated on its own, and the plaintext length follows from the file length alone.
+ */
+public class ChunkedEncryptingPartOutputStream extends OutputStream {
+
+  static final byte[] MAGIC         = {'T', 'S', 'P', 'A', 'R', 'T', 0x00, 0x01};
+  static final int    NONCE_LENGTH  = 16;
+  static final int    HEADER_LENGTH = MAGIC.length + 4 + NONCE_LENGTH;
+  static final int    MAC_LENGTH    = 20;
+  static final int    CHUNK_SIZE    = 64 * 1024;
+
+  private final FileOutputStream out;
+  private final Cipher           cipher;
+  private final Mac              mac;
+  private final MasterSecret     masterSecret;
+  private final byte[]           header;
+  private final byte[]           chunk;
+
+  private int     chunkLength;
+  private long    chunkIndex;
+  private boolean closed;
+
+  public ChunkedEncryptingPartOutputStream(File file, MasterSecret masterSecret) throws FileNotFoundException {
+    this(file, masterSecret, CHUNK_SIZE);
+  }
+
+  ChunkedEncryptingPartOutputStream(File file, MasterSecret masterSecret, int chunkSize) throws FileNotFoundException {
+    this.out          = new FileOutputStream(file);
+    this.masterSecret = masterSecret;
+    this.chunk        = new byte[chunkSize];
+    this.header       = createHeader(chunkSize);
+
+    try {
+      this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      this.mac    = Mac.getInstance("HmacSHA1");
+      this.mac.init(masterSecret.getMacKey());
+
+      out.write(header);
+    } catch (IOException e) {
+      throw new FileNotFoundException("Couldn't write header: " + e.getMessage());
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (chunkLength == chunk.length) writeChunk(false);
+    chunk[chunkLength++] = (byte)b;
+  }
+
+  @Override
+  public void write(byte[] buffer) throws IOException {
+    write(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    while (length > 0) {
+      if (chunkLength == chunk.length) writeChunk(false);
+
+      int count = Math.min(length, chunk.length - chunkLength);
+      System.arraycopy(buffer, offset, chunk, chunkLength, count);
+
+      chunkLength += count;
+      offset      += count;
+      length      -= count;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      writeChunk(true);
+      closed = true;
+    }
+
+    out.close();
+  }
+
+  private void writeChunk(boolean last) throws IOException {
+    try {
+      cipher.init(Cipher.ENCRYPT_MODE, masterSecret.getEncryptionKey(),
+                  new IvParameterSpec(getCounter(header, chunkIndex, chunk.length)));
+
+      byte[] ciphertext = cipher.doFinal(chunk, 0, chunkLength);
+      byte[] chunkMac   = getMac(mac, header, chunkIndex, last, ciphertext, 0, ciphertext.length);
+
+      out.write(ciphertext);
+      out.write(chunkMac);
+
+      chunkIndex++;
+      chunkLength = 0;
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static byte[] createHeader(int chunkSize) {
+    byte[] header = new byte[HEADER_LENGTH];
+    byte[] nonce  = new byte[NONCE_LENGTH];
+
+    new SecureRandom().nextBytes(nonce);
+
+    System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+    header[MAGIC.length    ] = (byte)(chunkSize >>> 24);
+    header[MAGIC.length + 1] = (byte)(chunkSize >>> 16);
+    header[MAGIC.length + 2] = (byte)(chunkSize >>> 8);
+    header[MAGIC.length + 3] = (byte)chunkSize;
+    System.arraycopy(nonce, 0, header, MAGIC.length + 4, NONCE_LENGTH);
+
+    return header;
+  }
+
+  /**
+   * The initial counter block for a chunk: the header's nonce, read as a 128 bit big endian
+   * integer, advanced by the number of AES blocks in all of the preceding chunks.
+   */
+  static byte[] getCounter(byte[] header, long chunkIndex, int chunkSize) {
+    byte[] counter = new byte[NONCE_LENGTH];
+    System.arraycopy(header, MAGIC.length + 4, counter, 0, NONCE_LENGTH);
+
+    long carry = chunkIndex * (chunkSize / 16);
+
+    for (int i=counter.length-1;i>=0 && carry != 0;i--) {
+      long sum = (counter[i] & 0xff) + (carry & 0xff);
+
+      counter[i] = (byte)sum;
+      carry      = (carry >>> 8) + (sum >>> 8);
+    }
+
+    return counter;
+  }
+
+  static byte[] getMac(Mac mac, byte[] header, long chunkIndex, boolean last,
+                       byte[] ciphertext, int offset, int length)
+  {
+    byte[] index = new byte[9];
+
+    for (int i=0;i<8;i++) {
+      index[i] = (byte)(chunkIndex >>> (56 - 8 * i));
+    }
+
+    index[8] = (byte)(last ? 1 : 0);
+
+    mac.update(header);
+    mac.update(index);
+    mac.update(ciphertext, offset, length);
+
+    return mac.doFinal();
+  }
+}
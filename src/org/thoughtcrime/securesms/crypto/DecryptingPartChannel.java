@@ -0,0 +1,225 @@
+package org.thoughtcrime.securesms.crypto;
+
+import android.support.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+
+import static org.thoughtcrime.securesms.crypto.ChunkedEncryptingPartOutputStream.HEADER_LENGTH;
+import static org.thoughtcrime.securesms.crypto.ChunkedEncryptingPartOutputStream.MAC_LENGTH;
+import static org.thoughtcrime.securesms.crypto.ChunkedEncryptingPartOutputStream.MAGIC;
+
+/**
+ * Random access to the plaintext of an attachment written by
+ * {@link ChunkedEncryptingPartOutputStream}. A read only decrypts and authenticates the
+ * chunks it touches, and the most recently decrypted chunk is kept, so sequential reads
+ * and small seeks cost one chunk decryption each.
+ */
+public class DecryptingPartChannel implements Closeable {
+
+  private final RandomAccessFile file;
+  private final MasterSecret     masterSecret;
+  private final Cipher           cipher;
+  private final Mac              mac;
+  private final byte[]           header;
+  private final int              chunkSize;
+  private final long             chunkCount;
+  private final long             size;
+  private final byte[]           ciphertext;
+  private final byte[]           plaintext;
+
+  private long cachedChunk = -1;
+  private int  cachedChunkLength;
+
+  public static boolean isChunked(@NonNull File file) throws IOException {
+    if (file.length() < HEADER_LENGTH + MAC_LENGTH) return false;
+
+    FileInputStream in    = new FileInputStream(file);
+    byte[]          magic = new byte[MAGIC.length];
+
+    try {
+      int offset = 0;
+      int read;
+
+      while (offset < magic.length && (read = in.read(magic, offset, magic.length - offset)) != -1) {
+        offset += read;
+      }
+
+      return offset == magic.length && Arrays.equals(magic, MAGIC);
+    } finally {
+      in.close();
+    }
+  }
+
+  public DecryptingPartChannel(@NonNull MasterSecret masterSecret, @NonNull File file) throws IOException {
+    this.file         = new RandomAccessFile(file, "r");
+    this.masterSecret = masterSecret;
+    this.header       = new byte[HEADER_LENGTH];
+
+    try {
+      this.file.readFully(header);
+
+      if (!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)) {
+        throw new IOException("Not a chunked part");
+      }
+
+      this.chunkSize = ((header[MAGIC.length    ] & 0xff) << 24) |
+                       ((header[MAGIC.length + 1] & 0xff) << 16) |
+                       ((header[MAGIC.length + 2] & 0xff) << 8)  |
+                        (header[MAGIC.length + 3] & 0xff);
+
+      if (chunkSize <= 0 || chunkSize % 16 != 0 || chunkSize > 16 * 1024 * 1024) {
+        throw new IOException("Bad chunk size: " + chunkSize);
+      }
+
+      long body           = this.file.length() - HEADER_LENGTH;
+      long fullChunk      = chunkSize + MAC_LENGTH;
+      this.chunkCount     = (body + fullChunk - 1) / fullChunk;
+      long lastChunkBytes = body - (chunkCount - 1) * fullChunk - MAC_LENGTH;
+
+      if (chunkCount < 1 || lastChunkBytes < 0 || (chunkCount > 1 && lastChunkBytes == 0)) {
+        throw new IOException("Truncated part");
+      }
+
+      this.size       = (chunkCount - 1) * chunkSize + lastChunkBytes;
+      this.ciphertext = new byte[chunkSize + MAC_LENGTH];
+      this.plaintext  = new byte[chunkSize];
+      this.cipher     = Cipher.getInstance("AES/CTR/NoPadding");
+      this.mac        = Mac.getInstance("HmacSHA1");
+      this.mac.init(masterSecret.getMacKey());
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    } catch (IOException e) {
+      this.file.close();
+      throw e;
+    }
+  }
+
+  public long size() {
+    return size;
+  }
+
+  /**
+   * Reads up to {@code length} bytes of plaintext starting at {@code position}.
+   *
+   * @return the number of bytes read, or -1 if {@code position} is at or past the end.
+   */
+  public synchronized int read(long position, byte[] buffer, int offset, int length) throws IOException {
+    if (position >= size) return -1;
+
+    int total = 0;
+
+    while (length > 0 && position < size) {
+      long chunk       = position / chunkSize;
+      int  chunkOffset = (int)(position % chunkSize);
+
+      loadChunk(chunk);
+
+      int count = Math.min(length, cachedChunkLength - chunkOffset);
+      System.arraycopy(plaintext, chunkOffset, buffer, offset, count);
+
+      position += count;
+      offset   += count;
+      length   -= count;
+      total    += count;
+    }
+
+    return total;
+  }
+
+  /**
+   * Returns a stream over the plaintext that skips in constant time. Closing the
+   * stream closes this channel.
+   */
+  public InputStream createInputStream() {
+    return new ChannelInputStream();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    file.close();
+  }
+
+  private void loadChunk(long chunk) throws IOException {
+    if (chunk == cachedChunk) return;
+
+    boolean last   = chunk == chunkCount - 1;
+    int     length = last ? (int)(size - chunk * chunkSize) : chunkSize;
+
+    file.seek(HEADER_LENGTH + chunk * (chunkSize + MAC_LENGTH));
+    file.readFully(ciphertext, 0, length + MAC_LENGTH);
+
+    byte[] ourMac   = ChunkedEncryptingPartOutputStream.getMac(mac, header, chunk, last, ciphertext, 0, length);
+    byte[] theirMac = Arrays.copyOfRange(ciphertext, length, length + MAC_LENGTH);
+
+    if (!MessageDigest.isEqual(ourMac, theirMac)) {
+      cachedChunk = -1;
+      throw new IOException("Bad MAC on chunk " + chunk);
+    }
+
+    try {
+      cipher.init(Cipher.DECRYPT_MODE, masterSecret.getEncryptionKey(),
+                  new IvParameterSpec(ChunkedEncryptingPartOutputStream.getCounter(header, chunk, chunkSize)));
+      cipher.doFinal(ciphertext, 0, length, plaintext, 0);
+    } catch (GeneralSecurityException e) {
+      throw new AssertionError(e);
+    }
+
+    cachedChunk       = chunk;
+    cachedChunkLength = length;
+  }
+
+  private class ChannelInputStream extends InputStream {
+
+    private long position;
+
+    @Override
+    public int read() throws IOException {
+      byte[] buffer = new byte[1];
+      int    read   = read(buffer, 0, 1);
+
+      return read == -1 ? -1 : buffer[0] & 0xff;
+    }
+
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      if (length == 0) return 0;
+
+      int read = DecryptingPartChannel.this.read(position, buffer, offset, length);
+      if (read > 0) position += read;
+
+      return read;
+    }
+
+    @Override
+    public long skip(long count) {
+      if (count <= 0) return 0;
+
+      long skipped = Math.min(count, size - position);
+      position += skipped;
+
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return (int)Math.min(Integer.MAX_VALUE, size - position);
+    }
+
+    @Override
+    public void close() throws IOException {
+      DecryptingPartChannel.this.close();
+    }
+  }
+}
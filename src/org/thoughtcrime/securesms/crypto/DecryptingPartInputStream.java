@@ -47,6 +47,12 @@ public class DecryptingPartInputStream {
   public static InputStream createFor(MasterSecret masterSecret, File file)
       throws IOException
   {
+    // Chunked parts authenticate each chunk as it is read, so they
+    // don't need the up-front pass over the whole file below.
+    if (DecryptingPartChannel.isChunked(file)) {
+      return new DecryptingPartChannel(masterSecret, file).createInputStream();
+    }
+
     try {
       if (file.length() <= IV_LENGTH + MAC_LENGTH) {
         throw new IOException("File too short");
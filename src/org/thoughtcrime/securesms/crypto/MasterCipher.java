@@ -32,6 +32,9 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -55,6 +58,21 @@ import javax.crypto.spec.SecretKeySpec;
 
 public class MasterCipher {
 
+  private static final Set<ThreadLocalHolder> threadLocalHolders = Collections.newSetFromMap(new WeakHashMap<ThreadLocalHolder, Boolean>());
+
+  private static final ThreadLocal<ThreadLocalHolder> threadLocalInstance = new ThreadLocal<ThreadLocalHolder>() {
+    @Override
+    protected ThreadLocalHolder initialValue() {
+      ThreadLocalHolder holder = new ThreadLocalHolder();
+
+      synchronized (threadLocalHolders) {
+        threadLocalHolders.add(holder);
+      }
+
+      return holder;
+    }
+  };
+
   private final MasterSecret masterSecret;
   private final Cipher encryptingCipher;
   private final Cipher decryptingCipher;
@@ -66,11 +84,48 @@ public class MasterCipher {
       this.encryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
       this.decryptingCipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
       this.hmac             = Mac.getInstance("HmacSHA1");
-    } catch (NoSuchPaddingException | NoSuchAlgorithmException nspe) {
-      throw new AssertionError(nspe);
+      this.hmac.init(masterSecret.getMacKey());
+    } catch (NoSuchPaddingException | NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
     }
   }
 
+  /**
+   * Returns a MasterCipher for the calling thread, creating one only if this thread
+   * hasn't used one yet or last used one with a different MasterSecret. This saves the
+   * Cipher and Mac provider lookups on hot paths like cursor readers. The instance
+   * isn't thread safe, so it must not be handed to another thread.
+   */
+  public static MasterCipher getThreadLocalInstance(@NonNull MasterSecret masterSecret) {
+    ThreadLocalHolder holder       = threadLocalInstance.get();
+    MasterCipher      masterCipher = holder.masterCipher;
+
+    if (masterCipher == null || !masterCipher.isFor(masterSecret)) {
+      masterCipher        = new MasterCipher(masterSecret);
+      holder.masterCipher = masterCipher;
+    }
+
+    return masterCipher;
+  }
+
+  /**
+   * Drops the instance cached by every thread, so that no long-lived thread keeps the
+   * master secret's keys reachable once the passphrase has been locked.
+   */
+  public static void clearThreadLocalInstances() {
+    synchronized (threadLocalHolders) {
+      for (ThreadLocalHolder holder : threadLocalHolders) {
+        holder.masterCipher = null;
+      }
+    }
+  }
+
+  private boolean isFor(@NonNull MasterSecret masterSecret) {
+    return this.masterSecret == masterSecret ||
+           (this.masterSecret.getEncryptionKey().equals(masterSecret.getEncryptionKey()) &&
+            this.masterSecret.getMacKey().equals(masterSecret.getMacKey()));
+  }
+
   public byte[] encryptKey(ECPrivateKey privateKey) {
     return encryptBytes(privateKey.serialize());
   }
@@ -94,14 +149,19 @@ public class MasterCipher {
   }
 	
   public byte[] decryptBytes(@NonNull byte[] decodedBody) throws InvalidMessageException {
+    return decryptBytes(decodedBody, 0, decodedBody.length);
+  }
+
+  /**
+   * Decrypts the IV, ciphertext and MAC found at [offset, offset + length) of the buffer,
+   * without copying any of them out of it first.
+   */
+  public byte[] decryptBytes(@NonNull byte[] buffer, int offset, int length) throws InvalidMessageException {
     try {
-      Mac mac              = getMac(masterSecret.getMacKey());
-      byte[] encryptedBody = verifyMacBody(mac, decodedBody);
-			
-      Cipher cipher        = getDecryptingCipher(masterSecret.getEncryptionKey(), encryptedBody);
-      byte[] encrypted     = getDecryptedBody(cipher, encryptedBody);
-			
-      return encrypted;
+      int encryptedLength = verifyMacBody(hmac, buffer, offset, length);
+
+      Cipher cipher = getDecryptingCipher(masterSecret.getEncryptionKey(), buffer, offset, encryptedLength);
+      return cipher.doFinal(buffer, offset + cipher.getBlockSize(), encryptedLength - cipher.getBlockSize());
     } catch (GeneralSecurityException ge) {
       throw new InvalidMessageException(ge);
     }
@@ -110,10 +170,9 @@ public class MasterCipher {
   public byte[] encryptBytes(byte[] body) {
     try {
       Cipher cipher              = getEncryptingCipher(masterSecret.getEncryptionKey());
-      Mac    mac                 = getMac(masterSecret.getMacKey());
 		
       byte[] encryptedBody       = getEncryptedBody(cipher, body);
-      byte[] encryptedAndMacBody = getMacBody(mac, encryptedBody);
+      byte[] encryptedAndMacBody = getMacBody(hmac, encryptedBody);
 		
       return encryptedAndMacBody;
     } catch (GeneralSecurityException ge) {
@@ -132,12 +191,7 @@ public class MasterCipher {
 	
   public byte[] getMacFor(String content) {
     Log.w("MasterCipher", "Macing: " + content);
-    try {
-      Mac mac = getMac(masterSecret.getMacKey());
-      return mac.doFinal(content.getBytes());
-    } catch (GeneralSecurityException ike) {
-      throw new AssertionError(ike);
-    }
+    return hmac.doFinal(content.getBytes());
   }
 
   private byte[] decodeAndDecryptBytes(String body) throws InvalidMessageException {
@@ -154,27 +208,28 @@ public class MasterCipher {
     return Base64.encodeBytes(encryptedAndMacBody);
   }
 	
-  private byte[] verifyMacBody(@NonNull Mac hmac, @NonNull byte[] encryptedAndMac) throws InvalidMessageException {
-    if (encryptedAndMac.length < hmac.getMacLength()) {
-      throw new InvalidMessageException("length(encrypted body + MAC) < length(MAC)");
+  private int verifyMacBody(@NonNull Mac hmac, @NonNull byte[] buffer, int offset, int length) throws InvalidMessageException {
+    int macLength = hmac.getMacLength();
+
+    if (length < macLength + decryptingCipher.getBlockSize()) {
+      throw new InvalidMessageException("length(encrypted body + MAC) < length(IV + MAC)");
     }
 
-    byte[] encrypted = new byte[encryptedAndMac.length - hmac.getMacLength()];
-    System.arraycopy(encryptedAndMac, 0, encrypted, 0, encrypted.length);
-		
-    byte[] remoteMac = new byte[hmac.getMacLength()];
-    System.arraycopy(encryptedAndMac, encryptedAndMac.length - remoteMac.length, remoteMac, 0, remoteMac.length);
-		
-    byte[] localMac  = hmac.doFinal(encrypted);
-		
-    if (!Arrays.equals(remoteMac, localMac))
+    int encryptedLength = length - macLength;
+
+    hmac.update(buffer, offset, encryptedLength);
+    byte[] localMac = hmac.doFinal();
+
+    int difference = 0;
+
+    for (int i=0;i<macLength;i++) {
+      difference |= localMac[i] ^ buffer[offset + encryptedLength + i];
+    }
+
+    if (difference != 0)
       throw new InvalidMessageException("MAC doesen't match.");
 		
-    return encrypted;
-  }
-	
-  private byte[] getDecryptedBody(Cipher cipher, byte[] encryptedBody) throws IllegalBlockSizeException, BadPaddingException {
-    return cipher.doFinal(encryptedBody, cipher.getBlockSize(), encryptedBody.length - cipher.getBlockSize());
+    return encryptedLength;
   }
 	
   private byte[] getEncryptedBody(Cipher cipher, byte[] body) throws IllegalBlockSizeException, BadPaddingException {
@@ -188,13 +243,6 @@ public class MasterCipher {
     return ivAndBody;
   }
 	
-  private Mac getMac(SecretKeySpec key) throws NoSuchAlgorithmException, InvalidKeyException {
-    //		Mac hmac = Mac.getInstance("HmacSHA1");
-    hmac.init(key);
-
-    return hmac;
-  }
-	
   private byte[] getMacBody(Mac hmac, byte[] encryptedBody) {
     byte[] mac             = hmac.doFinal(encryptedBody);
     byte[] encryptedAndMac = new byte[encryptedBody.length + mac.length];
@@ -205,9 +253,8 @@ public class MasterCipher {
     return encryptedAndMac;
   }
 	
-  private Cipher getDecryptingCipher(SecretKeySpec key, byte[] encryptedBody) throws InvalidKeyException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
-    //		Cipher cipher      = Cipher.getInstance("AES/CBC/PKCS5Padding");
-    IvParameterSpec iv = new IvParameterSpec(encryptedBody, 0, decryptingCipher.getBlockSize());
+  private Cipher getDecryptingCipher(SecretKeySpec key, byte[] buffer, int offset, int length) throws InvalidKeyException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchPaddingException {
+    IvParameterSpec iv = new IvParameterSpec(buffer, offset, decryptingCipher.getBlockSize());
     decryptingCipher.init(Cipher.DECRYPT_MODE, key, iv);
 		
     return decryptingCipher;
@@ -219,5 +266,8 @@ public class MasterCipher {
 		
     return encryptingCipher;
   }
-	
+
+  private static class ThreadLocalHolder {
+    private volatile MasterCipher masterCipher;
+  }
 }
@@ -11,7 +11,7 @@ public class MediaKey {
 
   public static String getEncrypted(@NonNull MasterSecretUnion masterSecret, @NonNull byte[] key) {
     if (masterSecret.getMasterSecret().isPresent()) {
-      return Base64.encodeBytes(new MasterCipher(masterSecret.getMasterSecret().get()).encryptBytes(key));
+      return Base64.encodeBytes(MasterCipher.getThreadLocalInstance(masterSecret.getMasterSecret().get()).encryptBytes(key));
     } else {
       return "?ASYNC-" + Base64.encodeBytes(new AsymmetricMasterCipher(masterSecret.getAsymmetricMasterSecret().get()).encryptBytes(key));
     }
@@ -25,7 +25,7 @@ public class MediaKey {
     if (encodedKey.startsWith("?ASYNC-")) {
       return new AsymmetricMasterCipher(asymmetricMasterSecret).decryptBytes(Base64.decode(encodedKey.substring("?ASYNC-".length())));
     } else {
-      return new MasterCipher(masterSecret).decryptBytes(Base64.decode(encodedKey));
+      return MasterCipher.getThreadLocalInstance(masterSecret).decryptBytes(Base64.decode(encodedKey));
     }
   }
 }
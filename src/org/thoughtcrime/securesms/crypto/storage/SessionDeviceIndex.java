@@ -0,0 +1,174 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Which devices each recipient has a session with, so that finding a recipient's sessions
+ * doesn't mean listing and parsing every file in the session directory.
+ *
+ * The index is kept in the session directory as one more file, written back through the
+ * same cache as the sessions it describes, so the two reach disk in the same flush. It's
+ * loaded once, and only rebuilt from a directory listing when that file is missing or
+ * unreadable. A device lost by a crash between the two renames is repaired the next time
+ * a message is sent, since the server reports the devices we missed.
+ */
+class SessionDeviceIndex {
+
+  private static final String TAG = SessionDeviceIndex.class.getSimpleName();
+
+  static final String INDEX_NAME = "device-index";
+
+  private static final int CURRENT_VERSION = 1;
+
+  private final WriteBackFileCache      cache;
+  private final Map<Long, Set<Integer>> devices = new HashMap<>();
+
+  SessionDeviceIndex(@NonNull WriteBackFileCache cache) {
+    this.cache = cache;
+
+    if (!load()) {
+      rebuild();
+    }
+  }
+
+  synchronized @NonNull List<Integer> getSubDevices(long recipientId) {
+    List<Integer> results          = new LinkedList<>();
+    Set<Integer>  recipientDevices = devices.get(recipientId);
+
+    if (recipientDevices != null) {
+      for (int deviceId : recipientDevices) {
+        if (deviceId != SignalServiceAddress.DEFAULT_DEVICE_ID) results.add(deviceId);
+      }
+    }
+
+    return results;
+  }
+
+  synchronized void add(long recipientId, int deviceId) {
+    Set<Integer> recipientDevices = devices.get(recipientId);
+
+    if (recipientDevices == null) {
+      recipientDevices = new HashSet<>();
+      devices.put(recipientId, recipientDevices);
+    }
+
+    if (recipientDevices.add(deviceId)) {
+      save();
+    }
+  }
+
+  synchronized void remove(long recipientId, int deviceId) {
+    Set<Integer> recipientDevices = devices.get(recipientId);
+
+    if (recipientDevices != null && recipientDevices.remove(deviceId)) {
+      if (recipientDevices.isEmpty()) devices.remove(recipientId);
+      save();
+    }
+  }
+
+  /**
+   * Replaces the index with what's actually in the session directory.
+   */
+  synchronized void rebuild() {
+    long startTime = System.currentTimeMillis();
+
+    devices.clear();
+
+    for (String name : cache.list()) {
+      if (INDEX_NAME.equals(name)) continue;
+
+      try {
+        String[]     parts            = name.split("[.]", 2);
+        long         recipientId      = Long.parseLong(parts[0]);
+        int          deviceId         = parts.length > 1 ? Integer.parseInt(parts[1]) : SignalServiceAddress.DEFAULT_DEVICE_ID;
+        Set<Integer> recipientDevices = devices.get(recipientId);
+
+        if (recipientDevices == null) {
+          recipientDevices = new HashSet<>();
+          devices.put(recipientId, recipientDevices);
+        }
+
+        recipientDevices.add(deviceId);
+      } catch (NumberFormatException e) {
+        Log.w(TAG, e);
+      }
+    }
+
+    save();
+
+    Log.w(TAG, "Rebuilt index of " + devices.size() + " recipients in " + (System.currentTimeMillis() - startTime) + "ms");
+  }
+
+  private boolean load() {
+    try {
+      byte[] serialized = cache.read(INDEX_NAME);
+      if (serialized == null) return false;
+
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(serialized));
+
+      if (in.readInt() != CURRENT_VERSION) {
+        Log.w(TAG, "Unknown index version, rebuilding...");
+        return false;
+      }
+
+      int recipients = in.readInt();
+
+      for (int i=0;i<recipients;i++) {
+        long         recipientId      = in.readLong();
+        int          deviceCount      = in.readInt();
+        Set<Integer> recipientDevices = new HashSet<>(deviceCount);
+
+        for (int j=0;j<deviceCount;j++) {
+          recipientDevices.add(in.readInt());
+        }
+
+        devices.put(recipientId, recipientDevices);
+      }
+
+      return true;
+    } catch (IOException | IllegalArgumentException e) {
+      Log.w(TAG, e);
+      devices.clear();
+      return false;
+    }
+  }
+
+  private void save() {
+    try {
+      ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+      DataOutputStream      out        = new DataOutputStream(serialized);
+
+      out.writeInt(CURRENT_VERSION);
+      out.writeInt(devices.size());
+
+      for (Map.Entry<Long, Set<Integer>> entry : devices.entrySet()) {
+        out.writeLong(entry.getKey());
+        out.writeInt(entry.getValue().size());
+
+        for (int deviceId : entry.getValue()) {
+          out.writeInt(deviceId);
+        }
+      }
+
+      out.close();
+      cache.write(INDEX_NAME, serialized.toByteArray());
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
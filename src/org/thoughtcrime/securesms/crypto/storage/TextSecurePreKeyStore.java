@@ -7,6 +7,8 @@ import android.util.Log;
 
 import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.PreKeyDatabase;
 import org.whispersystems.libsignal.InvalidKeyIdException;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
@@ -18,12 +20,16 @@ import org.thoughtcrime.securesms.util.Conversions;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
+/**
+ * Prekeys are kept in the {@link PreKeyDatabase}. They used to be kept one file per key,
+ * and any such files left over are moved into the database the first time the store is
+ * used, or by {@link #migrateRecords()} if they still need the master secret to read.
+ */
 public class TextSecurePreKeyStore implements PreKeyStore, SignedPreKeyStore {
 
   public  static final String PREKEY_DIRECTORY        = "prekeys";
@@ -32,9 +38,12 @@ public class TextSecurePreKeyStore implements PreKeyStore, SignedPreKeyStore {
 
   private static final int    PLAINTEXT_VERSION      = 2;
   private static final int    CURRENT_VERSION_MARKER = 2;
+  private static final String INDEX_FILE_NAME        = "index.dat";
   private static final Object FILE_LOCK              = new Object();
   private static final String TAG                    = TextSecurePreKeyStore.class.getSimpleName();
 
+  private static volatile boolean legacyRecordsImported;
+
   @NonNull  private final Context      context;
   @Nullable private final MasterSecret masterSecret;
 
@@ -49,165 +58,173 @@ public class TextSecurePreKeyStore implements PreKeyStore, SignedPreKeyStore {
 
   @Override
   public PreKeyRecord loadPreKey(int preKeyId) throws InvalidKeyIdException {
-    synchronized (FILE_LOCK) {
-      try {
-        return new PreKeyRecord(loadSerializedRecord(getPreKeyFile(preKeyId)));
-      } catch (IOException | InvalidMessageException e) {
-        Log.w(TAG, e);
-        throw new InvalidKeyIdException(e);
-      }
-    }
+    PreKeyRecord record = getDatabase().getPreKey(preKeyId);
+
+    if (record == null) throw new InvalidKeyIdException("No such prekey: " + preKeyId);
+    else                return record;
   }
 
   @Override
   public SignedPreKeyRecord loadSignedPreKey(int signedPreKeyId) throws InvalidKeyIdException {
-    synchronized (FILE_LOCK) {
-      try {
-        return new SignedPreKeyRecord(loadSerializedRecord(getSignedPreKeyFile(signedPreKeyId)));
-      } catch (IOException | InvalidMessageException e) {
-        Log.w(TAG, e);
-        throw new InvalidKeyIdException(e);
-      }
-    }
+    SignedPreKeyRecord record = getDatabase().getSignedPreKey(signedPreKeyId);
+
+    if (record == null) throw new InvalidKeyIdException("No such signed prekey: " + signedPreKeyId);
+    else                return record;
   }
 
   @Override
   public List<SignedPreKeyRecord> loadSignedPreKeys() {
-    synchronized (FILE_LOCK) {
-      File                     directory = getSignedPreKeyDirectory();
-      List<SignedPreKeyRecord> results   = new LinkedList<>();
-
-      for (File signedPreKeyFile : directory.listFiles()) {
-        try {
-          if (!"index.dat".equals(signedPreKeyFile.getName())) {
-            results.add(new SignedPreKeyRecord(loadSerializedRecord(signedPreKeyFile)));
-          }
-        } catch (IOException | InvalidMessageException e) {
-          Log.w(TAG, e);
-        }
-      }
-
-      return results;
-    }
+    return getDatabase().getAllSignedPreKeys();
   }
 
   @Override
   public void storePreKey(int preKeyId, PreKeyRecord record) {
-    synchronized (FILE_LOCK) {
-      try {
-        storeSerializedRecord(getPreKeyFile(preKeyId), record.serialize());
-      } catch (IOException e) {
-        throw new AssertionError(e);
-      }
-    }
+    storePreKeys(Collections.singletonList(record));
+  }
+
+  /**
+   * Stores a whole batch of prekeys in one transaction.
+   */
+  public void storePreKeys(@NonNull Collection<PreKeyRecord> records) {
+    getDatabase().insertPreKeys(records);
   }
 
   @Override
   public void storeSignedPreKey(int signedPreKeyId, SignedPreKeyRecord record) {
-    synchronized (FILE_LOCK) {
-      try {
-        storeSerializedRecord(getSignedPreKeyFile(signedPreKeyId), record.serialize());
-      } catch (IOException e) {
-        throw new AssertionError(e);
-      }
-    }
+    getDatabase().insertSignedPreKey(record);
   }
 
   @Override
   public boolean containsPreKey(int preKeyId) {
-    File record = getPreKeyFile(preKeyId);
-    return record.exists();
+    return getDatabase().containsPreKey(preKeyId);
   }
 
   @Override
   public boolean containsSignedPreKey(int signedPreKeyId) {
-    File record = getSignedPreKeyFile(signedPreKeyId);
-    return record.exists();
+    return getDatabase().containsSignedPreKey(signedPreKeyId);
   }
 
-
   @Override
   public void removePreKey(int preKeyId) {
-    File record = getPreKeyFile(preKeyId);
-    record.delete();
+    getDatabase().removePreKey(preKeyId);
   }
 
   @Override
   public void removeSignedPreKey(int signedPreKeyId) {
-    File record = getSignedPreKeyFile(signedPreKeyId);
-    record.delete();
+    removeSignedPreKeys(Collections.singletonList(signedPreKeyId));
+  }
+
+  public void removeSignedPreKeys(@NonNull Collection<Integer> signedPreKeyIds) {
+    getDatabase().removeSignedPreKeys(signedPreKeyIds);
   }
 
   public void migrateRecords() {
     synchronized (FILE_LOCK) {
-      File preKeyRecords = getPreKeyDirectory();
+      importLegacyRecords(DatabaseFactory.getPreKeyDatabase(context));
+      legacyRecordsImported = true;
+    }
+  }
+
+  private PreKeyDatabase getDatabase() {
+    PreKeyDatabase database = DatabaseFactory.getPreKeyDatabase(context);
 
-      for (File preKeyRecord : preKeyRecords.listFiles()) {
-        try {
-          int          preKeyId = Integer.parseInt(preKeyRecord.getName());
-          PreKeyRecord record   = loadPreKey(preKeyId);
+    if (!legacyRecordsImported) {
+      synchronized (FILE_LOCK) {
+        if (!legacyRecordsImported) {
+          importLegacyRecords(database);
+          legacyRecordsImported = true;
+        }
+      }
+    }
+
+    return database;
+  }
 
-          storePreKey(preKeyId, record);
-        } catch (InvalidKeyIdException | NumberFormatException e) {
-          Log.w(TAG, e);
+  private void importLegacyRecords(PreKeyDatabase database) {
+    List<PreKeyRecord> preKeys  = new LinkedList<>();
+    List<File>         imported = new LinkedList<>();
+
+    for (File preKeyFile : getLegacyRecordFiles(getPreKeyDirectory())) {
+      try {
+        byte[] serialized = loadSerializedRecord(preKeyFile);
+
+        if (serialized != null) {
+          preKeys.add(new PreKeyRecord(serialized));
+          imported.add(preKeyFile);
         }
+      } catch (IOException | InvalidMessageException e) {
+        Log.w(TAG, e);
       }
+    }
 
-      File signedPreKeyRecords = getSignedPreKeyDirectory();
+    database.insertPreKeys(preKeys);
 
-      for (File signedPreKeyRecord : signedPreKeyRecords.listFiles()) {
-        try {
-          int                signedPreKeyId = Integer.parseInt(signedPreKeyRecord.getName());
-          SignedPreKeyRecord record         = loadSignedPreKey(signedPreKeyId);
+    for (File signedPreKeyFile : getLegacyRecordFiles(getSignedPreKeyDirectory())) {
+      try {
+        byte[] serialized = loadSerializedRecord(signedPreKeyFile);
 
-          storeSignedPreKey(signedPreKeyId, record);
-        } catch (InvalidKeyIdException | NumberFormatException e) {
-          Log.w(TAG, e);
+        if (serialized != null) {
+          database.insertSignedPreKey(new SignedPreKeyRecord(serialized));
+          imported.add(signedPreKeyFile);
         }
+      } catch (IOException | InvalidMessageException e) {
+        Log.w(TAG, e);
       }
     }
-  }
 
-  private byte[] loadSerializedRecord(File recordFile)
-      throws IOException, InvalidMessageException
-  {
-    FileInputStream fin           = new FileInputStream(recordFile);
-    int             recordVersion = readInteger(fin);
+    for (File file : imported) {
+      if (!file.delete()) Log.w(TAG, "Couldn't delete " + file);
+    }
 
-    if (recordVersion > CURRENT_VERSION_MARKER) {
-      throw new AssertionError("Invalid version: " + recordVersion);
+    if (!imported.isEmpty()) {
+      Log.w(TAG, "Moved " + imported.size() + " prekey files into the database");
     }
+  }
 
-    byte[] serializedRecord = readBlob(fin);
+  private List<File> getLegacyRecordFiles(File directory) {
+    List<File> results = new LinkedList<>();
+    File[]     files   = directory.listFiles();
 
-    if (recordVersion < PLAINTEXT_VERSION && masterSecret != null) {
-      MasterCipher masterCipher = new MasterCipher(masterSecret);
-      serializedRecord = masterCipher.decryptBytes(serializedRecord);
-    } else if (recordVersion < PLAINTEXT_VERSION) {
-      throw new AssertionError("Migration didn't happen!");
+    if (files != null) {
+      for (File file : files) {
+        if (!INDEX_FILE_NAME.equals(file.getName())) {
+          results.add(file);
+        }
+      }
     }
 
-    fin.close();
-    return serializedRecord;
+    return results;
   }
 
-  private void storeSerializedRecord(File file, byte[] serialized) throws IOException {
-    RandomAccessFile recordFile = new RandomAccessFile(file, "rw");
-    FileChannel      out        = recordFile.getChannel();
+  /**
+   * @return the record, or null if it's still encrypted and we don't have the master secret.
+   */
+  private @Nullable byte[] loadSerializedRecord(File recordFile)
+      throws IOException, InvalidMessageException
+  {
+    FileInputStream fin = new FileInputStream(recordFile);
 
-    out.position(0);
-    writeInteger(CURRENT_VERSION_MARKER, out);
-    writeBlob(serialized, out);
-    out.truncate(out.position());
-    recordFile.close();
-  }
+    try {
+      int recordVersion = readInteger(fin);
 
-  private File getPreKeyFile(int preKeyId) {
-    return new File(getPreKeyDirectory(), String.valueOf(preKeyId));
-  }
+      if (recordVersion > CURRENT_VERSION_MARKER) {
+        throw new AssertionError("Invalid version: " + recordVersion);
+      }
+
+      byte[] serializedRecord = readBlob(fin);
 
-  private File getSignedPreKeyFile(int signedPreKeyId) {
-    return new File(getSignedPreKeyDirectory(), String.valueOf(signedPreKeyId));
+      if (recordVersion < PLAINTEXT_VERSION && masterSecret != null) {
+        MasterCipher masterCipher = new MasterCipher(masterSecret);
+        serializedRecord = masterCipher.decryptBytes(serializedRecord);
+      } else if (recordVersion < PLAINTEXT_VERSION) {
+        Log.w(TAG, "Record needs migration: " + recordFile.getName());
+        return null;
+      }
+
+      return serializedRecord;
+    } finally {
+      fin.close();
+    }
   }
 
   private File getPreKeyDirectory() {
@@ -238,22 +255,10 @@ public class TextSecurePreKeyStore implements PreKeyStore, SignedPreKeyStore {
     return blobBytes;
   }
 
-  private void writeBlob(byte[] blobBytes, FileChannel out) throws IOException {
-    writeInteger(blobBytes.length, out);
-    out.write(ByteBuffer.wrap(blobBytes));
-  }
-
   private int readInteger(FileInputStream in) throws IOException {
     byte[] integer = new byte[4];
     in.read(integer, 0, integer.length);
     return Conversions.byteArrayToInt(integer);
   }
 
-  private void writeInteger(int value, FileChannel out) throws IOException {
-    byte[] valueBytes = Conversions.intToByteArray(value);
-    out.write(ByteBuffer.wrap(valueBytes));
-  }
-
-
-
 }
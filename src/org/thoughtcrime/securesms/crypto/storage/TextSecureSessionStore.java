@@ -17,13 +17,12 @@ import org.whispersystems.libsignal.state.SessionState;
 import org.whispersystems.libsignal.state.SessionStore;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.util.LinkedList;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.List;
 
 import static org.whispersystems.libsignal.state.StorageProtos.SessionStructure;
@@ -32,13 +31,17 @@ public class TextSecureSessionStore implements SessionStore {
 
   private static final String TAG                   = TextSecureSessionStore.class.getSimpleName();
   private static final String SESSIONS_DIRECTORY_V2 = "sessions-v2";
-  private static final Object FILE_LOCK             = new Object();
+  private static final Object CACHE_LOCK            = new Object();
+  private static final int    CACHE_SIZE            = 1000;
 
   private static final int SINGLE_STATE_VERSION   = 1;
   private static final int ARCHIVE_STATES_VERSION = 2;
   private static final int PLAINTEXT_VERSION      = 3;
   private static final int CURRENT_VERSION        = 3;
 
+  private static WriteBackFileCache cache;
+  private static SessionDeviceIndex deviceIndex;
+
   @NonNull  private final Context      context;
   @Nullable private final MasterSecret masterSecret;
 
@@ -53,68 +56,72 @@ public class TextSecureSessionStore implements SessionStore {
 
   @Override
   public SessionRecord loadSession(@NonNull SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
-      try {
-        FileInputStream in            = new FileInputStream(getSessionFile(address));
-        int             versionMarker = readInteger(in);
-
-        if (versionMarker > CURRENT_VERSION) {
-          throw new AssertionError("Unknown version: " + versionMarker);
-        }
-
-        byte[] serialized = readBlob(in);
-        in.close();
-
-        if (versionMarker < PLAINTEXT_VERSION && masterSecret != null) {
-          serialized = new MasterCipher(masterSecret).decryptBytes(serialized);
-        } else if (versionMarker < PLAINTEXT_VERSION) {
-          throw new AssertionError("Session didn't get migrated: (" + versionMarker + "," + address + ")");
-        }
-
-        if (versionMarker == SINGLE_STATE_VERSION) {
-          SessionStructure sessionStructure = SessionStructure.parseFrom(serialized);
-          SessionState     sessionState     = new SessionState(sessionStructure);
-          return new SessionRecord(sessionState);
-        } else if (versionMarker >= ARCHIVE_STATES_VERSION) {
-          return new SessionRecord(serialized);
-        } else {
-          throw new AssertionError("Unknown version: " + versionMarker);
-        }
-      } catch (InvalidMessageException | IOException e) {
+    try {
+      byte[] contents = getCache(context).read(getSessionName(address));
+
+      if (contents == null) {
         Log.w(TAG, "No existing session information found.");
         return new SessionRecord();
       }
+
+      ByteArrayInputStream in            = new ByteArrayInputStream(contents);
+      int                  versionMarker = readInteger(in);
+
+      if (versionMarker > CURRENT_VERSION) {
+        throw new AssertionError("Unknown version: " + versionMarker);
+      }
+
+      byte[] serialized = readBlob(in);
+
+      if (versionMarker < PLAINTEXT_VERSION && masterSecret != null) {
+        serialized = new MasterCipher(masterSecret).decryptBytes(serialized);
+      } else if (versionMarker < PLAINTEXT_VERSION) {
+        throw new AssertionError("Session didn't get migrated: (" + versionMarker + "," + address + ")");
+      }
+
+      if (versionMarker == SINGLE_STATE_VERSION) {
+        SessionStructure sessionStructure = SessionStructure.parseFrom(serialized);
+        SessionState     sessionState     = new SessionState(sessionStructure);
+        return new SessionRecord(sessionState);
+      } else if (versionMarker >= ARCHIVE_STATES_VERSION) {
+        return new SessionRecord(serialized);
+      } else {
+        throw new AssertionError("Unknown version: " + versionMarker);
+      }
+    } catch (InvalidMessageException | IOException e) {
+      Log.w(TAG, "No existing session information found.");
+      return new SessionRecord();
     }
   }
 
   @Override
   public void storeSession(@NonNull SignalProtocolAddress address, @NonNull SessionRecord record) {
-    synchronized (FILE_LOCK) {
-      try {
-        RandomAccessFile sessionFile  = new RandomAccessFile(getSessionFile(address), "rw");
-        FileChannel      out          = sessionFile.getChannel();
-
-        out.position(0);
-        writeInteger(CURRENT_VERSION, out);
-        writeBlob(record.serialize(), out);
-        out.truncate(out.position());
-
-        sessionFile.close();
-      } catch (IOException e) {
-        throw new AssertionError(e);
-      }
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+      writeInteger(CURRENT_VERSION, out);
+      writeBlob(record.serialize(), out);
+
+      long recipientId = getRecipientId(address.getName());
+
+      getCache(context).write(getSessionName(recipientId, address.getDeviceId()), out.toByteArray());
+      getDeviceIndex(context).add(recipientId, address.getDeviceId());
+    } catch (IOException e) {
+      throw new AssertionError(e);
     }
   }
 
   @Override
   public boolean containsSession(SignalProtocolAddress address) {
-    return getSessionFile(address).exists() &&
-           loadSession(address).getSessionState().hasSenderChain();
+    return loadSession(address).getSessionState().hasSenderChain();
   }
 
   @Override
   public void deleteSession(SignalProtocolAddress address) {
-    getSessionFile(address).delete();
+    long recipientId = getRecipientId(address.getName());
+
+    getCache(context).delete(getSessionName(recipientId, address.getDeviceId()));
+    getDeviceIndex(context).remove(recipientId, address.getDeviceId());
   }
 
   @Override
@@ -130,51 +137,66 @@ public class TextSecureSessionStore implements SessionStore {
 
   @Override
   public List<Integer> getSubDeviceSessions(String name) {
-    long          recipientId = RecipientFactory.getRecipientsFromString(context, name, true).getPrimaryRecipient().getRecipientId();
-    List<Integer> results     = new LinkedList<>();
-    File          parent      = getSessionDirectory();
-    String[]      children    = parent.list();
-
-    if (children == null) return results;
-
-    for (String child : children) {
-      try {
-        String[] parts              = child.split("[.]", 2);
-        long     sessionRecipientId = Long.parseLong(parts[0]);
-
-        if (sessionRecipientId == recipientId && parts.length > 1) {
-          results.add(Integer.parseInt(parts[1]));
-        }
-      } catch (NumberFormatException e) {
-        Log.w(TAG, e);
+    return getDeviceIndex(context).getSubDevices(getRecipientId(name));
+  }
+
+  /**
+   * Writes every session stored so far to disk before returning. Anything acknowledged to the
+   * server, or deleted from the local queue, after advancing a session has to call this first,
+   * or a crash could leave the message decryptable only with a session that was never saved.
+   *
+   * @throws IOException if some session couldn't be written. It stays queued for the flusher.
+   */
+  public void flush() throws IOException {
+    if (!getCache(context).flush()) {
+      throw new IOException("Some sessions couldn't be written");
+    }
+  }
+
+  public void migrateSessions() {
+    WriteBackFileCache cache = getCache(context);
+
+    for (String session : cache.list()) {
+      if (SessionDeviceIndex.INDEX_NAME.equals(session)) continue;
+
+      SignalProtocolAddress address = getAddressName(session);
+
+      if (address != null) {
+        SessionRecord sessionRecord = loadSession(address);
+        storeSession(address, sessionRecord);
       }
     }
 
-    return results;
+    cache.flush();
   }
 
-  public void migrateSessions() {
-    synchronized (FILE_LOCK) {
-      File directory = getSessionDirectory();
-
-      for (File session : directory.listFiles()) {
-        if (session.isFile()) {
-          SignalProtocolAddress address = getAddressName(session);
-
-          if (address != null) {
-            SessionRecord sessionRecord = loadSession(address);
-            storeSession(address, sessionRecord);
-          }
-        }
+  /**
+   * Session files are read through, and written back by, one cache for the whole process,
+   * since every message encrypted or decrypted loads and stores its session.
+   */
+  private static WriteBackFileCache getCache(Context context) {
+    synchronized (CACHE_LOCK) {
+      if (cache == null) {
+        cache = new WriteBackFileCache(getSessionDirectory(context), CACHE_SIZE);
       }
+
+      return cache;
     }
   }
 
-  private File getSessionFile(SignalProtocolAddress address) {
-    return new File(getSessionDirectory(), getSessionName(address));
+  private static SessionDeviceIndex getDeviceIndex(Context context) {
+    WriteBackFileCache sessionCache = getCache(context);
+
+    synchronized (CACHE_LOCK) {
+      if (deviceIndex == null) {
+        deviceIndex = new SessionDeviceIndex(sessionCache);
+      }
+
+      return deviceIndex;
+    }
   }
 
-  private File getSessionDirectory() {
+  private static File getSessionDirectory(Context context) {
     File directory = new File(context.getFilesDir(), SESSIONS_DIRECTORY_V2);
 
     if (!directory.exists()) {
@@ -187,17 +209,20 @@ public class TextSecureSessionStore implements SessionStore {
   }
 
   private String getSessionName(SignalProtocolAddress axolotlAddress) {
-    Recipient recipient   = RecipientFactory.getRecipientsFromString(context, axolotlAddress.getName(), true)
-                                          .getPrimaryRecipient();
-    long      recipientId = recipient.getRecipientId();
-    int       deviceId    = axolotlAddress.getDeviceId();
+    return getSessionName(getRecipientId(axolotlAddress.getName()), axolotlAddress.getDeviceId());
+  }
 
+  private static String getSessionName(long recipientId, int deviceId) {
     return recipientId + (deviceId == SignalServiceAddress.DEFAULT_DEVICE_ID ? "" : "." + deviceId);
   }
 
-  private @Nullable SignalProtocolAddress getAddressName(File sessionFile) {
+  private long getRecipientId(String name) {
+    return RecipientFactory.getRecipientsFromString(context, name, true).getPrimaryRecipient().getRecipientId();
+  }
+
+  private @Nullable SignalProtocolAddress getAddressName(String sessionName) {
     try {
-      String[]  parts     = sessionFile.getName().split("[.]");
+      String[]  parts     = sessionName.split("[.]");
       Recipient recipient = RecipientFactory.getRecipientForId(context, Integer.valueOf(parts[0]), true);
 
       int deviceId;
@@ -212,7 +237,7 @@ public class TextSecureSessionStore implements SessionStore {
     }
   }
 
-  private byte[] readBlob(FileInputStream in) throws IOException {
+  private byte[] readBlob(InputStream in) throws IOException {
     int length       = readInteger(in);
     byte[] blobBytes = new byte[length];
 
@@ -220,20 +245,20 @@ public class TextSecureSessionStore implements SessionStore {
     return blobBytes;
   }
 
-  private void writeBlob(byte[] blobBytes, FileChannel out) throws IOException {
+  private void writeBlob(byte[] blobBytes, OutputStream out) throws IOException {
     writeInteger(blobBytes.length, out);
-    out.write(ByteBuffer.wrap(blobBytes));
+    out.write(blobBytes);
   }
 
-  private int readInteger(FileInputStream in) throws IOException {
+  private int readInteger(InputStream in) throws IOException {
     byte[] integer = new byte[4];
     in.read(integer, 0, integer.length);
     return Conversions.byteArrayToInt(integer);
   }
 
-  private void writeInteger(int value, FileChannel out) throws IOException {
+  private void writeInteger(int value, OutputStream out) throws IOException {
     byte[] valueBytes = Conversions.intToByteArray(value);
-    out.write(ByteBuffer.wrap(valueBytes));
+    out.write(valueBytes);
   }
 
 }
@@ -0,0 +1,302 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.util.ConcurrentLRUCache;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the contents of the small files in one directory, and writes changes back to disk
+ * from a background thread.
+ *
+ * A write is visible to readers immediately, and reaches disk within about
+ * {@link #FLUSH_DELAY_MILLIS}, along with every other write made in the meantime. Each
+ * file is written to a temporary file and synced before being renamed into place, so a
+ * crash leaves either the old or the new contents. Files are locked in stripes by name,
+ * so reads and writes of different files don't wait on each other.
+ */
+class WriteBackFileCache {
+
+  private static final String TAG = WriteBackFileCache.class.getSimpleName();
+
+  private static final long   FLUSH_DELAY_MILLIS       = 50;
+  private static final long   MAX_RETRY_DELAY_MILLIS   = 30 * 1000;
+  private static final int    LOCK_STRIPES             = 64;
+  private static final int    STATS_INTERVAL           = 100;
+  private static final String TEMP_SUFFIX              = ".tmp";
+
+  private static final byte[] MISSING = new byte[0];
+
+  private final File                               directory;
+  private final ConcurrentLRUCache<String, byte[]> clean;
+  private final ConcurrentHashMap<String, byte[]>  dirty     = new ConcurrentHashMap<>();
+  private final Object[]                           locks     = new Object[LOCK_STRIPES];
+  private final Object                             flushLock = new Object();
+
+  private final AtomicLong flushes      = new AtomicLong();
+  private final AtomicLong flushedFiles = new AtomicLong();
+  private final AtomicLong flushTime    = new AtomicLong();
+  private final AtomicLong maxFlushTime = new AtomicLong();
+
+  WriteBackFileCache(@NonNull File directory, int maxSize) {
+    this.directory = directory;
+    this.clean     = new ConcurrentLRUCache<>(maxSize);
+
+    for (int i=0;i<locks.length;i++) {
+      locks[i] = new Object();
+    }
+
+    deleteTemporaryFiles();
+
+    Thread flusher = new Thread(new Flusher(), "WriteBackFileCache-" + directory.getName());
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * @return the file's contents, or null if it doesn't exist.
+   */
+  @Nullable byte[] read(@NonNull String name) throws IOException {
+    byte[] contents = getCached(name);
+    if (contents != null) return contents == MISSING ? null : contents;
+
+    synchronized (getLock(name)) {
+      contents = getCached(name);
+
+      if (contents == null) {
+        contents = readFile(new File(directory, name));
+        clean.put(name, contents);
+      }
+    }
+
+    return contents == MISSING ? null : contents;
+  }
+
+  void write(@NonNull String name, @NonNull byte[] contents) {
+    update(name, contents);
+  }
+
+  void delete(@NonNull String name) {
+    update(name, MISSING);
+  }
+
+  boolean exists(@NonNull String name) throws IOException {
+    return read(name) != null;
+  }
+
+  /**
+   * The names of the files in the directory, including writes that haven't reached disk yet,
+   * and excluding deletes that haven't.
+   */
+  @NonNull Set<String> list() {
+    Set<String> names    = new HashSet<>();
+    String[]    children = directory.list();
+
+    if (children != null) {
+      for (String child : children) {
+        if (!child.endsWith(TEMP_SUFFIX)) names.add(child);
+      }
+    }
+
+    for (Map.Entry<String, byte[]> entry : dirty.entrySet()) {
+      if (entry.getValue() == MISSING) names.remove(entry.getKey());
+      else                             names.add(entry.getKey());
+    }
+
+    return names;
+  }
+
+  /**
+   * Writes everything changed so far to disk before returning.
+   *
+   * @return false if some file couldn't be written, and is still waiting for a later flush.
+   */
+  boolean flush() {
+    synchronized (flushLock) {
+      if (dirty.isEmpty()) return true;
+
+      boolean complete = true;
+
+      long                startTime = System.currentTimeMillis();
+      Map<String, byte[]> pending   = new HashMap<>(dirty);
+      Map<String, File>   written   = new HashMap<>();
+
+      for (Map.Entry<String, byte[]> entry : pending.entrySet()) {
+        if (entry.getValue() == MISSING) continue;
+
+        File temporary = new File(directory, entry.getKey() + TEMP_SUFFIX);
+
+        try {
+          writeFile(temporary, entry.getValue());
+          written.put(entry.getKey(), temporary);
+        } catch (IOException e) {
+          Log.w(TAG, e);
+          temporary.delete();
+        }
+      }
+
+      for (Map.Entry<String, byte[]> entry : pending.entrySet()) {
+        String name = entry.getKey();
+
+        synchronized (getLock(name)) {
+          File    temporary = written.get(name);
+          boolean current   = dirty.get(name) == entry.getValue();
+
+          if (!current) {
+            if (temporary != null) temporary.delete();
+            continue;
+          }
+
+          if (entry.getValue() == MISSING) {
+            File file = new File(directory, name);
+
+            if (file.exists() && !file.delete()) {
+              complete = false;
+              continue;
+            }
+          } else if (temporary == null || !temporary.renameTo(new File(directory, name))) {
+            complete = false;
+            continue;
+          }
+
+          dirty.remove(name, entry.getValue());
+        }
+      }
+
+      recordFlush(pending.size(), System.currentTimeMillis() - startTime);
+      return complete;
+    }
+  }
+
+  @Override
+  public String toString() {
+    long count = flushes.get();
+
+    return "cache: " + clean + ", flushes: " + count + ", files flushed: " + flushedFiles.get() +
+           ", average flush: " + (count == 0 ? 0 : flushTime.get() / count) + "ms" +
+           ", longest flush: " + maxFlushTime.get() + "ms";
+  }
+
+  private void update(@NonNull String name, @NonNull byte[] contents) {
+    synchronized (getLock(name)) {
+      dirty.put(name, contents);
+      clean.put(name, contents);
+    }
+
+    synchronized (dirty) {
+      dirty.notifyAll();
+    }
+  }
+
+  /**
+   * Writes go to both maps, so a clean entry is never older than a dirty one. The dirty map
+   * only matters once the clean entry has been evicted.
+   */
+  private @Nullable byte[] getCached(@NonNull String name) {
+    byte[] contents = clean.get(name);
+    if (contents != null) return contents;
+
+    return dirty.get(name);
+  }
+
+  private Object getLock(@NonNull String name) {
+    return locks[(name.hashCode() & 0x7fffffff) % locks.length];
+  }
+
+  private void recordFlush(int files, long time) {
+    long count = flushes.incrementAndGet();
+
+    flushedFiles.addAndGet(files);
+    flushTime.addAndGet(time);
+
+    long max = maxFlushTime.get();
+    while (time > max && !maxFlushTime.compareAndSet(max, time)) {
+      max = maxFlushTime.get();
+    }
+
+    if (count % STATS_INTERVAL == 0) {
+      Log.w(TAG, directory.getName() + ": " + this);
+    }
+  }
+
+  private void deleteTemporaryFiles() {
+    File[] children = directory.listFiles();
+
+    if (children != null) {
+      for (File child : children) {
+        if (child.getName().endsWith(TEMP_SUFFIX) && !child.delete()) {
+          Log.w(TAG, "Couldn't delete " + child.getName());
+        }
+      }
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    if (!file.exists()) return MISSING;
+
+    FileInputStream in = new FileInputStream(file);
+
+    try {
+      return Util.readFully(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void writeFile(File file, byte[] contents) throws IOException {
+    FileOutputStream out = new FileOutputStream(file);
+
+    try {
+      out.write(contents);
+      out.flush();
+      out.getFD().sync();
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Flushes shortly after each write. A flush that leaves files behind, say because the disk
+   * is full, is retried with an exponentially growing delay instead of spinning.
+   */
+  private class Flusher implements Runnable {
+    @Override
+    public void run() {
+      long delay = FLUSH_DELAY_MILLIS;
+
+      while (true) {
+        try {
+          synchronized (dirty) {
+            while (dirty.isEmpty()) dirty.wait();
+          }
+
+          Thread.sleep(delay);
+
+          if (flush()) {
+            delay = FLUSH_DELAY_MILLIS;
+          } else {
+            delay = Math.min(delay * 2, MAX_RETRY_DELAY_MILLIS);
+            Log.w(TAG, "Flush incomplete, retrying in " + delay + "ms");
+          }
+        } catch (InterruptedException e) {
+          Log.w(TAG, e);
+        } catch (RuntimeException e) {
+          Log.w(TAG, e);
+        }
+      }
+    }
+  }
+}
@@ -36,8 +36,9 @@ import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.attachments.Attachment;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.crypto.ChunkedEncryptingPartOutputStream;
+import org.thoughtcrime.securesms.crypto.DecryptingPartChannel;
 import org.thoughtcrime.securesms.crypto.DecryptingPartInputStream;
-import org.thoughtcrime.securesms.crypto.EncryptingPartOutputStream;
 import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.crypto.MasterSecretUnion;
@@ -55,8 +56,12 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -199,6 +204,39 @@ public class AttachmentDatabase extends Database {
     }
   }
 
+  /**
+   * The attachments of several messages in one query, by message id.
+   */
+  public @NonNull Map<Long, List<DatabaseAttachment>> getAttachmentsForMessages(@Nullable MasterSecret masterSecret, long[] mmsIds) {
+    SQLiteDatabase                      database = databaseHelper.getReadableDatabase();
+    Map<Long, List<DatabaseAttachment>> results  = new HashMap<>();
+    Cursor                              cursor   = null;
+
+    if (mmsIds.length == 0) return results;
+
+    try {
+      cursor = database.query(TABLE_NAME, PROJECTION, MMS_ID + " IN (" + Util.join(mmsIds, ",") + ")", null,
+                              null, null, MMS_ID + ", " + ROW_ID);
+
+      while (cursor != null && cursor.moveToNext()) {
+        DatabaseAttachment       attachment  = getAttachment(masterSecret, cursor);
+        List<DatabaseAttachment> attachments = results.get(attachment.getMmsId());
+
+        if (attachments == null) {
+          attachments = new LinkedList<>();
+          results.put(attachment.getMmsId(), attachments);
+        }
+
+        attachments.add(attachment);
+      }
+
+      return results;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public @NonNull List<DatabaseAttachment> getPendingAttachments(@NonNull MasterSecret masterSecret) {
     final SQLiteDatabase           database    = databaseHelper.getReadableDatabase();
     final List<DatabaseAttachment> attachments = new LinkedList<>();
@@ -245,6 +283,50 @@ public class AttachmentDatabase extends Database {
     database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId + ""});
   }
 
+  /*package*/ void deleteAttachmentRowsForMessages(long[] mmsIds) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.delete(TABLE_NAME, MMS_ID + " IN (" + Util.join(mmsIds, ",") + ")", null);
+  }
+
+  /**
+   * Deletes the files in the parts directory that no attachment row refers to. Files modified
+   * after modifiedBefore are left alone, since an attachment's file is written before its row
+   * points to it.
+   */
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  public int deleteOrphanedFiles(long modifiedBefore) {
+    File[] files = context.getDir("parts", Context.MODE_PRIVATE).listFiles();
+    if (files == null || files.length == 0) return 0;
+
+    SQLiteDatabase database   = databaseHelper.getReadableDatabase();
+    Set<String>    referenced = new HashSet<>();
+    Cursor         cursor     = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL},
+                              DATA + " IS NOT NULL OR " + THUMBNAIL + " IS NOT NULL",
+                              null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        if (!cursor.isNull(0)) referenced.add(cursor.getString(0));
+        if (!cursor.isNull(1)) referenced.add(cursor.getString(1));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    int deleted = 0;
+
+    for (File file : files) {
+      if (!referenced.contains(file.getAbsolutePath()) && file.lastModified() < modifiedBefore && file.delete()) {
+        deleted++;
+      }
+    }
+
+    return deleted;
+  }
+
   @SuppressWarnings("ResultOfMethodCallIgnored")
   public void deleteAllAttachments() {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
@@ -346,7 +428,7 @@ public class AttachmentDatabase extends Database {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
 
     if (fileName != null) {
-      fileName = new MasterCipher(masterSecret).encryptBody(fileName);
+      fileName = MasterCipher.getThreadLocalInstance(masterSecret).encryptBody(fileName);
     }
 
     ContentValues contentValues = new ContentValues(1);
@@ -455,7 +537,7 @@ public class AttachmentDatabase extends Database {
       throws MmsException
   {
     try {
-      OutputStream out = new EncryptingPartOutputStream(destination, masterSecret);
+      OutputStream out = new ChunkedEncryptingPartOutputStream(destination, masterSecret);
       return Util.copy(in, out);
     } catch (IOException e) {
       throw new MmsException(e);
@@ -468,7 +550,7 @@ public class AttachmentDatabase extends Database {
 
     if (masterSecret != null && !TextUtils.isEmpty(encryptedFileName)) {
       try {
-        fileName = new MasterCipher(masterSecret).decryptBody(encryptedFileName);
+        fileName = MasterCipher.getThreadLocalInstance(masterSecret).decryptBody(encryptedFileName);
       } catch (InvalidMessageException e) {
         Log.w(TAG, e);
       }
@@ -508,7 +590,7 @@ public class AttachmentDatabase extends Database {
     }
 
     if (masterSecret.getMasterSecret().isPresent() && !TextUtils.isEmpty(attachment.getFileName())) {
-      fileName = new MasterCipher(masterSecret.getMasterSecret().get()).encryptBody(attachment.getFileName());
+      fileName = MasterCipher.getThreadLocalInstance(masterSecret.getMasterSecret().get()).encryptBody(attachment.getFileName());
     }
 
     ContentValues contentValues = new ContentValues();
@@ -554,6 +636,66 @@ public class AttachmentDatabase extends Database {
   }
 
 
+  /**
+   * Re-encrypts the data and thumbnail files of up to {@code limit} attachments with row ids
+   * greater than {@code afterRowId} that are still in the legacy CBC format, so that they
+   * can be read with random access. Returns the last row id examined, or -1 once there are
+   * no more attachments.
+   */
+  public long migrateLegacyAttachmentFiles(@NonNull MasterSecret masterSecret, long afterRowId, int limit) {
+    SQLiteDatabase       database  = databaseHelper.getReadableDatabase();
+    List<AttachmentFile> files     = new LinkedList<>();
+    long                 lastRowId = -1;
+    Cursor               cursor    = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {ROW_ID, DATA, THUMBNAIL}, ROW_ID + " > ?",
+                              new String[] {String.valueOf(afterRowId)}, null, null, ROW_ID + " ASC", String.valueOf(limit));
+
+      while (cursor != null && cursor.moveToNext()) {
+        lastRowId = cursor.getLong(0);
+
+        if (!cursor.isNull(1)) files.add(new AttachmentFile(lastRowId, DATA, cursor.getString(1)));
+        if (!cursor.isNull(2)) files.add(new AttachmentFile(lastRowId, THUMBNAIL, cursor.getString(2)));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    for (AttachmentFile file : files) {
+      migrateLegacyAttachmentFile(masterSecret, file);
+    }
+
+    return lastRowId;
+  }
+
+  private void migrateLegacyAttachmentFile(@NonNull MasterSecret masterSecret, @NonNull AttachmentFile file) {
+    File legacyFile   = new File(file.path);
+    File migratedFile = null;
+
+    try {
+      if (!legacyFile.exists() || DecryptingPartChannel.isChunked(legacyFile)) {
+        return;
+      }
+
+      migratedFile = File.createTempFile("part", ".mms", context.getDir("parts", Context.MODE_PRIVATE));
+      setAttachmentData(masterSecret, migratedFile, DecryptingPartInputStream.createFor(masterSecret, legacyFile));
+
+      ContentValues values = new ContentValues(1);
+      values.put(file.column, migratedFile.getAbsolutePath());
+
+      int updated = databaseHelper.getWritableDatabase().update(TABLE_NAME, values, ROW_ID + " = ? AND " + file.column + " = ?",
+                                                                new String[] {String.valueOf(file.rowId), file.path});
+
+      if (updated > 0) legacyFile.delete();
+      else             migratedFile.delete();
+    } catch (IOException | MmsException e) {
+      Log.w(TAG, e);
+      if (migratedFile != null) migratedFile.delete();
+    }
+  }
+
   @VisibleForTesting
   protected void updateAttachmentThumbnail(MasterSecret masterSecret, AttachmentId attachmentId, InputStream in, float aspectRatio)
       throws MmsException
@@ -648,4 +790,16 @@ public class AttachmentDatabase extends Database {
       return new ThumbnailData(bitmap);
     }
   }
+
+  private static class AttachmentFile {
+    private final long   rowId;
+    private final String column;
+    private final String path;
+
+    private AttachmentFile(long rowId, String column, String path) {
+      this.rowId  = rowId;
+      this.column = column;
+      this.path   = path;
+    }
+  }
 }
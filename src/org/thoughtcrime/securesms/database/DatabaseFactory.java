@@ -78,7 +78,10 @@ public class DatabaseFactory {
   private static final int INTRODUCED_DOCUMENTS                            = 32;
   private static final int INTRODUCED_FAST_PREFLIGHT                       = 33;
   private static final int INTRODUCED_VOICE_NOTES                          = 34;
-  private static final int DATABASE_VERSION                                = 34;
+  private static final int INTRODUCED_TIMELINE_VERSION                     = 35;
+  private static final int INTRODUCED_SEARCH_INDEX_VERSION                 = 36;
+  private static final int INTRODUCED_PREKEY_DATABASE_VERSION              = 37;
+  private static final int DATABASE_VERSION                                = 37;
 
   private static final String DATABASE_NAME    = "messages.db";
   private static final Object lock             = new Object();
@@ -96,12 +99,15 @@ public class DatabaseFactory {
   private final CanonicalAddressDatabase address;
   private final MmsAddressDatabase mmsAddress;
   private final MmsSmsDatabase mmsSmsDatabase;
+  private final TimelineDatabase timelineDatabase;
+  private final SearchDatabase searchDatabase;
   private final IdentityDatabase identityDatabase;
   private final DraftDatabase draftDatabase;
   private final PushDatabase pushDatabase;
   private final GroupDatabase groupDatabase;
   private final RecipientPreferenceDatabase recipientPreferenceDatabase;
   private final ContactsDatabase contactsDatabase;
+  private final PreKeyDatabase preKeyDatabase;
 
   public static DatabaseFactory getInstance(Context context) {
     synchronized (lock) {
@@ -116,6 +122,14 @@ public class DatabaseFactory {
     return getInstance(context).mmsSmsDatabase;
   }
 
+  public static TimelineDatabase getTimelineDatabase(Context context) {
+    return getInstance(context).timelineDatabase;
+  }
+
+  public static SearchDatabase getSearchDatabase(Context context) {
+    return getInstance(context).searchDatabase;
+  }
+
   public static ThreadDatabase getThreadDatabase(Context context) {
     return getInstance(context).thread;
   }
@@ -172,6 +186,10 @@ public class DatabaseFactory {
     return getInstance(context).contactsDatabase;
   }
 
+  public static PreKeyDatabase getPreKeyDatabase(Context context) {
+    return getInstance(context).preKeyDatabase;
+  }
+
   private DatabaseFactory(Context context) {
     this.databaseHelper              = new DatabaseHelper(context, DATABASE_NAME, null, DATABASE_VERSION);
     this.sms                         = new SmsDatabase(context, databaseHelper);
@@ -183,12 +201,15 @@ public class DatabaseFactory {
     this.address                     = CanonicalAddressDatabase.getInstance(context);
     this.mmsAddress                  = new MmsAddressDatabase(context, databaseHelper);
     this.mmsSmsDatabase              = new MmsSmsDatabase(context, databaseHelper);
+    this.timelineDatabase            = new TimelineDatabase(context, databaseHelper);
+    this.searchDatabase              = new SearchDatabase(context, databaseHelper);
     this.identityDatabase            = new IdentityDatabase(context, databaseHelper);
     this.draftDatabase               = new DraftDatabase(context, databaseHelper);
     this.pushDatabase                = new PushDatabase(context, databaseHelper);
     this.groupDatabase               = new GroupDatabase(context, databaseHelper);
     this.recipientPreferenceDatabase = new RecipientPreferenceDatabase(context, databaseHelper);
     this.contactsDatabase            = new ContactsDatabase(context);
+    this.preKeyDatabase              = new PreKeyDatabase(context, databaseHelper);
   }
 
   public void reset(Context context) {
@@ -202,11 +223,14 @@ public class DatabaseFactory {
     this.thread.reset(databaseHelper);
     this.mmsAddress.reset(databaseHelper);
     this.mmsSmsDatabase.reset(databaseHelper);
+    this.timelineDatabase.reset(databaseHelper);
+    this.searchDatabase.reset(databaseHelper);
     this.identityDatabase.reset(databaseHelper);
     this.draftDatabase.reset(databaseHelper);
     this.pushDatabase.reset(databaseHelper);
     this.groupDatabase.reset(databaseHelper);
     this.recipientPreferenceDatabase.reset(databaseHelper);
+    this.preKeyDatabase.reset(databaseHelper);
     old.close();
 
     this.address.reset(context);
@@ -518,6 +542,10 @@ public class DatabaseFactory {
       db.execSQL(PushDatabase.CREATE_TABLE);
       db.execSQL(GroupDatabase.CREATE_TABLE);
       db.execSQL(RecipientPreferenceDatabase.CREATE_TABLE);
+      db.execSQL(TimelineDatabase.CREATE_TABLE);
+      db.execSQL(SearchDatabase.CREATE_TABLE);
+      db.execSQL(PreKeyDatabase.CREATE_PREKEY_TABLE);
+      db.execSQL(PreKeyDatabase.CREATE_SIGNED_PREKEY_TABLE);
 
       executeStatements(db, SmsDatabase.CREATE_INDEXS);
       executeStatements(db, MmsDatabase.CREATE_INDEXS);
@@ -526,6 +554,11 @@ public class DatabaseFactory {
       executeStatements(db, MmsAddressDatabase.CREATE_INDEXS);
       executeStatements(db, DraftDatabase.CREATE_INDEXS);
       executeStatements(db, GroupDatabase.CREATE_INDEXS);
+      executeStatements(db, TimelineDatabase.CREATE_INDEXS);
+      executeStatements(db, SearchDatabase.CREATE_INDEXS);
+
+      executeStatements(db, TimelineDatabase.CREATE_TRIGGERS);
+      executeStatements(db, SearchDatabase.CREATE_TRIGGERS);
     }
 
     @Override
@@ -867,6 +900,30 @@ public class DatabaseFactory {
         db.execSQL("ALTER TABLE part ADD COLUMN voice_note INTEGER DEFAULT 0");
       }
 
+      if (oldVersion < INTRODUCED_TIMELINE_VERSION) {
+        db.execSQL("CREATE TABLE timeline (_id INTEGER PRIMARY KEY, thread_id INTEGER, date_received INTEGER, transport TEXT, message_id INTEGER, attachment_id INTEGER DEFAULT NULL);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS timeline_thread_date_index ON timeline (thread_id, date_received);");
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS timeline_message_index ON timeline (transport, message_id);");
+
+        TimelineDatabase.rebuild(db);
+        executeStatements(db, TimelineDatabase.CREATE_TRIGGERS);
+      }
+
+      if (oldVersion < INTRODUCED_SEARCH_INDEX_VERSION) {
+        db.execSQL("CREATE TABLE search_index (term INTEGER, transport TEXT, message_id INTEGER, date_received INTEGER);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS search_index_term_date_index ON search_index (term, date_received);");
+        db.execSQL("CREATE INDEX IF NOT EXISTS search_index_message_index ON search_index (transport, message_id, term);");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS search_index_timeline_delete AFTER DELETE ON timeline BEGIN " +
+                   "DELETE FROM search_index WHERE transport = OLD.transport AND message_id = OLD.message_id; END;");
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS search_index_timeline_update AFTER UPDATE OF date_received ON timeline BEGIN " +
+                   "UPDATE search_index SET date_received = NEW.date_received WHERE transport = OLD.transport AND message_id = OLD.message_id; END;");
+      }
+
+      if (oldVersion < INTRODUCED_PREKEY_DATABASE_VERSION) {
+        db.execSQL("CREATE TABLE prekeys (key_id INTEGER PRIMARY KEY, record BLOB NOT NULL);");
+        db.execSQL("CREATE TABLE signed_prekeys (key_id INTEGER PRIMARY KEY, timestamp INTEGER, record BLOB NOT NULL);");
+      }
+
       db.setTransactionSuccessful();
       db.endTransaction();
     }
@@ -0,0 +1,166 @@
+package org.thoughtcrime.securesms.database;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache of decrypted message bodies, shared by the SMS and MMS readers.
+ *
+ * Entries are keyed by transport and message id, so a lookup never has to hash the
+ * ciphertext. Since message ids can be reused after the newest row in a table is
+ * deleted, each entry also remembers the length and the tail (the MAC) of the
+ * ciphertext it was decrypted from, and a lookup only hits if those still match.
+ *
+ * The cache is split into independently locked shards, each of which is an LRU
+ * bounded by the approximate number of bytes its plaintexts occupy.
+ */
+public class DecryptedBodyCache {
+
+  private static final int  SHARD_COUNT        = 16;
+  private static final long MAX_BYTES          = 2 * 1024 * 1024;
+  private static final int  FINGERPRINT_LENGTH = 24;
+  private static final int  ENTRY_OVERHEAD     = 96;
+
+  private static final DecryptedBodyCache instance = new DecryptedBodyCache(MAX_BYTES);
+
+  private final Shard[]    shards;
+  private final AtomicLong hits      = new AtomicLong();
+  private final AtomicLong misses    = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public static DecryptedBodyCache getInstance() {
+    return instance;
+  }
+
+  DecryptedBodyCache(long maxBytes) {
+    this.shards = new Shard[SHARD_COUNT];
+
+    for (int i=0;i<shards.length;i++) {
+      shards[i] = new Shard(maxBytes / SHARD_COUNT);
+    }
+  }
+
+  public @Nullable String get(@NonNull String transport, long messageId, @NonNull String ciphertext) {
+    long  key   = getKey(transport, messageId);
+    Entry entry = getShard(key).get(key);
+
+    if (entry != null && entry.matches(ciphertext)) {
+      hits.incrementAndGet();
+      return entry.plaintext;
+    }
+
+    misses.incrementAndGet();
+    return null;
+  }
+
+  public void put(@NonNull String transport, long messageId, @NonNull String ciphertext, @NonNull String plaintext) {
+    long key = getKey(transport, messageId);
+    getShard(key).put(key, new Entry(ciphertext, plaintext));
+  }
+
+  public void remove(@NonNull String transport, long messageId) {
+    long key = getKey(transport, messageId);
+    getShard(key).remove(key);
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  public long getSizeInBytes() {
+    long size = 0;
+
+    for (Shard shard : shards) {
+      size += shard.getSizeInBytes();
+    }
+
+    return size;
+  }
+
+  private static long getKey(@NonNull String transport, long messageId) {
+    return (messageId << 1) | (MmsSmsDatabase.MMS_TRANSPORT.equals(transport) ? 1 : 0);
+  }
+
+  private Shard getShard(long key) {
+    int hash = (int)(key ^ (key >>> 32));
+    hash ^= (hash >>> 16);
+
+    return shards[(hash & 0x7fffffff) % shards.length];
+  }
+
+  private class Shard {
+
+    private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long                       maxBytes;
+    private       long                       sizeInBytes;
+
+    Shard(long maxBytes) {
+      this.maxBytes = maxBytes;
+    }
+
+    synchronized Entry get(long key) {
+      return entries.get(key);
+    }
+
+    synchronized void put(long key, Entry entry) {
+      Entry previous = entries.put(key, entry);
+
+      if (previous != null) sizeInBytes -= previous.size;
+      sizeInBytes += entry.size;
+
+      Iterator<Map.Entry<Long, Entry>> iterator = entries.entrySet().iterator();
+
+      while (sizeInBytes > maxBytes && iterator.hasNext()) {
+        Entry eldest = iterator.next().getValue();
+
+        if (eldest == entry) break;
+
+        iterator.remove();
+        sizeInBytes -= eldest.size;
+        evictions.incrementAndGet();
+      }
+    }
+
+    synchronized void remove(long key) {
+      Entry previous = entries.remove(key);
+      if (previous != null) sizeInBytes -= previous.size;
+    }
+
+    synchronized long getSizeInBytes() {
+      return sizeInBytes;
+    }
+  }
+
+  private static class Entry {
+
+    private final int    ciphertextLength;
+    private final String fingerprint;
+    private final String plaintext;
+    private final int    size;
+
+    Entry(@NonNull String ciphertext, @NonNull String plaintext) {
+      this.ciphertextLength = ciphertext.length();
+      this.fingerprint      = ciphertext.substring(Math.max(0, ciphertextLength - FINGERPRINT_LENGTH));
+      this.plaintext        = plaintext;
+      this.size             = ENTRY_OVERHEAD + 2 * (plaintext.length() + fingerprint.length());
+    }
+
+    boolean matches(@NonNull String ciphertext) {
+      return ciphertext.length() == ciphertextLength &&
+             ciphertext.regionMatches(ciphertextLength - fingerprint.length(), fingerprint, 0, fingerprint.length());
+    }
+  }
+}
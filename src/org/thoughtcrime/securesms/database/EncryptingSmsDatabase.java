@@ -33,17 +33,15 @@ import org.thoughtcrime.securesms.database.model.DisplayRecord;
 import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
 import org.thoughtcrime.securesms.sms.IncomingTextMessage;
 import org.thoughtcrime.securesms.sms.OutgoingTextMessage;
-import org.thoughtcrime.securesms.util.LRUCache;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.util.guava.Optional;
 
-import java.lang.ref.SoftReference;
-import java.util.Collections;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 public class EncryptingSmsDatabase extends SmsDatabase {
 
-  private final PlaintextCache plaintextCache = new PlaintextCache();
+  private final DecryptedBodyCache plaintextCache = DecryptedBodyCache.getInstance();
 
   public EncryptingSmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -55,28 +53,33 @@ public class EncryptingSmsDatabase extends SmsDatabase {
   }
 
   private String getEncryptedBody(MasterSecret masterSecret, String body) {
-    MasterCipher bodyCipher = new MasterCipher(masterSecret);
-    String ciphertext       = bodyCipher.encryptBody(body);
-    plaintextCache.put(ciphertext, body);
-
-    return ciphertext;
+    MasterCipher bodyCipher = MasterCipher.getThreadLocalInstance(masterSecret);
+    return bodyCipher.encryptBody(body);
   }
 
   public long insertMessageOutbox(MasterSecretUnion masterSecret, long threadId,
                                   OutgoingTextMessage message, boolean forceSms,
                                   long timestamp, InsertListener insertListener)
   {
-    long type = Types.BASE_SENDING_TYPE;
+    long   type      = Types.BASE_SENDING_TYPE;
+    String plaintext = message.getMessageBody();
 
     if (masterSecret.getMasterSecret().isPresent()) {
-      message = message.withBody(getEncryptedBody(masterSecret.getMasterSecret().get(), message.getMessageBody()));
+      message = message.withBody(getEncryptedBody(masterSecret.getMasterSecret().get(), plaintext));
       type   |= Types.ENCRYPTION_SYMMETRIC_BIT;
     } else {
-      message = message.withBody(getAsymmetricEncryptedBody(masterSecret.getAsymmetricMasterSecret().get(), message.getMessageBody()));
+      message = message.withBody(getAsymmetricEncryptedBody(masterSecret.getAsymmetricMasterSecret().get(), plaintext));
       type   |= Types.ENCRYPTION_ASYMMETRIC_BIT;
     }
 
-    return insertMessageOutbox(threadId, message, type, forceSms, timestamp, insertListener);
+    long messageId = insertMessageOutbox(threadId, message, type, forceSms, timestamp, insertListener);
+
+    if (Types.isSymmetricEncryption(type)) {
+      plaintextCache.put(MmsSmsDatabase.SMS_TRANSPORT, messageId, message.getMessageBody(), plaintext);
+      indexBody(masterSecret.getMasterSecret().get(), messageId, plaintext);
+    }
+
+    return messageId;
   }
 
   public Optional<InsertResult> insertMessageInbox(@NonNull MasterSecretUnion masterSecret,
@@ -92,11 +95,57 @@ public class EncryptingSmsDatabase extends SmsDatabase {
   private Optional<InsertResult> insertMessageInbox(@NonNull MasterSecret masterSecret,
                                                     @NonNull IncomingTextMessage message)
   {
-    long type = Types.BASE_INBOX_TYPE | Types.ENCRYPTION_SYMMETRIC_BIT;
+    long   type      = Types.BASE_INBOX_TYPE | Types.ENCRYPTION_SYMMETRIC_BIT;
+    String plaintext = message.getMessageBody();
 
-    message = message.withMessageBody(getEncryptedBody(masterSecret, message.getMessageBody()));
+    message = message.withMessageBody(getEncryptedBody(masterSecret, plaintext));
 
-    return insertMessageInbox(message, type);
+    Optional<InsertResult> result = insertMessageInbox(message, type);
+
+    if (result.isPresent()) {
+      plaintextCache.put(MmsSmsDatabase.SMS_TRANSPORT, result.get().getMessageId(), message.getMessageBody(), plaintext);
+      indexBody(masterSecret, result.get().getMessageId(), plaintext);
+    }
+
+    return result;
+  }
+
+  /**
+   * Encrypts and inserts a batch of incoming messages in a single transaction.
+   *
+   * @see SmsDatabase#insertMessagesInbox(List, long)
+   */
+  public List<Optional<InsertResult>> insertMessagesInbox(@NonNull MasterSecretUnion masterSecret,
+                                                          @NonNull List<IncomingTextMessage> messages)
+  {
+    List<IncomingTextMessage> encrypted = new ArrayList<>(messages.size());
+    long                      type      = Types.BASE_INBOX_TYPE;
+
+    for (IncomingTextMessage message : messages) {
+      if (masterSecret.getMasterSecret().isPresent()) {
+        encrypted.add(message.withMessageBody(getEncryptedBody(masterSecret.getMasterSecret().get(), message.getMessageBody())));
+      } else {
+        encrypted.add(message.withMessageBody(getAsymmetricEncryptedBody(masterSecret.getAsymmetricMasterSecret().get(), message.getMessageBody())));
+      }
+    }
+
+    if (masterSecret.getMasterSecret().isPresent()) type |= Types.ENCRYPTION_SYMMETRIC_BIT;
+    else                                            type |= Types.ENCRYPTION_ASYMMETRIC_BIT;
+
+    List<Optional<InsertResult>> results = insertMessagesInbox(encrypted, type);
+
+    if (masterSecret.getMasterSecret().isPresent()) {
+      for (int i=0;i<results.size();i++) {
+        if (results.get(i).isPresent()) {
+          long messageId = results.get(i).get().getMessageId();
+
+          plaintextCache.put(MmsSmsDatabase.SMS_TRANSPORT, messageId, encrypted.get(i).getMessageBody(), messages.get(i).getMessageBody());
+          indexBody(masterSecret.getMasterSecret().get(), messageId, messages.get(i).getMessageBody());
+        }
+      }
+    }
+
+    return results;
   }
 
   private Optional<InsertResult> insertMessageInbox(@NonNull AsymmetricMasterSecret masterSecret,
@@ -116,31 +165,43 @@ public class EncryptingSmsDatabase extends SmsDatabase {
     if (masterSecret.getMasterSecret().isPresent()) {
       encryptedBody = getEncryptedBody(masterSecret.getMasterSecret().get(), body);
       type         |= Types.ENCRYPTION_SYMMETRIC_BIT;
+      plaintextCache.put(MmsSmsDatabase.SMS_TRANSPORT, messageId, encryptedBody, body);
     } else {
       encryptedBody = getAsymmetricEncryptedBody(masterSecret.getAsymmetricMasterSecret().get(), body);
       type         |= Types.ENCRYPTION_ASYMMETRIC_BIT;
     }
 
-    return updateMessageBodyAndType(messageId, encryptedBody, Types.TOTAL_MASK, type);
+    Pair<Long, Long> result = updateMessageBodyAndType(messageId, encryptedBody, Types.TOTAL_MASK, type);
+
+    if (masterSecret.getMasterSecret().isPresent()) {
+      indexBody(masterSecret.getMasterSecret().get(), messageId, body);
+    }
+
+    return result;
   }
 
   public void updateMessageBody(MasterSecretUnion masterSecret, long messageId, String body) {
-    long type;
+    String plaintext = body;
+    long   type;
 
     if (masterSecret.getMasterSecret().isPresent()) {
       body = getEncryptedBody(masterSecret.getMasterSecret().get(), body);
       type = Types.ENCRYPTION_SYMMETRIC_BIT;
+      plaintextCache.put(MmsSmsDatabase.SMS_TRANSPORT, messageId, body, plaintext);
     } else {
       body = getAsymmetricEncryptedBody(masterSecret.getAsymmetricMasterSecret().get(), body);
       type = Types.ENCRYPTION_ASYMMETRIC_BIT;
     }
 
     updateMessageBodyAndType(messageId, body, Types.ENCRYPTION_MASK, type);
+
+    if (masterSecret.getMasterSecret().isPresent()) {
+      indexBody(masterSecret.getMasterSecret().get(), messageId, plaintext);
+    }
   }
 
-  public Reader getMessages(MasterSecret masterSecret, int skip, int limit) {
-    Cursor cursor = super.getMessages(skip, limit);
-    return new DecryptingReader(masterSecret, cursor);
+  private void indexBody(MasterSecret masterSecret, long messageId, String plaintext) {
+    DatabaseFactory.getSearchDatabase(context).indexMessage(masterSecret, MmsSmsDatabase.SMS_TRANSPORT, messageId, plaintext);
   }
 
   public Reader getOutgoingMessages(MasterSecret masterSecret) {
@@ -170,15 +231,16 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
   public class DecryptingReader extends SmsDatabase.Reader {
 
-    private final MasterCipher masterCipher;
+    private final MasterSecret masterSecret;
 
     public DecryptingReader(MasterSecret masterSecret, Cursor cursor) {
       super(cursor);
-      this.masterCipher = new MasterCipher(masterSecret);
+      this.masterSecret = masterSecret;
     }
 
     @Override
     protected DisplayRecord.Body getBody(Cursor cursor) {
+      long messageId    = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.ID));
       long type         = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.TYPE));
       String ciphertext = cursor.getString(cursor.getColumnIndexOrThrow(SmsDatabase.BODY));
 
@@ -188,14 +250,14 @@ public class EncryptingSmsDatabase extends SmsDatabase {
 
       try {
         if (SmsDatabase.Types.isSymmetricEncryption(type)) {
-          String plaintext = plaintextCache.get(ciphertext);
+          String plaintext = plaintextCache.get(MmsSmsDatabase.SMS_TRANSPORT, messageId, ciphertext);
 
           if (plaintext != null)
             return new DisplayRecord.Body(plaintext, true);
 
-          plaintext = masterCipher.decryptBody(ciphertext);
+          plaintext = MasterCipher.getThreadLocalInstance(masterSecret).decryptBody(ciphertext);
 
-          plaintextCache.put(ciphertext, plaintext);
+          plaintextCache.put(MmsSmsDatabase.SMS_TRANSPORT, messageId, ciphertext, plaintext);
           return new DisplayRecord.Body(plaintext, true);
         } else {
           return new DisplayRecord.Body(ciphertext, true);
@@ -206,28 +268,4 @@ public class EncryptingSmsDatabase extends SmsDatabase {
       }
     }
   }
-
-  private static class PlaintextCache {
-    private static final int MAX_CACHE_SIZE = 2000;
-    private static final Map<String, SoftReference<String>> decryptedBodyCache =
-        Collections.synchronizedMap(new LRUCache<String, SoftReference<String>>(MAX_CACHE_SIZE));
-
-    public void put(String ciphertext, String plaintext) {
-      decryptedBodyCache.put(ciphertext, new SoftReference<String>(plaintext));
-    }
-
-    public String get(String ciphertext) {
-      SoftReference<String> plaintextReference = decryptedBodyCache.get(ciphertext);
-
-      if (plaintextReference != null) {
-        String plaintext = plaintextReference.get();
-
-        if (plaintext != null) {
-          return plaintext;
-        }
-      }
-
-      return null;
-    }
-  }
 }
@@ -154,7 +154,7 @@ public class GroupDatabase extends Database {
                                                 GROUP_ID + " = ?",
                                                 new String[] {GroupUtil.getEncodedId(groupId)});
 
-    RecipientFactory.clearCache(context);
+    clearRecipientCache(groupId);
     notifyDatabaseListeners();
     notifyConversationListListeners();
   }
@@ -165,7 +165,7 @@ public class GroupDatabase extends Database {
     databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues, GROUP_ID +  " = ?",
                                                 new String[] {GroupUtil.getEncodedId(groupId)});
 
-    RecipientFactory.clearCache(context);
+    clearRecipientCache(groupId);
     notifyDatabaseListeners();
   }
 
@@ -180,7 +180,7 @@ public class GroupDatabase extends Database {
     databaseHelper.getWritableDatabase().update(TABLE_NAME, contentValues, GROUP_ID +  " = ?",
                                                 new String[] {GroupUtil.getEncodedId(groupId)});
 
-    RecipientFactory.clearCache(context);
+    clearRecipientCache(groupId);
     notifyDatabaseListeners();
   }
 
@@ -224,6 +224,25 @@ public class GroupDatabase extends Database {
     }
   }
 
+  /**
+   * @return true if the number is listed as a member of any group we know about.
+   */
+  public boolean isMemberOfAnyGroup(@NonNull String number) {
+    Cursor cursor = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {GROUP_ID},
+                                                          "',' || " + MEMBERS + " || ',' LIKE ?",
+                                                          new String[] {"%," + number + ",%"},
+                                                          null, null, null, "1");
+
+      return cursor != null && cursor.moveToFirst();
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public boolean isActive(byte[] id) {
     GroupRecord record = getGroup(id);
     return record != null && record.isActive();
@@ -252,6 +271,13 @@ public class GroupDatabase extends Database {
     context.sendBroadcast(intent);
   }
 
+  private void clearRecipientCache(byte[] groupId) {
+    long recipientId = CanonicalAddressDatabase.getInstance(context)
+                                               .getCanonicalAddressId(GroupUtil.getEncodedId(groupId));
+
+    RecipientFactory.clearCache(context, recipientId);
+  }
+
   public static class Reader {
 
     private final Cursor cursor;
@@ -0,0 +1,47 @@
+package org.thoughtcrime.securesms.database;
+
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the thread bookkeeping for a batch of incoming messages that are being
+ * written in a single transaction, so each affected thread is updated once when the
+ * batch is applied rather than once per message.
+ */
+class IncomingBatch {
+
+  private final Map<Long, ThreadChanges> threads = new HashMap<>();
+
+  void addMessage(long threadId, boolean updatesSnippet, boolean unread) {
+    ThreadChanges changes = threads.get(threadId);
+
+    if (changes == null) {
+      changes = new ThreadChanges();
+      threads.put(threadId, changes);
+    }
+
+    changes.messageCount++;
+    changes.updatesSnippet |= updatesSnippet;
+    changes.unread         |= unread;
+  }
+
+  void applyTo(@NonNull ThreadDatabase threadDatabase) {
+    for (Map.Entry<Long, ThreadChanges> entry : threads.entrySet()) {
+      ThreadChanges changes = entry.getValue();
+      threadDatabase.updateForInserts(entry.getKey(), changes.messageCount, changes.updatesSnippet, changes.unread);
+    }
+  }
+
+  @NonNull Set<Long> getThreadIds() {
+    return threads.keySet();
+  }
+
+  private static class ThreadChanges {
+    private int     messageCount;
+    private boolean updatesSnippet;
+    private boolean unread;
+  }
+}
@@ -12,13 +12,16 @@ import org.thoughtcrime.securesms.database.documents.Document;
 import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatch;
 import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatchList;
 import org.thoughtcrime.securesms.util.JsonUtils;
+import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libsignal.IdentityKey;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 public abstract class MessagingDatabase extends Database implements MmsSmsColumns {
 
@@ -30,6 +33,27 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
 
   protected abstract String getTableName();
 
+  protected Set<Long> getThreadIdsForMessages(long[] messageIds) {
+    SQLiteDatabase db        = databaseHelper.getReadableDatabase();
+    Set<Long>      threadIds = new HashSet<>();
+    Cursor         cursor    = null;
+
+    try {
+      cursor = db.query(true, getTableName(), new String[] {THREAD_ID},
+                        ID + " IN (" + Util.join(messageIds, ",") + ")",
+                        null, null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        threadIds.add(cursor.getLong(0));
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    return threadIds;
+  }
+
   public void setMismatchedIdentity(long messageId, final long recipientId, final IdentityKey identityKey) {
     List<IdentityKeyMismatch> items = new ArrayList<IdentityKeyMismatch>() {{
       add(new IdentityKeyMismatch(recipientId, identityKey));
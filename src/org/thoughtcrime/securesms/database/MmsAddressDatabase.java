@@ -28,9 +28,12 @@ import com.google.android.mms.pdu_alt.PduHeaders;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.thoughtcrime.securesms.recipients.Recipients;
+import org.thoughtcrime.securesms.util.Util;
 
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 public class MmsAddressDatabase extends Database {
 
@@ -109,6 +112,48 @@ public class MmsAddressDatabase extends Database {
     return new MmsAddresses(from, to, cc, bcc);
   }
 
+  /**
+   * The addresses of several messages in one query, by message id.
+   */
+  public Map<Long, MmsAddresses> getAddressesForIds(long[] messageIds) {
+    Map<Long, MmsAddresses> results = new HashMap<>();
+
+    if (messageIds.length == 0) return results;
+
+    SQLiteDatabase          database = databaseHelper.getReadableDatabase();
+    Map<Long, String>       from     = new HashMap<>();
+    Map<Long, List<String>> to       = new HashMap<>();
+    Map<Long, List<String>> cc       = new HashMap<>();
+    Map<Long, List<String>> bcc      = new HashMap<>();
+    Cursor                  cursor   = null;
+
+    try {
+      cursor = database.query(TABLE_NAME, new String[] {MMS_ID, TYPE, ADDRESS},
+                              MMS_ID + " IN (" + Util.join(messageIds, ",") + ")", null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        long   messageId = cursor.getLong(0);
+        long   type      = cursor.getLong(1);
+        String address   = cursor.getString(2);
+
+        if (type == PduHeaders.FROM) from.put(messageId, address);
+        if (type == PduHeaders.TO)   getList(to, messageId).add(address);
+        if (type == PduHeaders.CC)   getList(cc, messageId).add(address);
+        if (type == PduHeaders.BCC)  getList(bcc, messageId).add(address);
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+
+    for (long messageId : messageIds) {
+      results.put(messageId, new MmsAddresses(from.get(messageId), getList(to, messageId),
+                                              getList(cc, messageId), getList(bcc, messageId)));
+    }
+
+    return results;
+  }
+
   public List<String> getAddressesListForId(long messageId) {
     List<String> results   = new LinkedList<>();
     MmsAddresses addresses = getAddressesForId(messageId);
@@ -139,11 +184,27 @@ public class MmsAddressDatabase extends Database {
   }
 
 
+  private List<String> getList(Map<Long, List<String>> lists, long messageId) {
+    List<String> list = lists.get(messageId);
+
+    if (list == null) {
+      list = new LinkedList<>();
+      lists.put(messageId, list);
+    }
+
+    return list;
+  }
+
   public void deleteAddressesForId(long messageId) {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {messageId+""});
   }
 
+  public void deleteAddressesForIds(long[] messageIds) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.delete(TABLE_NAME, MMS_ID + " IN (" + Util.join(messageIds, ",") + ")", null);
+  }
+
   public void deleteAllAddresses() {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, null, null);
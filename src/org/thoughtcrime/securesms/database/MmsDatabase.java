@@ -49,6 +49,7 @@ import org.thoughtcrime.securesms.database.model.DisplayRecord;
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.NotificationMmsMessageRecord;
+import org.thoughtcrime.securesms.jobs.PriorityJobManager;
 import org.thoughtcrime.securesms.jobs.TrimThreadJob;
 import org.thoughtcrime.securesms.mms.IncomingMediaMessage;
 import org.thoughtcrime.securesms.mms.OutgoingExpirationUpdateMessage;
@@ -65,7 +66,6 @@ import org.thoughtcrime.securesms.util.JsonUtils;
 import org.thoughtcrime.securesms.util.ServiceUtil;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.thoughtcrime.securesms.util.Util;
-import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.util.InvalidNumberException;
@@ -73,6 +73,7 @@ import org.whispersystems.signalservice.api.util.InvalidNumberException;
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -155,8 +156,9 @@ public class MmsDatabase extends MessagingDatabase {
 
   private static final String RAW_ID_WHERE = TABLE_NAME + "._id = ?";
 
-  private final EarlyReceiptCache earlyReceiptCache = new EarlyReceiptCache();
-  private final JobManager jobManager;
+  private final EarlyReceiptCache  earlyReceiptCache = new EarlyReceiptCache();
+  private final DecryptedBodyCache plaintextCache    = DecryptedBodyCache.getInstance();
+  private final PriorityJobManager jobManager;
 
   public MmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -168,6 +170,36 @@ public class MmsDatabase extends MessagingDatabase {
     return TABLE_NAME;
   }
 
+  /**
+   * Counts the messages whose box has none of the excludedTypes bits set, and that aren't of
+   * the excluded PDU message type.
+   */
+  int getMessageCountExcluding(long excludedTypes, int excludedMessageType) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {"COUNT(*)"},
+                        "(" + MESSAGE_BOX + " & " + excludedTypes + ") = 0 AND (" +
+                        MESSAGE_TYPE + " IS NULL OR " + MESSAGE_TYPE + " != " + excludedMessageType + ")",
+                        null, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) return cursor.getInt(0);
+      else                                        return 0;
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+
+  /**
+   * The messages themselves, without their attachments, in id order starting after the given id.
+   */
+  Cursor getMessagesAfter(long afterId, int limit) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.query(TABLE_NAME, new String[] {ID, DATE_RECEIVED, MESSAGE_BOX, READ, BODY, ADDRESS, MESSAGE_TYPE},
+                    ID + " > ?", new String[] {String.valueOf(afterId)}, null, null, ID, String.valueOf(limit));
+  }
+
   public int getMessageCountForThread(long threadId) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
     Cursor cursor     = null;
@@ -229,7 +261,7 @@ public class MmsDatabase extends MessagingDatabase {
                                  RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + 1 WHERE " + ID + " = ?",
                                  new String[] {String.valueOf(id)});
 
-                DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+                DatabaseFactory.getThreadDatabase(context).updateForChange(threadId, MmsSmsDatabase.MMS_TRANSPORT, id, false);
                 notifyConversationListeners(threadId);
               }
             } catch (InvalidNumberException e) {
@@ -368,7 +400,7 @@ public class MmsDatabase extends MessagingDatabase {
                    " WHERE " + ID + " = ?", new String[] {id + ""});
 
     if (threadId.isPresent()) {
-      DatabaseFactory.getThreadDatabase(context).update(threadId.get(), false);
+      DatabaseFactory.getThreadDatabase(context).updateForChange(threadId.get(), MmsSmsDatabase.MMS_TRANSPORT, id, false);
     }
   }
 
@@ -463,6 +495,18 @@ public class MmsDatabase extends MessagingDatabase {
     notifyConversationListeners(threadId);
   }
 
+  public void markExpireStarted(long[] messageIds, long startedTimestamp) {
+    ContentValues contentValues = new ContentValues();
+    contentValues.put(EXPIRE_STARTED, startedTimestamp);
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.update(TABLE_NAME, contentValues, ID + " IN (" + Util.join(messageIds, ",") + ")", null);
+
+    for (long threadId : getThreadIdsForMessages(messageIds)) {
+      notifyConversationListeners(threadId);
+    }
+  }
+
   public void markAsNotified(long id) {
     SQLiteDatabase database      = databaseHelper.getWritableDatabase();
     ContentValues  contentValues = new ContentValues();
@@ -473,9 +517,13 @@ public class MmsDatabase extends MessagingDatabase {
   }
 
   public List<MarkedMessageInfo> setMessagesRead(long threadId) {
+    return setMessagesRead(new long[] {threadId});
+  }
+
+  public List<MarkedMessageInfo> setMessagesRead(long[] threadIds) {
     SQLiteDatabase          database  = databaseHelper.getWritableDatabase();
-    String                  where     = THREAD_ID + " = ? AND " + READ + " = 0";
-    String[]                selection = new String[]{String.valueOf(threadId)};
+    String                  where     = THREAD_ID + " IN (" + Util.join(threadIds, ",") + ") AND " + READ + " = 0";
+    String[]                selection = null;
     List<MarkedMessageInfo> result    = new LinkedList<>();
     Cursor                  cursor    = null;
 
@@ -564,6 +612,8 @@ public class MmsDatabase extends MessagingDatabase {
   }
 
   public void updateMessageBody(MasterSecretUnion masterSecret, long messageId, String body) {
+    String plaintext = body;
+
     body = getEncryptedBody(masterSecret, body);
 
     long type;
@@ -575,6 +625,10 @@ public class MmsDatabase extends MessagingDatabase {
     }
 
     updateMessageBodyAndType(messageId, body, Types.ENCRYPTION_MASK, type);
+
+    if (masterSecret.getMasterSecret().isPresent()) {
+      DatabaseFactory.getSearchDatabase(context).indexMessage(masterSecret.getMasterSecret().get(), MmsSmsDatabase.MMS_TRANSPORT, messageId, plaintext);
+    }
   }
 
   private Pair<Long, Long> updateMessageBodyAndType(long messageId, String body, long maskOff, long maskOn) {
@@ -586,7 +640,7 @@ public class MmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(messageId);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateForChange(threadId, MmsSmsDatabase.MMS_TRANSPORT, messageId, true);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
 
@@ -700,7 +754,8 @@ public class MmsDatabase extends MessagingDatabase {
                                 MmsAddresses.forTo(request.getRecipients().toNumberStringList(false)),
                                 request.getBody(),
                                 attachments,
-                                contentValues);
+                                contentValues,
+                                null);
     } catch (NoSuchMessageException e) {
       throw new MmsException(e);
     }
@@ -709,7 +764,8 @@ public class MmsDatabase extends MessagingDatabase {
   private Optional<InsertResult> insertMessageInbox(MasterSecretUnion masterSecret,
                                                     IncomingMediaMessage retrieved,
                                                     String contentLocation,
-                                                    long threadId, long mailbox)
+                                                    long threadId, long mailbox,
+                                                    @Nullable IncomingBatch batch)
       throws MmsException
   {
     if (threadId == -1 || retrieved.isGroupMessage()) {
@@ -749,11 +805,15 @@ public class MmsDatabase extends MessagingDatabase {
 
     long messageId = insertMediaMessage(masterSecret, retrieved.getAddresses(),
                                         retrieved.getBody(), retrieved.getAttachments(),
-                                        contentValues);
+                                        contentValues, batch);
+
+    if (batch != null) {
+      batch.addMessage(threadId, true, !Types.isExpirationTimerUpdate(mailbox));
+      return Optional.of(new InsertResult(messageId, threadId));
+    }
 
     if (!Types.isExpirationTimerUpdate(mailbox)) {
       DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
-      DatabaseFactory.getThreadDatabase(context).update(threadId, true);
     }
 
     notifyConversationListeners(threadId);
@@ -783,7 +843,7 @@ public class MmsDatabase extends MessagingDatabase {
       type |= Types.EXPIRATION_TIMER_UPDATE_BIT;
     }
 
-    return insertMessageInbox(masterSecret, retrieved, contentLocation, threadId, type);
+    return insertMessageInbox(masterSecret, retrieved, contentLocation, threadId, type, null);
   }
 
   public Optional<InsertResult> insertSecureDecryptedMessageInbox(MasterSecretUnion masterSecret,
@@ -791,6 +851,51 @@ public class MmsDatabase extends MessagingDatabase {
                                                                   long threadId)
       throws MmsException
   {
+    return insertMessageInbox(masterSecret, retrieved, "", threadId, getSecureDecryptedType(masterSecret, retrieved), null);
+  }
+
+  /**
+   * Inserts a batch of decrypted incoming push messages in a single transaction. Each
+   * affected thread is updated once, and conversation listeners are notified once per
+   * thread, after the whole batch has been committed. If any message fails to insert,
+   * none of them are.
+   */
+  public List<Optional<InsertResult>> insertSecureDecryptedMessagesInbox(MasterSecretUnion masterSecret,
+                                                                         List<IncomingMediaMessage> messages)
+      throws MmsException
+  {
+    SQLiteDatabase               db        = databaseHelper.getWritableDatabase();
+    IncomingBatch                batch     = new IncomingBatch();
+    List<Optional<InsertResult>> results   = new ArrayList<>(messages.size());
+    long                         startTime = System.currentTimeMillis();
+
+    db.beginTransaction();
+
+    try {
+      for (IncomingMediaMessage message : messages) {
+        results.add(insertMessageInbox(masterSecret, message, "", -1, getSecureDecryptedType(masterSecret, message), batch));
+      }
+
+      batch.applyTo(DatabaseFactory.getThreadDatabase(context));
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    Log.w(TAG, "Inserted " + messages.size() + " messages into " + batch.getThreadIds().size() +
+               " threads in " + (System.currentTimeMillis() - startTime) + "ms");
+
+    notifyConversationListeners(batch.getThreadIds());
+    notifyConversationListListeners();
+
+    for (long threadId : batch.getThreadIds()) {
+      jobManager.add(new TrimThreadJob(context, threadId));
+    }
+
+    return results;
+  }
+
+  private long getSecureDecryptedType(MasterSecretUnion masterSecret, IncomingMediaMessage retrieved) {
     long type = Types.BASE_INBOX_TYPE | Types.SECURE_MESSAGE_BIT;
 
     if (masterSecret.getMasterSecret().isPresent()) {
@@ -807,7 +912,7 @@ public class MmsDatabase extends MessagingDatabase {
       type |= Types.EXPIRATION_TIMER_UPDATE_BIT;
     }
 
-    return insertMessageInbox(masterSecret, retrieved, "", threadId, type);
+    return type;
   }
 
   public Pair<Long, Long> insertMessageInbox(@NonNull NotificationInd notification, int subscriptionId) {
@@ -921,7 +1026,7 @@ public class MmsDatabase extends MessagingDatabase {
     contentValues.remove(ADDRESS);
 
     long messageId = insertMediaMessage(masterSecret, addresses, message.getBody(),
-                                        message.getAttachments(), contentValues);
+                                        message.getAttachments(), contentValues, null);
 
     if (insertListener != null) {
       insertListener.onComplete();
@@ -935,7 +1040,7 @@ public class MmsDatabase extends MessagingDatabase {
 
   private String getEncryptedBody(MasterSecretUnion masterSecret, String body) {
     if (masterSecret.getMasterSecret().isPresent()) {
-      return new MasterCipher(masterSecret.getMasterSecret().get()).encryptBody(body);
+      return MasterCipher.getThreadLocalInstance(masterSecret.getMasterSecret().get()).encryptBody(body);
     } else {
       return new AsymmetricMasterCipher(masterSecret.getAsymmetricMasterSecret().get()).encryptBody(body);
     }
@@ -946,7 +1051,7 @@ public class MmsDatabase extends MessagingDatabase {
   {
     try {
       if (!TextUtils.isEmpty(body) && Types.isSymmetricEncryption(outboxType)) {
-        MasterCipher masterCipher = new MasterCipher(masterSecret);
+        MasterCipher masterCipher = MasterCipher.getThreadLocalInstance(masterSecret);
         return masterCipher.decryptBody(body);
       } else {
         return body;
@@ -962,7 +1067,8 @@ public class MmsDatabase extends MessagingDatabase {
                                   @NonNull MmsAddresses addresses,
                                   @Nullable String body,
                                   @NonNull List<Attachment> attachments,
-                                  @NonNull ContentValues contentValues)
+                                  @NonNull ContentValues contentValues,
+                                  @Nullable IncomingBatch batch)
       throws MmsException
   {
     SQLiteDatabase     db              = databaseHelper.getWritableDatabase();
@@ -986,18 +1092,29 @@ public class MmsDatabase extends MessagingDatabase {
       addressDatabase.insertAddressesForId(messageId, addresses);
       partsDatabase.insertAttachmentsForMessage(masterSecret, messageId, attachments);
 
+      if (!TextUtils.isEmpty(body) && Types.isSymmetricEncryption(contentValues.getAsLong(MESSAGE_BOX))) {
+        plaintextCache.put(MmsSmsDatabase.MMS_TRANSPORT, messageId, contentValues.getAsString(BODY), body);
+        DatabaseFactory.getSearchDatabase(context).indexMessage(masterSecret.getMasterSecret().get(), MmsSmsDatabase.MMS_TRANSPORT, messageId, body);
+      }
+
+      if (batch == null) {
+        DatabaseFactory.getThreadDatabase(context).updateForInsert(contentValues.getAsLong(THREAD_ID), MmsSmsDatabase.MMS_TRANSPORT, messageId, true);
+      }
+
       db.setTransactionSuccessful();
       return messageId;
     } finally {
       db.endTransaction();
 
-      notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
-      DatabaseFactory.getThreadDatabase(context).update(contentValues.getAsLong(THREAD_ID), true);
+      if (batch == null) {
+        notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
+      }
     }
   }
 
   public boolean delete(long messageId) {
     long               threadId           = getThreadIdForMessage(messageId);
+    boolean            wasLatest          = DatabaseFactory.getTimelineDatabase(context).isLatestMessage(threadId, MmsSmsDatabase.MMS_TRANSPORT, messageId);
     MmsAddressDatabase addrDatabase       = DatabaseFactory.getMmsAddressDatabase(context);
     AttachmentDatabase attachmentDatabase = DatabaseFactory.getAttachmentDatabase(context);
     attachmentDatabase.deleteAttachmentsForMessage(messageId);
@@ -1005,7 +1122,7 @@ public class MmsDatabase extends MessagingDatabase {
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).updateForDelete(threadId, wasLatest);
     notifyConversationListeners(threadId);
     return threadDeleted;
   }
@@ -1054,34 +1171,19 @@ public class MmsDatabase extends MessagingDatabase {
     }
   }
 
-  /*package*/void deleteMessagesInThreadBeforeDate(long threadId, long date) {
-    Cursor cursor = null;
-
-    try {
-      SQLiteDatabase db = databaseHelper.getReadableDatabase();
-      String where      = THREAD_ID + " = ? AND (CASE (" + MESSAGE_BOX + " & " + Types.BASE_TYPE_MASK + ") ";
-
-      for (long outgoingType : Types.OUTGOING_MESSAGE_TYPES) {
-        where += " WHEN " + outgoingType + " THEN " + DATE_SENT + " < " + date;
-      }
-
-      where += (" ELSE " + DATE_RECEIVED + " < " + date + " END)");
-
-      Log.w("MmsDatabase", "Executing trim query: " + where);
-      cursor = db.query(TABLE_NAME, new String[] {ID}, where, new String[] {threadId+""}, null, null, null);
+  /**
+   * Deletes a batch of messages along with their addresses and attachment rows. The
+   * attachment files are left for {@link AttachmentDatabase#deleteOrphanedFiles(long)},
+   * so that no file I/O happens inside the caller's transaction.
+   */
+  /*package*/ void deleteMessages(long[] messageIds) {
+    DatabaseFactory.getAttachmentDatabase(context).deleteAttachmentRowsForMessages(messageIds);
+    DatabaseFactory.getMmsAddressDatabase(context).deleteAddressesForIds(messageIds);
 
-      while (cursor != null && cursor.moveToNext()) {
-        Log.w("MmsDatabase", "Trimming: " + cursor.getLong(0));
-        delete(cursor.getLong(0));
-      }
-
-    } finally {
-      if (cursor != null)
-        cursor.close();
-    }
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.delete(TABLE_NAME, ID + " IN (" + Util.join(messageIds, ",") + ")", null);
   }
 
-
   public void deleteAllThreads() {
     DatabaseFactory.getAttachmentDatabase(context).deleteAllAttachments();
     DatabaseFactory.getMmsAddressDatabase(context).deleteAllAddresses();
@@ -1183,14 +1285,10 @@ public class MmsDatabase extends MessagingDatabase {
 
     private final Cursor       cursor;
     private final MasterSecret masterSecret;
-    private final MasterCipher masterCipher;
 
     public Reader(MasterSecret masterSecret, Cursor cursor) {
       this.cursor       = cursor;
       this.masterSecret = masterSecret;
-
-      if (masterSecret != null) masterCipher = new MasterCipher(masterSecret);
-      else                      masterCipher = null;
     }
 
     public MessageRecord getNext() {
@@ -1317,9 +1415,17 @@ public class MmsDatabase extends MessagingDatabase {
         String body = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.BODY));
         long box    = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX));
 
-        if (!TextUtils.isEmpty(body) && masterCipher != null && Types.isSymmetricEncryption(box)) {
-          return new DisplayRecord.Body(masterCipher.decryptBody(body), true);
-        } else if (!TextUtils.isEmpty(body) && masterCipher == null && Types.isSymmetricEncryption(box)) {
+        if (!TextUtils.isEmpty(body) && masterSecret != null && Types.isSymmetricEncryption(box)) {
+          long   messageId = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.ID));
+          String plaintext = plaintextCache.get(MmsSmsDatabase.MMS_TRANSPORT, messageId, body);
+
+          if (plaintext == null) {
+            plaintext = MasterCipher.getThreadLocalInstance(masterSecret).decryptBody(body);
+            plaintextCache.put(MmsSmsDatabase.MMS_TRANSPORT, messageId, body, plaintext);
+          }
+
+          return new DisplayRecord.Body(plaintext, true);
+        } else if (!TextUtils.isEmpty(body) && masterSecret == null && Types.isSymmetricEncryption(box)) {
           return new DisplayRecord.Body(body, false);
         } else if (!TextUtils.isEmpty(body) && Types.isAsymmetricEncryption(box)) {
           return new DisplayRecord.Body(body, false);
@@ -24,11 +24,13 @@ import android.database.sqlite.SQLiteQueryBuilder;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
+import android.util.Pair;
 
 import org.thoughtcrime.securesms.attachments.Attachment;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.util.HashSet;
@@ -42,6 +44,9 @@ public class MmsSmsDatabase extends Database {
   public static final String MMS_TRANSPORT = "mms";
   public static final String SMS_TRANSPORT = "sms";
 
+  public static final String TIMELINE_ROW_ID = "timeline_row_id";
+  public static final String BODY_LENGTH     = "body_length";
+
   private static final String[] PROJECTION = {MmsSmsColumns.ID, MmsSmsColumns.UNIQUE_ROW_ID,
                                               SmsDatabase.BODY, SmsDatabase.TYPE,
                                               MmsSmsColumns.THREAD_ID,
@@ -76,15 +81,96 @@ public class MmsSmsDatabase extends Database {
                                               AttachmentDatabase.NAME,
                                               AttachmentDatabase.TRANSFER_STATE};
 
+  private static final String TIMELINE_ID            = TimelineDatabase.TABLE_NAME + "." + TimelineDatabase.ID;
+  private static final String TIMELINE_DATE_RECEIVED = TimelineDatabase.TABLE_NAME + "." + TimelineDatabase.DATE_RECEIVED;
+
+  private static final String TIMELINE_TABLES =
+      TimelineDatabase.TABLE_NAME +
+      " LEFT OUTER JOIN " + SmsDatabase.TABLE_NAME + " ON (" +
+          TimelineDatabase.TABLE_NAME + "." + TimelineDatabase.TRANSPORT + " = '" + SMS_TRANSPORT + "' AND " +
+          SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " = " + TimelineDatabase.TABLE_NAME + "." + TimelineDatabase.MESSAGE_ID + ")" +
+      " LEFT OUTER JOIN " + MmsDatabase.TABLE_NAME + " ON (" +
+          TimelineDatabase.TABLE_NAME + "." + TimelineDatabase.TRANSPORT + " = '" + MMS_TRANSPORT + "' AND " +
+          MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " = " + TimelineDatabase.TABLE_NAME + "." + TimelineDatabase.MESSAGE_ID + ")" +
+      " LEFT OUTER JOIN " + AttachmentDatabase.TABLE_NAME + " ON (" +
+          AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + " = " + TimelineDatabase.TABLE_NAME + "." + TimelineDatabase.ATTACHMENT_ID + ")";
+
+  /**
+   * Aggregates over the columns a conversation displays that can change after a message is
+   * inserted, so that a deleted, added or updated message changes at least one of them.
+   */
+  private static final String[] TIMELINE_VERSION_PROJECTION = {
+      "COUNT(*)",
+      "TOTAL(" + TIMELINE_ID + ")",
+      "TOTAL(" + SmsDatabase.TABLE_NAME + "." + SmsDatabase.TYPE + ")",
+      "TOTAL(" + SmsDatabase.TABLE_NAME + "." + SmsDatabase.STATUS + ")",
+      "TOTAL(" + MmsDatabase.TABLE_NAME + "." + MmsDatabase.MESSAGE_BOX + ")",
+      "TOTAL(" + MmsDatabase.TABLE_NAME + "." + MmsDatabase.STATUS + ")",
+      "TOTAL(LENGTH(" + coalesce(MmsSmsColumns.BODY) + "))",
+      "TOTAL(" + coalesce(MmsSmsColumns.READ) + ")",
+      "TOTAL(" + coalesce(MmsSmsColumns.RECEIPT_COUNT) + ")",
+      "TOTAL(LENGTH(" + coalesce(MmsSmsColumns.MISMATCHED_IDENTITIES) + "))",
+      "TOTAL(LENGTH(" + MmsDatabase.TABLE_NAME + "." + MmsDatabase.NETWORK_FAILURE + "))",
+      "TOTAL(" + coalesce(MmsSmsColumns.EXPIRE_STARTED) + ")",
+      "TOTAL(" + TimelineDatabase.TABLE_NAME + "." + TimelineDatabase.ATTACHMENT_ID + ")",
+      "TOTAL(" + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.TRANSFER_STATE + ")",
+      "COUNT(" + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.DATA + ")",
+      "COUNT(" + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.THUMBNAIL + ")"
+  };
+
+  private static final String[] TIMELINE_PROJECTION = {
+      TimelineDatabase.TABLE_NAME + "." + TimelineDatabase.MESSAGE_ID + " AS " + MmsSmsColumns.ID,
+      "CASE " + TimelineDatabase.TABLE_NAME + "." + TimelineDatabase.TRANSPORT +
+          " WHEN '" + SMS_TRANSPORT + "' THEN 'SMS::' || " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " || '::' || " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_SENT +
+          " ELSE 'MMS::' || " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " || '::' || " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_SENT +
+          " END AS " + MmsSmsColumns.UNIQUE_ROW_ID,
+      coalesce(MmsSmsColumns.BODY) + " AS " + MmsSmsColumns.BODY,
+      sms(SmsDatabase.TYPE),
+      TimelineDatabase.TABLE_NAME + "." + TimelineDatabase.THREAD_ID + " AS " + MmsSmsColumns.THREAD_ID,
+      coalesce(MmsSmsColumns.ADDRESS) + " AS " + MmsSmsColumns.ADDRESS,
+      coalesce(MmsSmsColumns.ADDRESS_DEVICE_ID) + " AS " + MmsSmsColumns.ADDRESS_DEVICE_ID,
+      sms(SmsDatabase.SUBJECT),
+      "COALESCE(" + SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_SENT + ", " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_SENT + ") AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
+      TIMELINE_DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
+      mms(MmsDatabase.MESSAGE_TYPE), mms(MmsDatabase.MESSAGE_BOX),
+      sms(SmsDatabase.STATUS), mms(MmsDatabase.PART_COUNT),
+      mms(MmsDatabase.CONTENT_LOCATION), mms(MmsDatabase.TRANSACTION_ID),
+      mms(MmsDatabase.MESSAGE_SIZE), mms(MmsDatabase.EXPIRY),
+      mms(MmsDatabase.STATUS),
+      coalesce(MmsSmsColumns.READ) + " AS " + MmsSmsColumns.READ,
+      coalesce(MmsSmsColumns.RECEIPT_COUNT) + " AS " + MmsSmsColumns.RECEIPT_COUNT,
+      coalesce(MmsSmsColumns.MISMATCHED_IDENTITIES) + " AS " + MmsSmsColumns.MISMATCHED_IDENTITIES,
+      mms(MmsDatabase.NETWORK_FAILURE),
+      coalesce(MmsSmsColumns.SUBSCRIPTION_ID) + " AS " + MmsSmsColumns.SUBSCRIPTION_ID,
+      coalesce(MmsSmsColumns.EXPIRES_IN) + " AS " + MmsSmsColumns.EXPIRES_IN,
+      coalesce(MmsSmsColumns.EXPIRE_STARTED) + " AS " + MmsSmsColumns.EXPIRE_STARTED,
+      coalesce(MmsSmsColumns.NOTIFIED) + " AS " + MmsSmsColumns.NOTIFIED,
+      TimelineDatabase.TABLE_NAME + "." + TimelineDatabase.TRANSPORT + " AS " + TRANSPORT,
+      TIMELINE_ID + " AS " + TIMELINE_ROW_ID,
+      AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + " AS " + AttachmentDatabase.ATTACHMENT_ID_ALIAS,
+      part(AttachmentDatabase.UNIQUE_ID),
+      part(AttachmentDatabase.MMS_ID),
+      part(AttachmentDatabase.SIZE),
+      part(AttachmentDatabase.FILE_NAME),
+      part(AttachmentDatabase.DATA),
+      part(AttachmentDatabase.THUMBNAIL),
+      part(AttachmentDatabase.CONTENT_TYPE),
+      part(AttachmentDatabase.CONTENT_LOCATION),
+      part(AttachmentDatabase.DIGEST),
+      part(AttachmentDatabase.FAST_PREFLIGHT_ID),
+      part(AttachmentDatabase.VOICE_NOTE),
+      part(AttachmentDatabase.CONTENT_DISPOSITION),
+      part(AttachmentDatabase.NAME),
+      part(AttachmentDatabase.TRANSFER_STATE)
+  };
+
   public MmsSmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
   public Cursor getConversation(long threadId, long limit) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
-
-    Cursor cursor = queryTables(PROJECTION, selection, order, limit > 0 ? String.valueOf(limit) : null);
+    String order  = TIMELINE_DATE_RECEIVED + " DESC, " + TIMELINE_ID + " DESC";
+    Cursor cursor = queryTimeline(threadId, null, order, limit > 0 ? String.valueOf(limit) : null);
     setNotifyConverationListeners(cursor, threadId);
 
     return cursor;
@@ -94,21 +180,111 @@ public class MmsSmsDatabase extends Database {
     return getConversation(threadId, 0);
   }
 
+  /**
+   * Returns the (date_received, timeline_row_id) key of the message {@code count} messages
+   * older than the given key, or null if there are fewer than that. This only reads the
+   * timeline index, so a caller can find where a page ends before reading the page itself.
+   */
+  public @Nullable Pair<Long, Long> getConversationKeyBefore(long threadId, long dateReceived, long rowId, long count) {
+    String selection = TimelineDatabase.THREAD_ID + " = ? AND (" +
+                       TimelineDatabase.DATE_RECEIVED + " < " + dateReceived + " OR (" +
+                       TimelineDatabase.DATE_RECEIVED + " = " + dateReceived + " AND " + TimelineDatabase.ID + " < " + rowId + "))";
+    String order     = TimelineDatabase.DATE_RECEIVED + " DESC, " + TimelineDatabase.ID + " DESC";
+    Cursor cursor    = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TimelineDatabase.TABLE_NAME,
+                                                          new String[] {TimelineDatabase.DATE_RECEIVED, TimelineDatabase.ID},
+                                                          selection, new String[] {String.valueOf(threadId)},
+                                                          null, null, order, (count - 1) + ", 1");
+
+      if (cursor != null && cursor.moveToFirst()) return new Pair<>(cursor.getLong(0), cursor.getLong(1));
+      else                                        return null;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * Returns up to limit messages newer than the (date_received, timeline_row_id) key,
+   * ordered newest first like every other conversation cursor. With no limit this
+   * returns everything from the key to the end of the conversation.
+   */
+  public Cursor getConversationAfter(long threadId, long dateReceived, long rowId, long limit) {
+    String order     = TIMELINE_DATE_RECEIVED + " ASC, " + TIMELINE_ID + " ASC";
+    String selection = TIMELINE_DATE_RECEIVED + " > " + dateReceived + " OR (" +
+                       TIMELINE_DATE_RECEIVED + " = " + dateReceived + " AND " + TIMELINE_ID + " > " + rowId + ")";
+
+    Cursor cursor = queryTimeline(threadId, selection, order, limit > 0 ? String.valueOf(limit) : null,
+                                  MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + TIMELINE_ROW_ID + " DESC");
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
+  /**
+   * Returns the messages from the (date_received, timeline_row_id) key {@code from},
+   * inclusive, up to the key {@code to}, exclusive, newest first.
+   */
+  public Cursor getConversationBetween(long threadId, long fromDateReceived, long fromRowId,
+                                       long toDateReceived, long toRowId)
+  {
+    String order     = TIMELINE_DATE_RECEIVED + " DESC, " + TIMELINE_ID + " DESC";
+    String selection = getKeyRange(fromDateReceived, fromRowId, toDateReceived, toRowId);
+
+    Cursor cursor = queryTimeline(threadId, selection, order, null);
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
+  /**
+   * Returns a value for the same range as {@link #getConversationBetween}, which changes
+   * whenever a message in the range is added, deleted, or changes in a way the conversation
+   * shows. It only aggregates over the range, so it is much cheaper than reading it again.
+   */
+  public @NonNull String getConversationVersion(long threadId, long fromDateReceived, long fromRowId,
+                                                long toDateReceived, long toRowId)
+  {
+    String query = "SELECT " + Util.join(TIMELINE_VERSION_PROJECTION, ",") +
+                   " FROM " + TIMELINE_TABLES +
+                   " WHERE " + TimelineDatabase.TABLE_NAME + "." + TimelineDatabase.THREAD_ID + " = ?" +
+                   " AND (" + getKeyRange(fromDateReceived, fromRowId, toDateReceived, toRowId) + ")";
+
+    Cursor cursor = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().rawQuery(query, new String[] {String.valueOf(threadId)});
+
+      StringBuilder version = new StringBuilder();
+
+      if (cursor != null && cursor.moveToFirst()) {
+        for (int i=0;i<cursor.getColumnCount();i++) {
+          version.append(cursor.getString(i)).append(':');
+        }
+      }
+
+      return version.toString();
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   public Cursor getIdentityConflictMessagesForThread(long threadId) {
-    String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
-    String selection       = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsSmsColumns.MISMATCHED_IDENTITIES + " IS NOT NULL";
+    String order     = TIMELINE_DATE_RECEIVED + " ASC, " + TIMELINE_ID + " ASC";
+    String selection = coalesce(MmsSmsColumns.MISMATCHED_IDENTITIES) + " IS NOT NULL";
 
-    Cursor cursor = queryTables(PROJECTION, selection, order, null);
+    Cursor cursor = queryTimeline(threadId, selection, order, null);
     setNotifyConverationListeners(cursor, threadId);
 
     return cursor;
   }
 
   public Cursor getConversationSnippet(long threadId) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
-
-    return  queryTables(PROJECTION, selection, order, "1");
+    String order = TIMELINE_DATE_RECEIVED + " DESC, " + TIMELINE_ID + " DESC";
+    return queryTimeline(threadId, null, order, "1");
   }
 
   public Cursor getUnread() {
@@ -118,6 +294,40 @@ public class MmsSmsDatabase extends Database {
     return queryTables(PROJECTION, selection, order, null);
   }
 
+  /**
+   * The same messages as {@link #getUnread()}, in the same order, but with only their
+   * id, transport, type and body length, which is enough to tell whether a message is
+   * new or has changed without reading or decrypting it.
+   */
+  public Cursor getUnreadSummaries() {
+    String unread = " WHERE " + MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0";
+    String query  = "SELECT " + SmsDatabase.ID + ", '" + SMS_TRANSPORT + "' AS " + TRANSPORT + ", " +
+                        SmsDatabase.TYPE + ", LENGTH(" + SmsDatabase.BODY + ") AS " + BODY_LENGTH + ", " +
+                        SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED +
+                    " FROM " + SmsDatabase.TABLE_NAME + unread +
+                    " UNION ALL " +
+                    "SELECT " + MmsDatabase.ID + ", '" + MMS_TRANSPORT + "', " +
+                        MmsDatabase.MESSAGE_BOX + ", LENGTH(" + MmsDatabase.BODY + "), " +
+                        MmsDatabase.DATE_RECEIVED +
+                    " FROM " + MmsDatabase.TABLE_NAME + unread +
+                    " ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+
+    return databaseHelper.getReadableDatabase().rawQuery(query, null);
+  }
+
+  /**
+   * Full records for the given messages, which may be in any thread, oldest first.
+   */
+  public Cursor getMessages(@NonNull long[] smsIds, @NonNull long[] mmsIds) {
+    String transport = TimelineDatabase.TABLE_NAME + "." + TimelineDatabase.TRANSPORT;
+    String messageId = TimelineDatabase.TABLE_NAME + "." + TimelineDatabase.MESSAGE_ID;
+    String where     = "(" + transport + " = '" + SMS_TRANSPORT + "' AND " + messageId + " IN (" + Util.join(smsIds, ",") + ")) OR " +
+                       "(" + transport + " = '" + MMS_TRANSPORT + "' AND " + messageId + " IN (" + Util.join(mmsIds, ",") + "))";
+    String order     = TIMELINE_DATE_RECEIVED + " ASC, " + TIMELINE_ID + " ASC";
+
+    return queryTimeline(where, null, order, null, null);
+  }
+
   public int getUnreadCount(long threadId) {
     String selection = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0 AND " + MmsSmsColumns.THREAD_ID + " = " + threadId;
     Cursor cursor    = queryTables(PROJECTION, selection, null, null);
@@ -141,6 +351,62 @@ public class MmsSmsDatabase extends Database {
     DatabaseFactory.getMmsDatabase(context).incrementDeliveryReceiptCount(syncMessageId);
   }
 
+  private Cursor queryTimeline(long threadId, @Nullable String selection, @NonNull String order, @Nullable String limit) {
+    return queryTimeline(threadId, selection, order, limit, null);
+  }
+
+  private Cursor queryTimeline(long threadId, @Nullable String selection, @NonNull String order,
+                               @Nullable String limit, @Nullable String outerOrder)
+  {
+    String where = TimelineDatabase.TABLE_NAME + "." + TimelineDatabase.THREAD_ID + " = ?";
+
+    if (selection != null) {
+      where += " AND (" + selection + ")";
+    }
+
+    return queryTimeline(where, new String[] {String.valueOf(threadId)}, order, limit, outerOrder);
+  }
+
+  private Cursor queryTimeline(@NonNull String where, @Nullable String[] args, @NonNull String order,
+                               @Nullable String limit, @Nullable String outerOrder)
+  {
+    String query = "SELECT " + Util.join(TIMELINE_PROJECTION, ",") +
+                   " FROM " + TIMELINE_TABLES +
+                   " WHERE " + where +
+                   " ORDER BY " + order +
+                   (limit != null ? " LIMIT " + limit : "");
+
+    if (outerOrder != null) {
+      query = "SELECT * FROM (" + query + ") ORDER BY " + outerOrder;
+    }
+
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.rawQuery(query, args);
+  }
+
+  private static String getKeyRange(long fromDateReceived, long fromRowId, long toDateReceived, long toRowId) {
+    return "(" + TIMELINE_DATE_RECEIVED + " > " + fromDateReceived + " OR (" +
+                 TIMELINE_DATE_RECEIVED + " = " + fromDateReceived + " AND " + TIMELINE_ID + " >= " + fromRowId + "))" +
+           " AND (" + TIMELINE_DATE_RECEIVED + " < " + toDateReceived + " OR (" +
+                      TIMELINE_DATE_RECEIVED + " = " + toDateReceived + " AND " + TIMELINE_ID + " < " + toRowId + "))";
+  }
+
+  private static String coalesce(String column) {
+    return "COALESCE(" + SmsDatabase.TABLE_NAME + "." + column + ", " + MmsDatabase.TABLE_NAME + "." + column + ")";
+  }
+
+  private static String sms(String column) {
+    return SmsDatabase.TABLE_NAME + "." + column + " AS " + column;
+  }
+
+  private static String mms(String column) {
+    return MmsDatabase.TABLE_NAME + "." + column + " AS " + column;
+  }
+
+  private static String part(String column) {
+    return AttachmentDatabase.TABLE_NAME + "." + column + " AS " + column;
+  }
+
   private Cursor queryTables(String[] projection, String selection, String order, String limit) {
     String[] mmsProjection = {MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
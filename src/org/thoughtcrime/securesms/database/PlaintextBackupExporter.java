@@ -2,60 +2,302 @@ package org.thoughtcrime.securesms.database;
 
 
 import android.content.Context;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
 
+import com.google.android.mms.pdu_alt.PduHeaders;
+
+import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
-import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
+import org.thoughtcrime.securesms.database.MmsSmsColumns.Types;
 import org.thoughtcrime.securesms.util.StorageUtil;
+import org.thoughtcrime.securesms.util.Util;
+import org.whispersystems.libsignal.InvalidMessageException;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
+/**
+ * Exports SMS and MMS messages, and the attachments of MMS messages, as an XML backup.
+ *
+ * Both tables are walked in id order a page at a time, each page starting after the last
+ * id of the one before, so every page is a range scan of the primary key. Each message is
+ * written out as it's read, and the addresses and attachments of a page of MMS messages
+ * are each loaded with a single query.
+ */
 public class PlaintextBackupExporter {
 
-  private static final String FILENAME = "SignalPlaintextBackup.xml";
+  private static final String TAG = PlaintextBackupExporter.class.getSimpleName();
+
+  private static final String FILENAME            = "SignalPlaintextBackup.xml";
+  private static final String COMPRESSED_FILENAME = FILENAME + ".gz";
+
+  private static final int PAGE_SIZE         = 500;
+  private static final int PROGRESS_INTERVAL = 100;
+
+  /**
+   * Any of these bits means an SMS's body needs more than decrypting to display, so it's
+   * read as a full record instead.
+   */
+  private static final long SPECIAL_SMS_TYPE_MASK = Types.KEY_EXCHANGE_MASK | Types.END_SESSION_BIT |
+                                                    (Types.ENCRYPTION_MASK & ~Types.ENCRYPTION_SYMMETRIC_BIT);
 
-  public static void exportPlaintextToSd(Context context, MasterSecret masterSecret)
+  /**
+   * Undownloaded MMS have nothing to export, and group and session updates are protocol
+   * messages rather than anything a person wrote, so neither is exported.
+   */
+  private static final long UNEXPORTABLE_MMS_TYPE_MASK = Types.GROUP_UPDATE_BIT | Types.GROUP_QUIT_BIT |
+                                                         Types.EXPIRATION_TIMER_UPDATE_BIT | Types.END_SESSION_BIT;
+  private static final int  UNEXPORTABLE_MMS_MESSAGE_TYPE = PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND;
+
+  public interface ProgressListener {
+    void onProgress(int exported, int total);
+  }
+
+  public static void exportPlaintextToSd(Context context, MasterSecret masterSecret, boolean compress,
+                                         @Nullable ProgressListener listener)
       throws NoExternalStorageException, IOException
   {
-    exportPlaintext(context, masterSecret);
+    new PlaintextBackupExporter(context, masterSecret, listener).export(getPlaintextExportFile(compress), compress);
   }
 
   public static File getPlaintextExportFile() throws NoExternalStorageException {
-    return new File(StorageUtil.getBackupDir(), FILENAME);
+    return getPlaintextExportFile(false);
   }
 
-  private static void exportPlaintext(Context context, MasterSecret masterSecret)
-      throws NoExternalStorageException, IOException
+  public static File getPlaintextExportFile(boolean compressed) throws NoExternalStorageException {
+    return new File(StorageUtil.getBackupDir(), compressed ? COMPRESSED_FILENAME : FILENAME);
+  }
+
+  private final Context                    context;
+  private final MasterSecret               masterSecret;
+  private final MasterCipher               masterCipher;
+  private final @Nullable ProgressListener listener;
+
+  private int total;
+  private int exported;
+
+  private PlaintextBackupExporter(Context context, MasterSecret masterSecret, @Nullable ProgressListener listener) {
+    this.context      = context;
+    this.masterSecret = masterSecret;
+    this.masterCipher = new MasterCipher(masterSecret);
+    this.listener     = listener;
+  }
+
+  private void export(File file, boolean compress) throws IOException {
+    long startTime = System.currentTimeMillis();
+
+    total = DatabaseFactory.getSmsDatabase(context).getMessageCount() +
+            DatabaseFactory.getMmsDatabase(context).getMessageCountExcluding(UNEXPORTABLE_MMS_TYPE_MASK,
+                                                                             UNEXPORTABLE_MMS_MESSAGE_TYPE);
+
+    OutputStream out = new FileOutputStream(file, false);
+    if (compress) out = new GZIPOutputStream(out);
+
+    XmlBackup.Writer writer = new XmlBackup.Writer(out, total);
+
+    try {
+      exportSms(writer);
+      exportMms(writer);
+    } finally {
+      writer.close();
+    }
+
+    if (listener != null) listener.onProgress(exported, total);
+
+    Log.w(TAG, "Exported " + exported + " messages in " + (System.currentTimeMillis() - startTime) + "ms");
+  }
+
+  private void exportSms(XmlBackup.Writer writer) throws IOException {
+    EncryptingSmsDatabase database = DatabaseFactory.getEncryptingSmsDatabase(context);
+    long                  lastId   = 0;
+
+    while (true) {
+      Cursor cursor = database.getMessagesAfter(lastId, PAGE_SIZE);
+
+      try {
+        if (cursor == null || !cursor.moveToFirst()) return;
+
+        EncryptingSmsDatabase.Reader reader = database.readerFor(masterSecret, cursor);
+
+        do {
+          lastId = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.ID));
+
+          long type = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.TYPE));
+          String body;
+
+          if ((type & SPECIAL_SMS_TYPE_MASK) == 0) body = getSmsBody(cursor, type);
+          else                                     body = reader.getCurrent().getDisplayBody().toString();
+
+          writer.writeItem(new XmlBackup.XmlBackupItem(0, cursor.getString(cursor.getColumnIndexOrThrow(SmsDatabase.ADDRESS)),
+                                                       cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.NORMALIZED_DATE_RECEIVED)),
+                                                       Types.translateToSystemBaseType(type),
+                                                       null, body, null, 1,
+                                                       cursor.getInt(cursor.getColumnIndexOrThrow(SmsDatabase.STATUS))));
+          onExported();
+        } while (cursor.moveToNext());
+      } finally {
+        if (cursor != null) cursor.close();
+      }
+    }
+  }
+
+  private void exportMms(XmlBackup.Writer writer) throws IOException {
+    MmsDatabase database = DatabaseFactory.getMmsDatabase(context);
+    long        lastId   = 0;
+
+    while (true) {
+      List<MmsRow> rows   = new LinkedList<>();
+      Cursor       cursor = database.getMessagesAfter(lastId, PAGE_SIZE);
+
+      try {
+        while (cursor != null && cursor.moveToNext()) {
+          MmsRow row = new MmsRow(cursor);
+
+          lastId = row.id;
+          rows.add(row);
+        }
+      } finally {
+        if (cursor != null) cursor.close();
+      }
+
+      if (rows.isEmpty()) return;
+
+      long[] ids = new long[rows.size()];
+      int    i   = 0;
+
+      for (MmsRow row : rows) ids[i++] = row.id;
+
+      Map<Long, MmsAddresses>             addresses   = DatabaseFactory.getMmsAddressDatabase(context).getAddressesForIds(ids);
+      Map<Long, List<DatabaseAttachment>> attachments = DatabaseFactory.getAttachmentDatabase(context).getAttachmentsForMessages(masterSecret, ids);
+
+      for (MmsRow row : rows) {
+        List<DatabaseAttachment> messageAttachments = attachments.get(row.id);
+
+        if (row.isExportable()) {
+          writeMms(writer, row, addresses.get(row.id),
+                   messageAttachments != null ? messageAttachments : Collections.<DatabaseAttachment>emptyList());
+          onExported();
+        }
+      }
+    }
+  }
+
+  private void writeMms(XmlBackup.Writer writer, MmsRow row, MmsAddresses addresses,
+                        List<DatabaseAttachment> attachments)
+      throws IOException
   {
-    int count               = DatabaseFactory.getSmsDatabase(context).getMessageCount();
-    XmlBackup.Writer writer = new XmlBackup.Writer(getPlaintextExportFile().getAbsolutePath(), count);
+    AttachmentDatabase attachmentDatabase = DatabaseFactory.getAttachmentDatabase(context);
+    boolean            outgoing           = Types.isOutgoingMessageType(row.box);
+    String             body               = getMmsBody(row);
+    List<String>       from               = new LinkedList<>();
+    List<String>       to                 = new LinkedList<>(addresses.getTo());
+    String             address;
 
+    if (outgoing) {
+      address = to.isEmpty() ? row.address : Util.join(to, "~");
+    } else {
+      address = addresses.getFrom() != null ? addresses.getFrom() : row.address;
+      from.add(address);
+    }
 
-    SmsMessageRecord record;
-    EncryptingSmsDatabase.Reader reader = null;
-    int skip                            = 0;
-    int ROW_LIMIT                       = 500;
+    writer.startMms(address, row.dateReceived, Types.translateToSystemBaseType(row.box), row.read,
+                    outgoing ? PduHeaders.MESSAGE_TYPE_SEND_REQ : PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF,
+                    attachments.isEmpty());
 
-    do {
-      if (reader != null)
-        reader.close();
+    int sequence = 0;
 
-      reader = DatabaseFactory.getEncryptingSmsDatabase(context).getMessages(masterSecret, skip, ROW_LIMIT);
+    if (!TextUtils.isEmpty(body)) {
+      writer.writeTextPart(sequence++, body);
+    }
 
-      while ((record = reader.getNext()) != null) {
-        XmlBackup.XmlBackupItem item =
-            new XmlBackup.XmlBackupItem(0, record.getIndividualRecipient().getNumber(),
-                                        record.getDateReceived(),
-                                        MmsSmsColumns.Types.translateToSystemBaseType(record.getType()),
-                                        null, record.getDisplayBody().toString(), null,
-                                        1, record.getDeliveryStatus());
+    for (DatabaseAttachment attachment : attachments) {
+      if (!attachment.hasData() || attachment.getTransferState() != AttachmentDatabase.TRANSFER_PROGRESS_DONE) {
+        continue;
+      }
+
+      InputStream data = attachmentDatabase.getAttachmentStream(masterSecret, attachment.getAttachmentId());
 
-        writer.writeItem(item);
+      try {
+        writer.writeDataPart(sequence++, attachment.getContentType(), attachment.getFileName(), data);
+      } finally {
+        data.close();
       }
+    }
+
+    writer.endMms(from, to);
+  }
+
+  private String getSmsBody(Cursor cursor, long type) {
+    String body = cursor.getString(cursor.getColumnIndexOrThrow(SmsDatabase.BODY));
+
+    if (body == null || !Types.isSymmetricEncryption(type)) {
+      return body == null ? "" : body;
+    }
+
+    try {
+      return masterCipher.decryptBody(body);
+    } catch (InvalidMessageException e) {
+      Log.w(TAG, e);
+      return context.getString(R.string.EncryptingSmsDatabase_error_decrypting_message);
+    }
+  }
+
+  private @Nullable String getMmsBody(MmsRow row) {
+    if (TextUtils.isEmpty(row.body))             return null;
+    if (Types.isAsymmetricEncryption(row.box))   return null;
+    if (!Types.isSymmetricEncryption(row.box))   return row.body;
+
+    try {
+      return masterCipher.decryptBody(row.body);
+    } catch (InvalidMessageException e) {
+      Log.w(TAG, e);
+      return context.getString(R.string.MmsDatabase_error_decrypting_message);
+    }
+  }
+
+  private void onExported() {
+    exported++;
+
+    if (listener != null && exported % PROGRESS_INTERVAL == 0) {
+      listener.onProgress(exported, total);
+    }
+  }
+
+  private static class MmsRow {
+    private final long   id;
+    private final long   dateReceived;
+    private final long   box;
+    private final int    read;
+    private final String body;
+    private final String address;
+    private final int    messageType;
 
-      skip += ROW_LIMIT;
-    } while (reader.getCount() > 0);
+    private MmsRow(@NonNull Cursor cursor) {
+      this.id           = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.ID));
+      this.dateReceived = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.DATE_RECEIVED));
+      this.box          = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_BOX));
+      this.read         = cursor.getInt(cursor.getColumnIndexOrThrow(MmsDatabase.READ));
+      this.body         = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.BODY));
+      this.address      = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.ADDRESS));
+      this.messageType  = cursor.getInt(cursor.getColumnIndexOrThrow(MmsDatabase.MESSAGE_TYPE));
+    }
 
-    writer.close();
+    private boolean isExportable() {
+      return messageType != UNEXPORTABLE_MMS_MESSAGE_TYPE && (box & UNEXPORTABLE_MMS_TYPE_MASK) == 0;
+    }
   }
 }
@@ -4,88 +4,196 @@ import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
 import android.os.Environment;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.SearchDatabase.TermHasher;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.thoughtcrime.securesms.recipients.Recipients;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Imports the SMS messages in an XML backup.
+ *
+ * Bodies are encrypted on a pool of worker threads while the backup is still being parsed,
+ * and the inserts are committed a chunk at a time through one compiled statement. Each
+ * address is resolved to its thread once, and the imported threads are recounted and
+ * re-snippeted together once everything has been inserted. Each message is added to the
+ * search index in the same transaction as its insert.
+ */
 public class PlaintextBackupImporter {
 
+  private static final String TAG = PlaintextBackupImporter.class.getSimpleName();
+
+  private static final int CHUNK_SIZE   = 1000;
+  private static final int MAX_PENDING  = 256;
+  private static final int WORKER_COUNT = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
   public static void importPlaintextFromSd(Context context, MasterSecret masterSecret)
       throws NoExternalStorageException, IOException
   {
-    Log.w("PlaintextBackupImporter", "importPlaintext()");
-    SmsDatabase    db          = DatabaseFactory.getSmsDatabase(context);
-    SQLiteDatabase transaction = db.beginTransaction();
+    new PlaintextBackupImporter(context, masterSecret).importFrom(getPlaintextExportFile());
+  }
+
+  private static File getPlaintextExportFile() throws NoExternalStorageException {
+    File backup           = PlaintextBackupExporter.getPlaintextExportFile();
+    File compressedBackup = PlaintextBackupExporter.getPlaintextExportFile(true);
+    File oldBackup        = new File(Environment.getExternalStorageDirectory(), "TextSecurePlaintextBackup.xml");
+
+    if (compressedBackup.exists() && (!backup.exists() || compressedBackup.lastModified() > backup.lastModified())) {
+      return compressedBackup;
+    }
+
+    return !backup.exists() && oldBackup.exists() ? oldBackup : backup;
+  }
+
+  private final Context           context;
+  private final MasterSecret      masterSecret;
+  private final SmsDatabase       smsDatabase;
+  private final ThreadDatabase    threadDatabase;
+  private final SearchDatabase    searchDatabase;
+  private final TermHasher        termHasher;
+  private final Map<String, Long> threadIds       = new HashMap<>();
+  private final Set<Long>         modifiedThreads = new HashSet<>();
+
+  private PlaintextBackupImporter(Context context, MasterSecret masterSecret) {
+    this.context        = context;
+    this.masterSecret   = masterSecret;
+    this.smsDatabase    = DatabaseFactory.getSmsDatabase(context);
+    this.threadDatabase = DatabaseFactory.getThreadDatabase(context);
+    this.searchDatabase = DatabaseFactory.getSearchDatabase(context);
+    this.termHasher     = new TermHasher(masterSecret);
+  }
+
+  private void importFrom(File file) throws IOException {
+    long                      startTime = System.currentTimeMillis();
+    ExecutorService           executor  = Executors.newFixedThreadPool(WORKER_COUNT);
+    LinkedList<PendingInsert> pending   = new LinkedList<>();
+    SQLiteDatabase            database  = smsDatabase.beginTransaction();
+    SQLiteStatement           statement = smsDatabase.createInsertStatement(database);
+    int                       imported  = 0;
 
     try {
-      ThreadDatabase threads         = DatabaseFactory.getThreadDatabase(context);
-      XmlBackup      backup          = new XmlBackup(getPlaintextExportFile().getAbsolutePath());
-      MasterCipher   masterCipher    = new MasterCipher(masterSecret);
-      Set<Long>      modifiedThreads = new HashSet<>();
+      XmlBackup               backup = new XmlBackup(file.getAbsolutePath());
       XmlBackup.XmlBackupItem item;
 
       while ((item = backup.getNext()) != null) {
-        Recipients      recipients = RecipientFactory.getRecipientsFromString(context, item.getAddress(), false);
-        long            threadId   = threads.getThreadIdFor(recipients);
-        SQLiteStatement statement  = db.createInsertStatement(transaction);
-
         if (item.getAddress() == null || item.getAddress().equals("null"))
           continue;
 
         if (!isAppropriateTypeForImport(item.getType()))
           continue;
 
-        addStringToStatement(statement, 1, item.getAddress());
-        addNullToStatement(statement, 2);
-        addLongToStatement(statement, 3, item.getDate());
-        addLongToStatement(statement, 4, item.getDate());
-        addLongToStatement(statement, 5, item.getProtocol());
-        addLongToStatement(statement, 6, item.getRead());
-        addLongToStatement(statement, 7, item.getStatus());
-        addTranslatedTypeToStatement(statement, 8, item.getType());
-        addNullToStatement(statement, 9);
-        addStringToStatement(statement, 10, item.getSubject());
-        addEncryptedStringToStatement(masterCipher, statement, 11, item.getBody());
-        addStringToStatement(statement, 12, item.getServiceCenter());
-        addLongToStatement(statement, 13, threadId);
-        modifiedThreads.add(threadId);
-        statement.execute();
+        pending.add(new PendingInsert(item, getThreadIdFor(item.getAddress()), encrypt(executor, item.getBody())));
+
+        if (pending.size() >= MAX_PENDING) {
+          insert(database, statement, pending.removeFirst());
+          database = commitIfChunkComplete(database, ++imported);
+        }
       }
 
-      for (long threadId : modifiedThreads) {
-        threads.update(threadId, true);
+      while (!pending.isEmpty()) {
+        insert(database, statement, pending.removeFirst());
+        database = commitIfChunkComplete(database, ++imported);
       }
 
-      Log.w("PlaintextBackupImporter", "Exited loop");
+      Log.w(TAG, "Imported " + imported + " messages into " + modifiedThreads.size() + " threads in " +
+                 (System.currentTimeMillis() - startTime) + "ms");
     } catch (XmlPullParserException e) {
-      Log.w("PlaintextBackupImporter", e);
+      Log.w(TAG, e);
       throw new IOException("XML Parsing error!");
     } finally {
-      db.endTransaction(transaction);
+      statement.close();
+      smsDatabase.endTransaction(database);
+      executor.shutdownNow();
+      threadDatabase.updateForImport(modifiedThreads);
     }
   }
 
-  private static File getPlaintextExportFile() throws NoExternalStorageException {
-    File backup    = PlaintextBackupExporter.getPlaintextExportFile();
-    File oldBackup = new File(Environment.getExternalStorageDirectory(), "TextSecurePlaintextBackup.xml");
+  private SQLiteDatabase commitIfChunkComplete(SQLiteDatabase database, int imported) {
+    if (imported % CHUNK_SIZE != 0) return database;
 
-    return !backup.exists() && oldBackup.exists() ? oldBackup : backup;
+    smsDatabase.endTransaction(database);
+    return smsDatabase.beginTransaction();
   }
 
-  private static void addEncryptedStringToStatement(MasterCipher masterCipher, SQLiteStatement statement, int index, String value) {
-    if (value == null || value.equals("null")) {
+  private long getThreadIdFor(@NonNull String address) {
+    Long threadId = threadIds.get(address);
+
+    if (threadId == null) {
+      Recipients recipients = RecipientFactory.getRecipientsFromString(context, address, false);
+
+      threadId = threadDatabase.getThreadIdFor(recipients);
+      threadIds.put(address, threadId);
+    }
+
+    return threadId;
+  }
+
+  private @Nullable Future<String> encrypt(ExecutorService executor, final @Nullable String body) {
+    if (body == null || body.equals("null")) return null;
+
+    return executor.submit(new Callable<String>() {
+      @Override
+      public String call() {
+        return MasterCipher.getThreadLocalInstance(masterSecret).encryptBody(body);
+      }
+    });
+  }
+
+  private void insert(SQLiteDatabase database, SQLiteStatement statement, PendingInsert pending) {
+    XmlBackup.XmlBackupItem item = pending.item;
+
+    statement.clearBindings();
+    addStringToStatement(statement, 1, item.getAddress());
+    addNullToStatement(statement, 2);
+    addLongToStatement(statement, 3, item.getDate());
+    addLongToStatement(statement, 4, item.getDate());
+    addLongToStatement(statement, 5, item.getProtocol());
+    addLongToStatement(statement, 6, item.getRead());
+    addLongToStatement(statement, 7, item.getStatus());
+    addTranslatedTypeToStatement(statement, 8, item.getType());
+    addNullToStatement(statement, 9);
+    addStringToStatement(statement, 10, item.getSubject());
+    addEncryptedStringToStatement(statement, 11, pending.body);
+    addStringToStatement(statement, 12, item.getServiceCenter());
+    addLongToStatement(statement, 13, pending.threadId);
+
+    long messageId = statement.executeInsert();
+
+    if (messageId != -1 && pending.body != null) {
+      searchDatabase.indexMessage(database, termHasher, MmsSmsDatabase.SMS_TRANSPORT, messageId, item.getBody());
+    }
+
+    modifiedThreads.add(pending.threadId);
+  }
+
+  private static void addEncryptedStringToStatement(SQLiteStatement statement, int index, @Nullable Future<String> value) {
+    if (value == null) {
       statement.bindNull(index);
-    } else {
-      statement.bindString(index, masterCipher.encryptBody(value));
+      return;
+    }
+
+    try {
+      statement.bindString(index, value.get());
+    } catch (InterruptedException | ExecutionException e) {
+      throw new AssertionError(e);
     }
   }
 
@@ -113,4 +221,16 @@ public class PlaintextBackupImporter {
            ourType == MmsSmsColumns.Types.BASE_SENT_TYPE ||
            ourType == MmsSmsColumns.Types.BASE_SENT_FAILED_TYPE;
   }
+
+  private static class PendingInsert {
+    private final XmlBackup.XmlBackupItem  item;
+    private final long                     threadId;
+    private final @Nullable Future<String> body;
+
+    private PendingInsert(XmlBackup.XmlBackupItem item, long threadId, @Nullable Future<String> body) {
+      this.item     = item;
+      this.threadId = threadId;
+      this.body     = body;
+    }
+  }
 }
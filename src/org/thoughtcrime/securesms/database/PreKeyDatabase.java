@@ -0,0 +1,179 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Our one-time and signed prekeys, keyed by their ids, so that loading the prekey a
+ * message was encrypted to is a single primary key lookup, and a batch of keys is
+ * written or removed in one transaction.
+ */
+public class PreKeyDatabase extends Database {
+
+  private static final String TAG = PreKeyDatabase.class.getSimpleName();
+
+  static final String PREKEY_TABLE_NAME        = "prekeys";
+  static final String SIGNED_PREKEY_TABLE_NAME = "signed_prekeys";
+  static final String KEY_ID                   = "key_id";
+  static final String TIMESTAMP                = "timestamp";
+  static final String RECORD                   = "record";
+
+  private static final String KEY_ID_WHERE = KEY_ID + " = ?";
+
+  public static final String CREATE_PREKEY_TABLE = "CREATE TABLE " + PREKEY_TABLE_NAME + " (" +
+    KEY_ID + " INTEGER PRIMARY KEY, " + RECORD + " BLOB NOT NULL);";
+
+  public static final String CREATE_SIGNED_PREKEY_TABLE = "CREATE TABLE " + SIGNED_PREKEY_TABLE_NAME + " (" +
+    KEY_ID + " INTEGER PRIMARY KEY, " + TIMESTAMP + " INTEGER, " + RECORD + " BLOB NOT NULL);";
+
+  public PreKeyDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  public @Nullable PreKeyRecord getPreKey(int keyId) {
+    byte[] serialized = getRecord(PREKEY_TABLE_NAME, keyId);
+
+    try {
+      return serialized != null ? new PreKeyRecord(serialized) : null;
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
+
+  public boolean containsPreKey(int keyId) {
+    return containsRecord(PREKEY_TABLE_NAME, keyId);
+  }
+
+  public void insertPreKeys(@NonNull Collection<PreKeyRecord> records) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.beginTransaction();
+
+    try {
+      for (PreKeyRecord record : records) {
+        ContentValues values = new ContentValues(2);
+        values.put(KEY_ID, record.getId());
+        values.put(RECORD, record.serialize());
+
+        database.replace(PREKEY_TABLE_NAME, null, values);
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+  }
+
+  public void removePreKey(int keyId) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.delete(PREKEY_TABLE_NAME, KEY_ID_WHERE, new String[] {String.valueOf(keyId)});
+  }
+
+  public @Nullable SignedPreKeyRecord getSignedPreKey(int keyId) {
+    byte[] serialized = getRecord(SIGNED_PREKEY_TABLE_NAME, keyId);
+
+    try {
+      return serialized != null ? new SignedPreKeyRecord(serialized) : null;
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
+
+  public @NonNull List<SignedPreKeyRecord> getAllSignedPreKeys() {
+    SQLiteDatabase           database = databaseHelper.getReadableDatabase();
+    List<SignedPreKeyRecord> results  = new LinkedList<>();
+    Cursor                   cursor   = null;
+
+    try {
+      cursor = database.query(SIGNED_PREKEY_TABLE_NAME, new String[] {RECORD}, null, null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        try {
+          results.add(new SignedPreKeyRecord(cursor.getBlob(0)));
+        } catch (IOException e) {
+          Log.w(TAG, e);
+        }
+      }
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+
+    return results;
+  }
+
+  public boolean containsSignedPreKey(int keyId) {
+    return containsRecord(SIGNED_PREKEY_TABLE_NAME, keyId);
+  }
+
+  public void insertSignedPreKey(@NonNull SignedPreKeyRecord record) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    ContentValues  values   = new ContentValues(3);
+
+    values.put(KEY_ID, record.getId());
+    values.put(TIMESTAMP, record.getTimestamp());
+    values.put(RECORD, record.serialize());
+
+    database.replace(SIGNED_PREKEY_TABLE_NAME, null, values);
+  }
+
+  public void removeSignedPreKeys(@NonNull Collection<Integer> keyIds) {
+    if (keyIds.isEmpty()) return;
+
+    SQLiteDatabase database  = databaseHelper.getWritableDatabase();
+    StringBuilder  where     = new StringBuilder(KEY_ID + " IN (");
+    String[]       arguments = new String[keyIds.size()];
+    int            i         = 0;
+
+    for (int keyId : keyIds) {
+      if (i > 0) where.append(", ");
+      where.append("?");
+      arguments[i++] = String.valueOf(keyId);
+    }
+
+    database.delete(SIGNED_PREKEY_TABLE_NAME, where.append(")").toString(), arguments);
+  }
+
+  private @Nullable byte[] getRecord(String table, int keyId) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(table, new String[] {RECORD}, KEY_ID_WHERE,
+                              new String[] {String.valueOf(keyId)}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) return cursor.getBlob(0);
+      else                                        return null;
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+
+  private boolean containsRecord(String table, int keyId) {
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    Cursor         cursor   = null;
+
+    try {
+      cursor = database.query(table, new String[] {KEY_ID}, KEY_ID_WHERE,
+                              new String[] {String.valueOf(keyId)}, null, null, null);
+
+      return cursor != null && cursor.moveToFirst();
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+}
@@ -7,6 +7,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.support.annotation.NonNull;
 import android.util.Log;
+import android.util.Pair;
 
 import org.thoughtcrime.securesms.util.Base64;
 import org.whispersystems.libsignal.util.guava.Optional;
@@ -14,6 +15,8 @@ import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 import org.whispersystems.signalservice.internal.util.Util;
 
 import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
 
 public class PushDatabase extends Database {
 
@@ -62,16 +65,7 @@ public class PushDatabase extends Database {
                                                           null, null, null);
 
       if (cursor != null && cursor.moveToNext()) {
-        String legacyMessage = cursor.getString(cursor.getColumnIndexOrThrow(LEGACY_MSG));
-        String content       = cursor.getString(cursor.getColumnIndexOrThrow(CONTENT));
-
-        return new SignalServiceEnvelope(cursor.getInt(cursor.getColumnIndexOrThrow(TYPE)),
-                                         cursor.getString(cursor.getColumnIndexOrThrow(SOURCE)),
-                                         cursor.getInt(cursor.getColumnIndexOrThrow(DEVICE_ID)),
-                                         "",
-                                         cursor.getLong(cursor.getColumnIndexOrThrow(TIMESTAMP)),
-                                         Util.isEmpty(legacyMessage) ? null : Base64.decode(legacyMessage),
-                                         Util.isEmpty(content) ? null : Base64.decode(content));
+        return getEnvelope(cursor);
       }
     } catch (IOException e) {
       Log.w(TAG, e);
@@ -84,8 +78,52 @@ public class PushDatabase extends Database {
     throw new NoSuchMessageException("Not found");
   }
 
+  /**
+   * Returns up to limit rows queued right after the given one, oldest first, stopping at the
+   * first row that isn't of the given type from the same source device. Rows that can't be
+   * decoded also end the run, and are left for their own jobs.
+   */
+  public List<Pair<Long, SignalServiceEnvelope>> getPendingRun(long id, String source, int deviceId, int type, int limit) {
+    List<Pair<Long, SignalServiceEnvelope>> results = new LinkedList<>();
+    Cursor                                  cursor  = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, null, ID + " > ?",
+                                                          new String[] {String.valueOf(id)},
+                                                          null, null, ID + " ASC", String.valueOf(limit));
+
+      while (cursor != null && cursor.moveToNext()) {
+        if (cursor.getInt(cursor.getColumnIndexOrThrow(TYPE)) != type          ||
+            cursor.getInt(cursor.getColumnIndexOrThrow(DEVICE_ID)) != deviceId ||
+            !source.equals(cursor.getString(cursor.getColumnIndexOrThrow(SOURCE))))
+        {
+          break;
+        }
+
+        results.add(new Pair<>(cursor.getLong(cursor.getColumnIndexOrThrow(ID)), getEnvelope(cursor)));
+      }
+    } catch (IOException e) {
+      Log.w(TAG, e);
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+
+    return results;
+  }
+
   public Cursor getPending() {
-    return databaseHelper.getReadableDatabase().query(TABLE_NAME, null, null, null, null, null, null);
+    return databaseHelper.getReadableDatabase().query(TABLE_NAME, null, null, null, null, null, ID + " ASC");
+  }
+
+  public boolean hasPending() {
+    Cursor cursor = null;
+
+    try {
+      cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {ID}, null, null, null, null, null, "1");
+      return cursor != null && cursor.moveToFirst();
+    } finally {
+      if (cursor != null) cursor.close();
+    }
   }
 
   public void delete(long id) {
@@ -96,6 +134,19 @@ public class PushDatabase extends Database {
     return new Reader(cursor);
   }
 
+  private SignalServiceEnvelope getEnvelope(Cursor cursor) throws IOException {
+    String legacyMessage = cursor.getString(cursor.getColumnIndexOrThrow(LEGACY_MSG));
+    String content       = cursor.getString(cursor.getColumnIndexOrThrow(CONTENT));
+
+    return new SignalServiceEnvelope(cursor.getInt(cursor.getColumnIndexOrThrow(TYPE)),
+                                     cursor.getString(cursor.getColumnIndexOrThrow(SOURCE)),
+                                     cursor.getInt(cursor.getColumnIndexOrThrow(DEVICE_ID)),
+                                     "",
+                                     cursor.getLong(cursor.getColumnIndexOrThrow(TIMESTAMP)),
+                                     Util.isEmpty(legacyMessage) ? null : Base64.decode(legacyMessage),
+                                     Util.isEmpty(content) ? null : Base64.decode(content));
+  }
+
   private Optional<Long> find(SignalServiceEnvelope envelope) {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
     Cursor         cursor   = null;
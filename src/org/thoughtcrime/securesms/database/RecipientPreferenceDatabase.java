@@ -199,6 +199,7 @@ public class RecipientPreferenceDatabase extends Database {
     database.setTransactionSuccessful();
     database.endTransaction();
 
+    RecipientFactory.invalidate(recipients.getIds());
     context.getContentResolver().notifyChange(Uri.parse(RECIPIENT_PREFERENCES_URI), null);
   }
 
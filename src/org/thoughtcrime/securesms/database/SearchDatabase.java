@@ -0,0 +1,305 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.crypto.MasterCipher;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.whispersystems.libsignal.InvalidMessageException;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A searchable index over message bodies that never stores plaintext.
+ *
+ * Each body is split into lowercased words, and every distinct word is stored as the
+ * first 64 bits of an HMAC keyed with a key derived from the master secret. A search
+ * hashes its words the same way and looks the hashes up, so matching is on whole words
+ * only. Each row also carries the message's received date, so the most recent matches
+ * for a word come straight off the (term, date) index without a sort.
+ *
+ * Rows are written as symmetrically encrypted bodies are inserted or updated, and are
+ * kept in sync with deletes and date changes by triggers on the timeline table.
+ */
+public class SearchDatabase extends Database {
+
+  private static final String TAG = SearchDatabase.class.getSimpleName();
+
+  static final String TABLE_NAME    = "search_index";
+  static final String TERM          = "term";
+  static final String TRANSPORT     = "transport";
+  static final String MESSAGE_ID    = "message_id";
+  static final String DATE_RECEIVED = "date_received";
+
+  public static final String THREAD_ID = "thread_id";
+
+  private static final int    MIN_TERM_LENGTH = 2;
+  private static final int    MAX_TERM_LENGTH = 64;
+  private static final int    MAX_QUERY_TERMS = 8;
+  private static final String KEY_INFO        = "search-index";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + TERM + " INTEGER, " +
+    TRANSPORT + " TEXT, " + MESSAGE_ID + " INTEGER, " + DATE_RECEIVED + " INTEGER);";
+
+  public static final String[] CREATE_INDEXS = {
+    "CREATE INDEX IF NOT EXISTS search_index_term_date_index ON " + TABLE_NAME + " (" + TERM + ", " + DATE_RECEIVED + ");",
+    "CREATE INDEX IF NOT EXISTS search_index_message_index ON " + TABLE_NAME + " (" + TRANSPORT + ", " + MESSAGE_ID + ", " + TERM + ");"
+  };
+
+  public static final String[] CREATE_TRIGGERS = {
+    "CREATE TRIGGER IF NOT EXISTS search_index_timeline_delete AFTER DELETE ON " + TimelineDatabase.TABLE_NAME + " BEGIN " +
+        "DELETE FROM " + TABLE_NAME + " WHERE " + TRANSPORT + " = OLD." + TimelineDatabase.TRANSPORT + " AND " + MESSAGE_ID + " = OLD." + TimelineDatabase.MESSAGE_ID + "; " +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS search_index_timeline_update AFTER UPDATE OF " + TimelineDatabase.DATE_RECEIVED + " ON " + TimelineDatabase.TABLE_NAME + " BEGIN " +
+        "UPDATE " + TABLE_NAME + " SET " + DATE_RECEIVED + " = NEW." + TimelineDatabase.DATE_RECEIVED +
+        " WHERE " + TRANSPORT + " = OLD." + TimelineDatabase.TRANSPORT + " AND " + MESSAGE_ID + " = OLD." + TimelineDatabase.MESSAGE_ID + "; " +
+    "END;"
+  };
+
+  public SearchDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  /**
+   * Replaces the indexed terms for a message with the words in the given plaintext body.
+   * Safe to call more than once for the same message.
+   */
+  public void indexMessage(@NonNull MasterSecret masterSecret, @NonNull String transport,
+                           long messageId, @Nullable String body)
+  {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      indexMessage(db, new TermHasher(masterSecret), transport, messageId, body);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  void indexMessage(@NonNull SQLiteDatabase db, @NonNull TermHasher hasher,
+                    @NonNull String transport, long messageId, @Nullable String body)
+  {
+    db.delete(TABLE_NAME, TRANSPORT + " = ? AND " + MESSAGE_ID + " = ?",
+              new String[] {transport, String.valueOf(messageId)});
+
+    Set<String> words = getWords(body);
+    if (words.isEmpty()) return;
+
+    Long dateReceived = getDateReceived(db, transport, messageId);
+    if (dateReceived == null) return;
+
+    ContentValues values = new ContentValues(4);
+    values.put(TRANSPORT, transport);
+    values.put(MESSAGE_ID, messageId);
+    values.put(DATE_RECEIVED, dateReceived);
+
+    for (String word : words) {
+      values.put(TERM, hasher.hash(word));
+      db.insert(TABLE_NAME, null, values);
+    }
+  }
+
+  /**
+   * Returns the messages containing every word in the query, newest first, as rows of
+   * {@link #THREAD_ID}, {@link MmsSmsColumns#NORMALIZED_DATE_RECEIVED},
+   * {@link MmsSmsDatabase#TRANSPORT} and {@link MmsSmsColumns#ID}.
+   */
+  public Cursor search(@NonNull MasterSecret masterSecret, @NonNull String query, int limit) {
+    List<String> words = new ArrayList<>(getWords(query));
+
+    if (words.isEmpty()) return null;
+
+    // Longer words tend to be rarer, so let the longest one drive the scan
+    // and check the rest against the (transport, message_id, term) index.
+    Collections.sort(words, new Comparator<String>() {
+      @Override
+      public int compare(String lhs, String rhs) {
+        return rhs.length() - lhs.length();
+      }
+    });
+
+    if (words.size() > MAX_QUERY_TERMS) words = words.subList(0, MAX_QUERY_TERMS);
+
+    TermHasher    hasher    = new TermHasher(masterSecret);
+    String[]      args      = new String[words.size()];
+    StringBuilder selection = new StringBuilder("s." + TERM + " = ?");
+
+    args[0] = String.valueOf(hasher.hash(words.get(0)));
+
+    for (int i=1;i<words.size();i++) {
+      selection.append(" AND EXISTS (SELECT 1 FROM " + TABLE_NAME + " o WHERE o." + TRANSPORT + " = s." + TRANSPORT +
+                       " AND o." + MESSAGE_ID + " = s." + MESSAGE_ID + " AND o." + TERM + " = ?)");
+      args[i] = String.valueOf(hasher.hash(words.get(i)));
+    }
+
+    String sql = "SELECT t." + TimelineDatabase.THREAD_ID + " AS " + THREAD_ID + ", " +
+                        "s." + DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
+                        "s." + TRANSPORT + " AS " + MmsSmsDatabase.TRANSPORT + ", " +
+                        "s." + MESSAGE_ID + " AS " + MmsSmsColumns.ID +
+                 " FROM " + TABLE_NAME + " s INNER JOIN " + TimelineDatabase.TABLE_NAME + " t" +
+                 " ON t." + TimelineDatabase.TRANSPORT + " = s." + TRANSPORT + " AND t." + TimelineDatabase.MESSAGE_ID + " = s." + MESSAGE_ID +
+                 " WHERE " + selection +
+                 " ORDER BY s." + DATE_RECEIVED + " DESC" +
+                 (limit > 0 ? " LIMIT " + limit : "");
+
+    long   startTime = System.currentTimeMillis();
+    Cursor cursor    = databaseHelper.getReadableDatabase().rawQuery(sql, args);
+
+    cursor.getCount();
+    Log.w(TAG, "Searched " + words.size() + " terms in " + (System.currentTimeMillis() - startTime) + "ms");
+
+    return cursor;
+  }
+
+  /**
+   * Indexes up to {@code limit} messages from one transport with ids greater than
+   * {@code afterId}, in a single transaction. Returns the last id indexed, or -1 once
+   * there are no more messages.
+   */
+  public long indexMessagesAfter(@NonNull MasterSecret masterSecret, @NonNull String transport,
+                                 long afterId, int limit)
+  {
+    boolean        mms        = MmsSmsDatabase.MMS_TRANSPORT.equals(transport);
+    String         table      = mms ? MmsDatabase.TABLE_NAME  : SmsDatabase.TABLE_NAME;
+    String         typeColumn = mms ? MmsDatabase.MESSAGE_BOX : SmsDatabase.TYPE;
+    MasterCipher   cipher     = MasterCipher.getThreadLocalInstance(masterSecret);
+    TermHasher     hasher     = new TermHasher(masterSecret);
+    SQLiteDatabase db         = databaseHelper.getWritableDatabase();
+    Cursor         cursor     = null;
+    long           lastId     = -1;
+
+    db.beginTransaction();
+
+    try {
+      cursor = db.query(table, new String[] {MmsSmsColumns.ID, typeColumn, MmsSmsColumns.BODY},
+                        MmsSmsColumns.ID + " > ?", new String[] {String.valueOf(afterId)},
+                        null, null, MmsSmsColumns.ID + " ASC", String.valueOf(limit));
+
+      while (cursor != null && cursor.moveToNext()) {
+        long   messageId  = cursor.getLong(0);
+        long   type       = cursor.getLong(1);
+        String ciphertext = cursor.getString(2);
+
+        lastId = messageId;
+
+        if (TextUtils.isEmpty(ciphertext) || !MmsSmsColumns.Types.isSymmetricEncryption(type)) {
+          continue;
+        }
+
+        try {
+          indexMessage(db, hasher, transport, messageId, cipher.decryptBody(ciphertext));
+        } catch (InvalidMessageException e) {
+          Log.w(TAG, e);
+        }
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      if (cursor != null) cursor.close();
+      db.endTransaction();
+    }
+
+    return lastId;
+  }
+
+  public void clear() {
+    databaseHelper.getWritableDatabase().delete(TABLE_NAME, null, null);
+  }
+
+  private @Nullable Long getDateReceived(@NonNull SQLiteDatabase db, @NonNull String transport, long messageId) {
+    Cursor cursor = null;
+
+    try {
+      cursor = db.query(TimelineDatabase.TABLE_NAME, new String[] {TimelineDatabase.DATE_RECEIVED},
+                        TimelineDatabase.TRANSPORT + " = ? AND " + TimelineDatabase.MESSAGE_ID + " = ?",
+                        new String[] {transport, String.valueOf(messageId)},
+                        null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) return cursor.getLong(0);
+      else                                        return null;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  static @NonNull Set<String> getWords(@Nullable String text) {
+    Set<String> words = new LinkedHashSet<>();
+
+    if (TextUtils.isEmpty(text)) return words;
+
+    String lowercase = text.toLowerCase(Locale.ROOT);
+    int    start     = -1;
+
+    for (int i=0;i<=lowercase.length();i++) {
+      boolean wordCharacter = i < lowercase.length() && Character.isLetterOrDigit(lowercase.charAt(i));
+
+      if (wordCharacter && start == -1) {
+        start = i;
+      } else if (!wordCharacter && start != -1) {
+        if (i - start >= MIN_TERM_LENGTH) {
+          words.add(lowercase.substring(start, Math.min(i, start + MAX_TERM_LENGTH)));
+        }
+
+        start = -1;
+      }
+    }
+
+    return words;
+  }
+
+  /**
+   * Hashes words into index terms. Holds its own Mac, so it should be confined
+   * to one thread, but can be reused across many messages.
+   */
+  static class TermHasher {
+
+    private final Mac mac;
+
+    TermHasher(@NonNull MasterSecret masterSecret) {
+      try {
+        Mac derivation = Mac.getInstance("HmacSHA256");
+        derivation.init(masterSecret.getMacKey());
+
+        byte[] key = derivation.doFinal(KEY_INFO.getBytes());
+
+        this.mac = Mac.getInstance("HmacSHA256");
+        this.mac.init(new SecretKeySpec(key, "HmacSHA256"));
+      } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    long hash(@NonNull String word) {
+      byte[] digest = mac.doFinal(word.getBytes());
+      long   term   = 0;
+
+      for (int i=0;i<8;i++) {
+        term = (term << 8) | (digest[i] & 0xff);
+      }
+
+      return term;
+    }
+  }
+}
@@ -23,6 +23,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.Log;
@@ -34,6 +35,7 @@ import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatchList;
 import org.thoughtcrime.securesms.database.model.DisplayRecord;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.SmsMessageRecord;
+import org.thoughtcrime.securesms.jobs.PriorityJobManager;
 import org.thoughtcrime.securesms.jobs.TrimThreadJob;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
@@ -42,13 +44,14 @@ import org.thoughtcrime.securesms.sms.IncomingGroupMessage;
 import org.thoughtcrime.securesms.sms.IncomingTextMessage;
 import org.thoughtcrime.securesms.sms.OutgoingTextMessage;
 import org.thoughtcrime.securesms.util.JsonUtils;
-import org.whispersystems.jobqueue.JobManager;
+import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.util.InvalidNumberException;
 
 import java.io.IOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
@@ -104,7 +107,7 @@ public class SmsDatabase extends MessagingDatabase {
   };
 
   private static final EarlyReceiptCache earlyReceiptCache = new EarlyReceiptCache();
-  private final JobManager jobManager;
+  private final PriorityJobManager jobManager;
 
   public SmsDatabase(Context context, SQLiteOpenHelper databaseHelper) {
     super(context, databaseHelper);
@@ -125,7 +128,7 @@ public class SmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(id);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    DatabaseFactory.getThreadDatabase(context).updateForChange(threadId, MmsSmsDatabase.SMS_TRANSPORT, id, false);
     notifyConversationListeners(threadId);
   }
 
@@ -254,10 +257,22 @@ public class SmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(id);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    DatabaseFactory.getThreadDatabase(context).updateForChange(threadId, MmsSmsDatabase.SMS_TRANSPORT, id, false);
     notifyConversationListeners(threadId);
   }
 
+  public void markExpireStarted(long[] ids, long startedAtTimestamp) {
+    ContentValues contentValues = new ContentValues();
+    contentValues.put(EXPIRE_STARTED, startedAtTimestamp);
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.update(TABLE_NAME, contentValues, ID + " IN (" + Util.join(ids, ",") + ")", null);
+
+    for (long threadId : getThreadIdsForMessages(ids)) {
+      notifyConversationListeners(threadId);
+    }
+  }
+
   public void markStatus(long id, int status) {
     Log.w("MessageDatabase", "Updating ID: " + id + " to status: " + status);
     ContentValues contentValues = new ContentValues();
@@ -267,7 +282,7 @@ public class SmsDatabase extends MessagingDatabase {
     db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {id+""});
 
     long threadId = getThreadIdForMessage(id);
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    DatabaseFactory.getThreadDatabase(context).updateForChange(threadId, MmsSmsDatabase.SMS_TRANSPORT, id, false);
     notifyConversationListeners(threadId);
   }
 
@@ -301,14 +316,15 @@ public class SmsDatabase extends MessagingDatabase {
             String ourAddress   = canonicalizeNumber(context, cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
 
             if (ourAddress.equals(theirAddress)) {
+              long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
               long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
 
               database.execSQL("UPDATE " + TABLE_NAME +
                                " SET " + RECEIPT_COUNT + " = " + RECEIPT_COUNT + " + 1 WHERE " +
                                ID + " = ?",
-                               new String[] {String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))});
+                               new String[] {String.valueOf(id)});
 
-              DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+              DatabaseFactory.getThreadDatabase(context).updateForChange(threadId, MmsSmsDatabase.SMS_TRANSPORT, id, false);
               notifyConversationListeners(threadId);
               foundMessage = true;
             }
@@ -333,9 +349,13 @@ public class SmsDatabase extends MessagingDatabase {
   }
 
   public List<MarkedMessageInfo> setMessagesRead(long threadId) {
+    return setMessagesRead(new long[] {threadId});
+  }
+
+  public List<MarkedMessageInfo> setMessagesRead(long[] threadIds) {
     SQLiteDatabase          database  = databaseHelper.getWritableDatabase();
-    String                  where     = THREAD_ID + " = ? AND " + READ + " = 0";
-    String[]                selection = new String[]{String.valueOf(threadId)};
+    String                  where     = THREAD_ID + " IN (" + Util.join(threadIds, ",") + ") AND " + READ + " = 0";
+    String[]                selection = null;
     List<MarkedMessageInfo> results   = new LinkedList<>();
     Cursor                  cursor    = null;
 
@@ -427,7 +447,7 @@ public class SmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(messageId);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateForChange(threadId, MmsSmsDatabase.SMS_TRANSPORT, messageId, true);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
 
@@ -453,7 +473,7 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db           = databaseHelper.getWritableDatabase();
     long           newMessageId = db.insert(TABLE_NAME, null, contentValues);
 
-    DatabaseFactory.getThreadDatabase(context).update(record.getThreadId(), true);
+    DatabaseFactory.getThreadDatabase(context).updateForInsert(record.getThreadId(), MmsSmsDatabase.SMS_TRANSPORT, newMessageId, true);
     notifyConversationListeners(record.getThreadId());
 
     jobManager.add(new TrimThreadJob(context, record.getThreadId()));
@@ -490,7 +510,7 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     long messageId    = db.insert(TABLE_NAME, null, values);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, MmsSmsDatabase.SMS_TRANSPORT, messageId, true);
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
 
@@ -502,6 +522,53 @@ public class SmsDatabase extends MessagingDatabase {
   }
 
   protected Optional<InsertResult> insertMessageInbox(IncomingTextMessage message, long type) {
+    return insertMessageInbox(message, type, null);
+  }
+
+  /**
+   * Inserts a batch of incoming messages in a single transaction. Each affected thread is
+   * updated once, and conversation listeners are notified once per thread, after the whole
+   * batch has been committed.
+   */
+  protected List<Optional<InsertResult>> insertMessagesInbox(List<IncomingTextMessage> messages, long type) {
+    SQLiteDatabase               db        = databaseHelper.getWritableDatabase();
+    IncomingBatch                batch     = new IncomingBatch();
+    List<Optional<InsertResult>> results   = new ArrayList<>(messages.size());
+    long                         startTime = System.currentTimeMillis();
+
+    db.beginTransaction();
+
+    try {
+      for (IncomingTextMessage message : messages) {
+        results.add(insertMessageInbox(message, type, batch));
+      }
+
+      batch.applyTo(DatabaseFactory.getThreadDatabase(context));
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    Log.w(TAG, "Inserted " + messages.size() + " messages into " + batch.getThreadIds().size() +
+               " threads in " + (System.currentTimeMillis() - startTime) + "ms");
+
+    notifyConversationListeners(batch.getThreadIds());
+    notifyConversationListListeners();
+
+    for (long threadId : batch.getThreadIds()) {
+      jobManager.add(new TrimThreadJob(context, threadId));
+    }
+
+    return results;
+  }
+
+  public List<Optional<InsertResult>> insertMessagesInbox(List<IncomingTextMessage> messages) {
+    return insertMessagesInbox(messages, Types.BASE_INBOX_TYPE);
+  }
+
+  private Optional<InsertResult> insertMessageInbox(IncomingTextMessage message, long type,
+                                                    @Nullable IncomingBatch batch)
+  {
     if (message.isJoined()) {
       type = (type & (Types.TOTAL_MASK - Types.BASE_TYPE_MASK)) | Types.JOINED_TYPE;
     } else if (message.isPreKeyBundle()) {
@@ -573,16 +640,23 @@ public class SmsDatabase extends MessagingDatabase {
       SQLiteDatabase db        = databaseHelper.getWritableDatabase();
       long           messageId = db.insert(TABLE_NAME, null, values);
 
+      if (message.getSubscriptionId() != -1) {
+        DatabaseFactory.getRecipientPreferenceDatabase(context).setDefaultSubscriptionId(recipients, message.getSubscriptionId());
+      }
+
+      if (batch != null) {
+        batch.addMessage(threadId, !message.isIdentityUpdate(), unread);
+        return Optional.of(new InsertResult(messageId, threadId));
+      }
+
       if (unread) {
         DatabaseFactory.getThreadDatabase(context).setUnread(threadId);
       }
 
       if (!message.isIdentityUpdate()) {
-        DatabaseFactory.getThreadDatabase(context).update(threadId, true);
-      }
-
-      if (message.getSubscriptionId() != -1) {
-        DatabaseFactory.getRecipientPreferenceDatabase(context).setDefaultSubscriptionId(recipients, message.getSubscriptionId());
+        DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, MmsSmsDatabase.SMS_TRANSPORT, messageId, true);
+      } else {
+        DatabaseFactory.getThreadDatabase(context).incrementMessageCount(threadId);
       }
 
       notifyConversationListeners(threadId);
@@ -631,7 +705,7 @@ public class SmsDatabase extends MessagingDatabase {
       insertListener.onComplete();
     }
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, MmsSmsDatabase.SMS_TRANSPORT, messageId, true);
     DatabaseFactory.getThreadDatabase(context).setLastSeen(threadId);
     notifyConversationListeners(threadId);
     jobManager.add(new TrimThreadJob(context, threadId));
@@ -639,9 +713,10 @@ public class SmsDatabase extends MessagingDatabase {
     return messageId;
   }
 
-  Cursor getMessages(int skip, int limit) {
+  Cursor getMessagesAfter(long afterId, int limit) {
     SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    return db.query(TABLE_NAME, MESSAGE_PROJECTION, null, null, null, null, ID, skip + "," + limit);
+    return db.query(TABLE_NAME, MESSAGE_PROJECTION, ID + " > ?", new String[] {String.valueOf(afterId)},
+                    null, null, ID, String.valueOf(limit));
   }
 
   Cursor getOutgoingMessages() {
@@ -682,8 +757,9 @@ public class SmsDatabase extends MessagingDatabase {
     Log.w("MessageDatabase", "Deleting: " + messageId);
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     long threadId     = getThreadIdForMessage(messageId);
+    boolean wasLatest = DatabaseFactory.getTimelineDatabase(context).isLatestMessage(threadId, MmsSmsDatabase.SMS_TRANSPORT, messageId);
     db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).updateForDelete(threadId, wasLatest);
     notifyConversationListeners(threadId);
     return threadDeleted;
   }
@@ -706,17 +782,9 @@ public class SmsDatabase extends MessagingDatabase {
     db.delete(TABLE_NAME, THREAD_ID + " = ?", new String[] {threadId+""});
   }
 
-  /*package*/void deleteMessagesInThreadBeforeDate(long threadId, long date) {
+  /*package*/ void deleteMessages(long[] messageIds) {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    String where      = THREAD_ID + " = ? AND (CASE " + TYPE;
-
-    for (long outgoingType : Types.OUTGOING_MESSAGE_TYPES) {
-      where += " WHEN " + outgoingType + " THEN " + DATE_SENT + " < " + date;
-    }
-
-    where += (" ELSE " + DATE_RECEIVED + " < " + date + " END)");
-
-    db.delete(TABLE_NAME, where, new String[] {threadId + ""});
+    db.delete(TABLE_NAME, ID + " IN (" + Util.join(messageIds, ",") + ")", null);
   }
 
   /*package*/ void deleteThreads(Set<Long> threadIds) {
@@ -1,12 +1,14 @@
 package org.thoughtcrime.securesms.database;
 
+import android.annotation.TargetApi;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
-import android.net.Uri;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -16,8 +18,11 @@ import org.whispersystems.signalservice.api.util.PhoneNumberFormatter;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class TextSecureDirectory {
@@ -63,6 +68,9 @@ public class TextSecureDirectory {
 
   private final DatabaseHelper databaseHelper;
   private final Context        context;
+  private final Object         snapshotLock = new Object();
+
+  private volatile Map<String, Capabilities> snapshot;
 
   private TextSecureDirectory(Context context) {
     this.context = context;
@@ -70,77 +78,85 @@ public class TextSecureDirectory {
   }
 
   public boolean isSecureTextSupported(String e164number) throws NotInDirectoryException {
-    if (e164number == null || e164number.length() == 0) {
-      return false;
-    }
-
-    SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    Cursor cursor = null;
+    return getCapabilities(e164number).isRegistered();
+  }
 
-    try {
-      cursor = db.query(TABLE_NAME,
-          new String[]{REGISTERED}, NUMBER + " = ?",
-          new String[] {e164number}, null, null, null);
+  public boolean isSecureVoiceSupported(String e164number) throws NotInDirectoryException {
+    return getCapabilities(e164number).isVoice();
+  }
 
-      if (cursor != null && cursor.moveToFirst()) {
-        return cursor.getInt(0) == 1;
-      } else {
-        throw new NotInDirectoryException();
-      }
+  public boolean isSecureVideoSupported(String e164number) throws NotInDirectoryException {
+    return getCapabilities(e164number).isVideo();
+  }
 
-    } finally {
-      if (cursor != null)
-        cursor.close();
+  /**
+   * Looks up every number at once. Numbers that aren't in the directory are left out of
+   * the result.
+   */
+  public @NonNull Map<String, Capabilities> getCapabilities(@NonNull Collection<String> e164numbers) {
+    Map<String, Capabilities> snapshot = getSnapshot();
+    Map<String, Capabilities> results  = new HashMap<>(e164numbers.size());
+
+    for (String e164number : e164numbers) {
+      Capabilities capabilities = snapshot.get(e164number);
+      if (capabilities != null) results.put(e164number, capabilities);
     }
+
+    return results;
   }
 
-  public boolean isSecureVoiceSupported(String e164number) throws NotInDirectoryException {
+  public @NonNull Capabilities getCapabilities(String e164number) throws NotInDirectoryException {
     if (TextUtils.isEmpty(e164number)) {
-      return false;
+      return Capabilities.NONE;
     }
 
-    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
-    Cursor         cursor = null;
-
-    try {
-      cursor = db.query(TABLE_NAME,
-                        new String[]{VOICE}, NUMBER + " = ?",
-                        new String[] {e164number}, null, null, null);
-
-      if (cursor != null && cursor.moveToFirst()) {
-        return cursor.getInt(0) == 1;
-      } else {
-        throw new NotInDirectoryException();
-      }
-
-    } finally {
-      if (cursor != null)
-        cursor.close();
-    }
-  }
+    Capabilities capabilities = getSnapshot().get(e164number);
 
-  public boolean isSecureVideoSupported(String e164number) throws NotInDirectoryException {
-    if (TextUtils.isEmpty(e164number)) {
-      return false;
+    if (capabilities == null) {
+      throw new NotInDirectoryException();
     }
 
-    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
-    Cursor         cursor = null;
+    return capabilities;
+  }
 
-    try {
-      cursor = db.query(TABLE_NAME,
-                        new String[]{VIDEO}, NUMBER + " = ?",
-                        new String[] {e164number}, null, null, null);
+  /**
+   * The whole directory table is small, one row per contact number, so it is read once
+   * into memory and kept until the next write.
+   */
+  private @NonNull Map<String, Capabilities> getSnapshot() {
+    Map<String, Capabilities> snapshot = this.snapshot;
+    if (snapshot != null) return snapshot;
+
+    synchronized (snapshotLock) {
+      if (this.snapshot == null) {
+        Map<String, Capabilities> results = new HashMap<>();
+        Cursor                    cursor  = null;
+
+        try {
+          cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, new String[] {NUMBER, REGISTERED, VOICE, VIDEO, RELAY},
+                                                              null, null, null, null, null);
+
+          while (cursor != null && cursor.moveToNext()) {
+            results.put(cursor.getString(0), new Capabilities(cursor.getInt(1) == 1,
+                                                              cursor.getInt(2) == 1,
+                                                              cursor.getInt(3) == 1,
+                                                              cursor.getString(4)));
+          }
+        } finally {
+          if (cursor != null)
+            cursor.close();
+        }
 
-      if (cursor != null && cursor.moveToFirst()) {
-        return cursor.getInt(0) == 1;
-      } else {
-        throw new NotInDirectoryException();
+        this.snapshot = Collections.unmodifiableMap(results);
       }
 
-    } finally {
-      if (cursor != null)
-        cursor.close();
+      return this.snapshot;
+    }
+  }
+
+  private void invalidateSnapshot() {
+    synchronized (snapshotLock) {
+      snapshot = null;
     }
   }
 
@@ -172,15 +188,26 @@ public class TextSecureDirectory {
     values.put(VOICE, token.isVoice());
     values.put(VIDEO, token.isVideo());
     db.replace(TABLE_NAME, null, values);
+
+    invalidateSnapshot();
   }
 
+  /**
+   * Writes only the rows whose state differs from what is already stored.
+   */
   public void setNumbers(List<ContactTokenDetails> activeTokens, Collection<String> inactiveTokens) {
-    long timestamp    = System.currentTimeMillis();
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    long                      timestamp = System.currentTimeMillis();
+    Map<String, Capabilities> current   = getSnapshot();
+    SQLiteDatabase            db        = databaseHelper.getWritableDatabase();
+    int                       written   = 0;
+
     db.beginTransaction();
 
     try {
       for (ContactTokenDetails token : activeTokens) {
+        Capabilities existing = current.get(token.getNumber());
+        if (existing != null && existing.isUnchanged(token)) continue;
+
         Log.w("Directory", "Adding active token: " + token.getNumber() + ", " + token.getToken() + ", video: " + token.isVideo());
         ContentValues values = new ContentValues();
         values.put(NUMBER, token.getNumber());
@@ -190,29 +217,68 @@ public class TextSecureDirectory {
         values.put(VOICE, token.isVoice());
         values.put(VIDEO, token.isVideo());
         db.replace(TABLE_NAME, null, values);
+        written++;
       }
 
       for (String token : inactiveTokens) {
+        Capabilities existing = current.get(token);
+        if (existing != null && !existing.isRegistered()) continue;
+
         ContentValues values = new ContentValues();
         values.put(NUMBER, token);
         values.put(REGISTERED, 0);
         values.put(TIMESTAMP, timestamp);
         db.replace(TABLE_NAME, null, values);
+        written++;
       }
 
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
+      invalidateSnapshot();
     }
+
+    Log.w("Directory", "Wrote " + written + " of " + (activeTokens.size() + inactiveTokens.size()) + " directory rows");
   }
 
   public Set<String> getPushEligibleContactNumbers(String localNumber) {
-    final Uri         uri     = Phone.CONTENT_URI;
+    final Set<String> results = getSystemContactNumbers(localNumber, null, null);
+          Cursor      cursor  = null;
+
+    try {
+      final SQLiteDatabase readableDb = databaseHelper.getReadableDatabase();
+      if (readableDb != null) {
+        cursor = readableDb.query(TABLE_NAME, new String[]{NUMBER},
+            null, null, null, null, null);
+
+        while (cursor != null && cursor.moveToNext()) {
+          results.add(cursor.getString(0));
+        }
+      }
+
+      return results;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * The numbers of system contacts added or changed at or after {@code timestamp}.
+   * Only available on API 18 and above, where contacts record when they were last updated.
+   */
+  @TargetApi(18)
+  public Set<String> getContactNumbersChangedSince(long timestamp, String localNumber) {
+    return getSystemContactNumbers(localNumber, Phone.CONTACT_LAST_UPDATED_TIMESTAMP + " >= ?",
+                                   new String[] {String.valueOf(timestamp)});
+  }
+
+  private Set<String> getSystemContactNumbers(String localNumber, @Nullable String selection, @Nullable String[] args) {
     final Set<String> results = new HashSet<>();
           Cursor      cursor  = null;
 
     try {
-      cursor = context.getContentResolver().query(uri, new String[] {Phone.NUMBER}, null, null, null);
+      cursor = context.getContentResolver().query(Phone.CONTENT_URI, new String[] {Phone.NUMBER}, selection, args, null);
 
       while (cursor != null && cursor.moveToNext()) {
         final String rawNumber = cursor.getString(0);
@@ -226,19 +292,6 @@ public class TextSecureDirectory {
         }
       }
 
-      if (cursor != null)
-        cursor.close();
-
-      final SQLiteDatabase readableDb = databaseHelper.getReadableDatabase();
-      if (readableDb != null) {
-        cursor = readableDb.query(TABLE_NAME, new String[]{NUMBER},
-            null, null, null, null, null);
-
-        while (cursor != null && cursor.moveToNext()) {
-          results.add(cursor.getString(0));
-        }
-      }
-
       return results;
     } finally {
       if (cursor != null)
@@ -263,6 +316,40 @@ public class TextSecureDirectory {
     }
   }
 
+  public static class Capabilities {
+
+    private static final Capabilities NONE = new Capabilities(false, false, false, null);
+
+    private final boolean registered;
+    private final boolean voice;
+    private final boolean video;
+    private final String  relay;
+
+    private Capabilities(boolean registered, boolean voice, boolean video, @Nullable String relay) {
+      this.registered = registered;
+      this.voice      = voice;
+      this.video      = video;
+      this.relay      = relay;
+    }
+
+    private boolean isUnchanged(ContactTokenDetails token) {
+      return registered && voice == token.isVoice() && video == token.isVideo() &&
+             TextUtils.equals(relay, token.getRelay());
+    }
+
+    public boolean isRegistered() {
+      return registered;
+    }
+
+    public boolean isVoice() {
+      return voice;
+    }
+
+    public boolean isVideo() {
+      return video;
+    }
+  }
+
   private static class DatabaseHelper extends SQLiteOpenHelper {
 
     public DatabaseHelper(Context context, String name,
@@ -19,7 +19,6 @@ package org.thoughtcrime.securesms.database;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
@@ -27,6 +26,7 @@ import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
+import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.database.MessagingDatabase.MarkedMessageInfo;
@@ -35,6 +35,7 @@ import org.thoughtcrime.securesms.database.model.DisplayRecord;
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
+import org.thoughtcrime.securesms.jobs.AttachmentOrphanSweepJob;
 import org.thoughtcrime.securesms.mms.Slide;
 import org.thoughtcrime.securesms.mms.SlideDeck;
 import org.thoughtcrime.securesms.recipients.Recipient;
@@ -44,6 +45,7 @@ import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libsignal.InvalidMessageException;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -53,6 +55,8 @@ public class ThreadDatabase extends Database {
 
   private static final String TAG = ThreadDatabase.class.getSimpleName();
 
+  private static final int TRIM_CHUNK_SIZE = 500;
+
           static final String TABLE_NAME      = "thread";
   public  static final String ID              = "_id";
   public  static final String DATE            = "date";
@@ -136,27 +140,33 @@ public class ThreadDatabase extends Database {
     return db.insert(TABLE_NAME, null, contentValues);
   }
 
-  private void updateThread(long threadId, long count, String body, @Nullable Uri attachment,
-                            long date, int status, int receiptCount, long type, boolean unarchive,
-                            long expiresIn)
-  {
-    ContentValues contentValues = new ContentValues(7);
-    contentValues.put(DATE, date - date % 1000);
+  private void updateThread(long threadId, long count, MessageRecord record, boolean unarchive) {
+    ContentValues contentValues = getSnippetValues(record, unarchive);
     contentValues.put(MESSAGE_COUNT, count);
-    contentValues.put(SNIPPET, body);
+
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
+    notifyConversationListListeners();
+  }
+
+  private ContentValues getSnippetValues(MessageRecord record, boolean unarchive) {
+    long          date          = record.getTimestamp();
+    Uri           attachment    = getAttachmentUriFor(record);
+    ContentValues contentValues = new ContentValues(8);
+
+    contentValues.put(DATE, date - date % 1000);
+    contentValues.put(SNIPPET, record.getBody().getBody());
     contentValues.put(SNIPPET_URI, attachment == null ? null : attachment.toString());
-    contentValues.put(SNIPPET_TYPE, type);
-    contentValues.put(STATUS, status);
-    contentValues.put(RECEIPT_COUNT, receiptCount);
-    contentValues.put(EXPIRES_IN, expiresIn);
+    contentValues.put(SNIPPET_TYPE, record.getType());
+    contentValues.put(STATUS, record.getDeliveryStatus());
+    contentValues.put(RECEIPT_COUNT, record.getReceiptCount());
+    contentValues.put(EXPIRES_IN, record.getExpiresIn());
 
     if (unarchive) {
       contentValues.put(ARCHIVED, 0);
     }
 
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.update(TABLE_NAME, contentValues, ID + " = ?", new String[] {threadId + ""});
-    notifyConversationListListeners();
+    return contentValues;
   }
 
   public void updateSnippet(long threadId, String snippet, @Nullable Uri attachment, long date, long type, boolean unarchive) {
@@ -202,49 +212,63 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
+  /**
+   * Trims every thread to its newest length messages. The cutoff for every thread that
+   * is over the limit is found in a single query against the timeline index, and each
+   * thread is then trimmed in short chunked transactions so that other writers aren't
+   * locked out for the duration. Progress is reported in messages deleted.
+   */
   public void trimAllThreads(int length, ProgressListener listener) {
-    Cursor cursor   = null;
-    int threadCount = 0;
-    int complete    = 0;
+    if (length <= 0) return;
 
-    try {
-      cursor = this.getConversationList();
+    long           startTime = System.currentTimeMillis();
+    List<long[]>   cutoffs   = new LinkedList<>();
+    int            total     = 0;
+    TrimCount      count     = new TrimCount();
+    SQLiteDatabase db        = databaseHelper.getReadableDatabase();
+    Cursor         cursor    = null;
 
-      if (cursor != null)
-        threadCount = cursor.getCount();
+    try {
+      cursor = db.rawQuery("SELECT " + ID + ", " + MESSAGE_COUNT + ", " + getTrimCutoffQuery(TABLE_NAME + "." + ID) +
+                           " FROM " + TABLE_NAME + " WHERE " + MESSAGE_COUNT + " > ?",
+                           new String[] {String.valueOf(length - 1), String.valueOf(length)});
 
       while (cursor != null && cursor.moveToNext()) {
-        long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-        trimThread(threadId, length);
+        if (cursor.isNull(2)) continue;
 
-        listener.onProgress(++complete, threadCount);
+        cutoffs.add(new long[] {cursor.getLong(0), cursor.getLong(2)});
+        total += cursor.getInt(1) - length;
       }
     } finally {
       if (cursor != null)
         cursor.close();
     }
-  }
 
-  public void trimThread(long threadId, int length) {
-    Log.w("ThreadDatabase", "Trimming thread: " + threadId + " to: " + length);
-    Cursor cursor = null;
+    for (long[] cutoff : cutoffs) {
+      trimThreadBefore(cutoff[0], cutoff[1], count, listener, total);
+    }
 
-    try {
-      cursor = DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId);
+    if (count.mms > 0) sweepOrphanedAttachments();
+    listener.onProgress(total, total);
 
-      if (cursor != null && length > 0 && cursor.getCount() > length) {
-        Log.w("ThreadDatabase", "Cursor count is greater than length!");
-        cursor.moveToPosition(length - 1);
+    Log.w(TAG, "Trimmed " + count.messages + " messages from " + cutoffs.size() + " threads in " + (System.currentTimeMillis() - startTime) + "ms");
+  }
 
-        long lastTweetDate = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
+  public void trimThread(long threadId, int length) {
+    Log.w(TAG, "Trimming thread: " + threadId + " to: " + length);
+    if (length <= 0) return;
+
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
 
-        Log.w("ThreadDatabase", "Cut off tweet date: " + lastTweetDate);
+    try {
+      cursor = db.rawQuery("SELECT " + getTrimCutoffQuery("?"), new String[] {String.valueOf(threadId), String.valueOf(length - 1)});
 
-        DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
-        DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
+      if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+        TrimCount count = new TrimCount();
+        trimThreadBefore(threadId, cursor.getLong(0), count, null, 0);
 
-        update(threadId, false);
-        notifyConversationListeners(threadId);
+        if (count.mms > 0) sweepOrphanedAttachments();
       }
     } finally {
       if (cursor != null)
@@ -252,6 +276,77 @@ public class ThreadDatabase extends Database {
     }
   }
 
+  /**
+   * A subquery for the received date of the message at position "OFFSET ?" in a thread,
+   * newest first. Messages received strictly before that date are trimmed.
+   */
+  private String getTrimCutoffQuery(String threadId) {
+    return "(SELECT " + TimelineDatabase.DATE_RECEIVED + " FROM " + TimelineDatabase.TABLE_NAME +
+           " WHERE " + TimelineDatabase.THREAD_ID + " = " + threadId +
+           " ORDER BY " + TimelineDatabase.DATE_RECEIVED + " DESC LIMIT 1 OFFSET ?)";
+  }
+
+  private void trimThreadBefore(long threadId, long cutoff, TrimCount count,
+                                @Nullable ProgressListener listener, int total)
+  {
+    SmsDatabase    smsDatabase = DatabaseFactory.getSmsDatabase(context);
+    MmsDatabase    mmsDatabase = DatabaseFactory.getMmsDatabase(context);
+    SQLiteDatabase db          = databaseHelper.getWritableDatabase();
+    int            deleted     = 0;
+    int            chunkSize;
+
+    do {
+      List<Long> smsIds = new LinkedList<>();
+      List<Long> mmsIds = new LinkedList<>();
+      Cursor     cursor = null;
+
+      db.beginTransaction();
+
+      try {
+        cursor = db.query(TimelineDatabase.TABLE_NAME,
+                          new String[] {TimelineDatabase.TRANSPORT, TimelineDatabase.MESSAGE_ID},
+                          TimelineDatabase.THREAD_ID + " = ? AND " + TimelineDatabase.DATE_RECEIVED + " < ?",
+                          new String[] {String.valueOf(threadId), String.valueOf(cutoff)},
+                          null, null, null, String.valueOf(TRIM_CHUNK_SIZE));
+
+        while (cursor != null && cursor.moveToNext()) {
+          if (MmsSmsDatabase.MMS_TRANSPORT.equals(cursor.getString(0))) mmsIds.add(cursor.getLong(1));
+          else                                                          smsIds.add(cursor.getLong(1));
+        }
+
+        if (!smsIds.isEmpty()) smsDatabase.deleteMessages(Util.toLongArray(smsIds));
+        if (!mmsIds.isEmpty()) mmsDatabase.deleteMessages(Util.toLongArray(mmsIds));
+
+        db.setTransactionSuccessful();
+      } finally {
+        if (cursor != null) cursor.close();
+        db.endTransaction();
+      }
+
+      chunkSize       = smsIds.size() + mmsIds.size();
+      deleted        += chunkSize;
+      count.messages += chunkSize;
+      count.mms      += mmsIds.size();
+
+      if (listener != null) {
+        listener.onProgress(Math.min(count.messages, total), total);
+      }
+    } while (chunkSize >= TRIM_CHUNK_SIZE);
+
+    if (deleted > 0) {
+      update(threadId, false);
+      notifyConversationListeners(threadId);
+    }
+  }
+
+  /**
+   * Trimming only deletes attachment rows, so that no file I/O happens inside its
+   * transactions. The files those rows pointed to are removed afterwards by a sweep.
+   */
+  private void sweepOrphanedAttachments() {
+    ApplicationContext.getInstance(context).getJobManager().add(new AttachmentOrphanSweepJob(context));
+  }
+
   public void setAllThreadsRead() {
     SQLiteDatabase db           = databaseHelper.getWritableDatabase();
     ContentValues contentValues = new ContentValues(1);
@@ -265,7 +360,20 @@ public class ThreadDatabase extends Database {
   }
 
   public List<MarkedMessageInfo> setRead(long threadId, boolean lastSeen) {
-    ContentValues contentValues = new ContentValues(1);
+    return setRead(new long[] {threadId}, lastSeen);
+  }
+
+  /**
+   * Marks every message in the given threads as read, in a single transaction across the
+   * thread, sms and mms tables, with one conversation list notification at the end.
+   */
+  public List<MarkedMessageInfo> setRead(long[] threadIds, boolean lastSeen) {
+    if (threadIds.length == 0) return new LinkedList<>();
+
+    long                    startTime     = System.currentTimeMillis();
+    List<MarkedMessageInfo> results       = new LinkedList<>();
+    ContentValues           contentValues = new ContentValues(2);
+
     contentValues.put(READ, 1);
 
     if (lastSeen) {
@@ -273,17 +381,23 @@ public class ThreadDatabase extends Database {
     }
 
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {threadId+""});
+    db.beginTransaction();
+
+    try {
+      db.update(TABLE_NAME, contentValues, ID + " IN (" + Util.join(threadIds, ",") + ")", null);
 
-    final List<MarkedMessageInfo> smsRecords = DatabaseFactory.getSmsDatabase(context).setMessagesRead(threadId);
-    final List<MarkedMessageInfo> mmsRecords = DatabaseFactory.getMmsDatabase(context).setMessagesRead(threadId);
+      results.addAll(DatabaseFactory.getSmsDatabase(context).setMessagesRead(threadIds));
+      results.addAll(DatabaseFactory.getMmsDatabase(context).setMessagesRead(threadIds));
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
 
     notifyConversationListListeners();
 
-    return new LinkedList<MarkedMessageInfo>() {{
-      addAll(smsRecords);
-      addAll(mmsRecords);
-    }};
+    Log.w(TAG, "Marked " + results.size() + " messages in " + threadIds.length + " threads read in " + (System.currentTimeMillis() - startTime) + "ms");
+    return results;
   }
 
   public void setUnread(long threadId) {
@@ -304,6 +418,10 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
+  /**
+   * Returns every thread with at least one recipient in the filter, including group and
+   * broadcast threads that contain one, as a single cursor ordered by date.
+   */
   public Cursor getFilteredConversationList(List<String> filter) {
     if (filter == null || filter.size() == 0)
       return null;
@@ -313,28 +431,48 @@ public class ThreadDatabase extends Database {
     if (rawRecipientIds == null || rawRecipientIds.size() == 0)
       return null;
 
-    SQLiteDatabase   db                      = databaseHelper.getReadableDatabase();
-    List<List<Long>> partitionedRecipientIds = Util.partition(rawRecipientIds, 900);
-    List<Cursor>     cursors                 = new LinkedList<>();
+    SQLiteDatabase db        = databaseHelper.getReadableDatabase();
+    List<Long>     threadIds = getThreadIdsForAnyRecipient(db, new HashSet<>(rawRecipientIds));
 
-    for (List<Long> recipientIds : partitionedRecipientIds) {
-      String   selection      = RECIPIENT_IDS + " = ?";
-      String[] selectionArgs  = new String[recipientIds.size()];
+    if (threadIds.isEmpty())
+      return null;
 
-      for (int i=0;i<recipientIds.size()-1;i++)
-        selection += (" OR " + RECIPIENT_IDS + " = ?");
+    Cursor cursor = db.query(TABLE_NAME, null, ID + " IN (" + Util.join(Util.toLongArray(threadIds), ",") + ")",
+                             null, null, null, DATE + " DESC");
 
-      int i= 0;
-      for (long id : recipientIds) {
-        selectionArgs[i++] = String.valueOf(id);
-      }
+    setNotifyConverationListListeners(cursor);
+    return cursor;
+  }
+
+  private List<Long> getThreadIdsForAnyRecipient(SQLiteDatabase db, Set<Long> recipientIds) {
+    List<Long> threadIds = new LinkedList<>();
+    Cursor     cursor    = null;
 
-      cursors.add(db.query(TABLE_NAME, null, selection, selectionArgs, null, null, DATE + " DESC"));
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {ID, RECIPIENT_IDS}, null, null, null, null, null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        String recipients = cursor.getString(1);
+
+        if (recipients == null) continue;
+
+        for (String recipientId : recipients.split(" ")) {
+          try {
+            if (recipientIds.contains(Long.parseLong(recipientId))) {
+              threadIds.add(cursor.getLong(0));
+              break;
+            }
+          } catch (NumberFormatException e) {
+            Log.w(TAG, e);
+          }
+        }
+      }
+    } finally {
+      if (cursor != null)
+        cursor.close();
     }
 
-    Cursor cursor = cursors.size() > 1 ? new MergeCursor(cursors.toArray(new Cursor[cursors.size()])) : cursors.get(0);
-    setNotifyConverationListListeners(cursor);
-    return cursor;
+    return threadIds;
   }
 
   public Cursor getConversationList() {
@@ -472,24 +610,37 @@ public class ThreadDatabase extends Database {
     return getThreadIdFor(recipients, DistributionTypes.DEFAULT);
   }
 
+  /**
+   * The lookup and the create happen in one transaction, so two threads asking for the same
+   * recipients at once can't both miss and create a thread each.
+   */
   public long getThreadIdFor(Recipients recipients, int distributionType) {
     long[] recipientIds    = getRecipientIds(recipients);
     String recipientsList  = getRecipientsAsString(recipientIds);
-    SQLiteDatabase db      = databaseHelper.getReadableDatabase();
+    SQLiteDatabase db      = databaseHelper.getWritableDatabase();
     String where           = RECIPIENT_IDS + " = ?";
     String[] recipientsArg = new String[] {recipientsList};
     Cursor cursor          = null;
 
+    db.beginTransaction();
+
     try {
+      long threadId;
+
       cursor = db.query(TABLE_NAME, new String[]{ID}, where, recipientsArg, null, null, null);
 
       if (cursor != null && cursor.moveToFirst())
-        return cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+        threadId = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
       else
-        return createThreadForRecipients(recipientsList, recipientIds.length, distributionType);
+        threadId = createThreadForRecipients(recipientsList, recipientIds.length, distributionType);
+
+      db.setTransactionSuccessful();
+      return threadId;
     } finally {
       if (cursor != null)
         cursor.close();
+
+      db.endTransaction();
     }
   }
 
@@ -524,6 +675,176 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
+  /**
+   * Applies a newly inserted message to its thread: the message count is bumped in place,
+   * and the snippet is only replaced if the new message is now the latest in the thread.
+   */
+  public void updateForInsert(long threadId, String transport, long messageId, boolean unarchive) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      incrementMessageCount(threadId);
+
+      if (DatabaseFactory.getTimelineDatabase(context).isLatestMessage(threadId, transport, messageId)) {
+        updateSnippetFromLatest(threadId, unarchive);
+      } else if (unarchive) {
+        unarchiveConversation(threadId);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    notifyConversationListListeners();
+  }
+
+  /**
+   * Applies several messages inserted into a thread in one batch. The message count is
+   * bumped once by the whole batch, and the snippet is re-read once from whichever message
+   * is now the latest. Callers are responsible for notifying the conversation list.
+   */
+  public void updateForInserts(long threadId, int count, boolean updateSnippet, boolean unread) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + ?" +
+                 (unread ? ", " + READ + " = 0" : "") + " WHERE " + ID_WHERE,
+                 new String[] {String.valueOf(count), String.valueOf(threadId)});
+
+      if (updateSnippet) {
+        updateSnippetFromLatest(threadId, true);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Recounts and re-snippets a set of threads after a bulk import, with a couple of statements
+   * over the timeline rather than a count and a snippet query per thread. Threads whose latest
+   * message is an MMS are left to {@link #updateSnippetFromLatest}, since their snippet needs
+   * the attachment's URI.
+   *
+   * Like {@link #update(long, boolean)} with unarchive set, a thread is unarchived when its
+   * snippet is updated, and a thread left with no messages is deleted. Callers should only
+   * pass threads that messages were actually imported into.
+   */
+  void updateForImport(Collection<Long> threadIds) {
+    if (threadIds.isEmpty()) return;
+
+    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
+    long[]         ids       = new long[threadIds.size()];
+    int            i         = 0;
+    List<Long>     mmsLatest = new LinkedList<>();
+    Cursor         cursor    = null;
+
+    for (long threadId : threadIds) ids[i++] = threadId;
+
+    String where      = ID + " IN (" + Util.join(ids, ",") + ")";
+    String latest     = "(SELECT %s FROM " + TimelineDatabase.TABLE_NAME +
+                        " WHERE " + TimelineDatabase.TABLE_NAME + "." + TimelineDatabase.THREAD_ID + " = " + TABLE_NAME + "." + ID +
+                        " ORDER BY " + TimelineDatabase.DATE_RECEIVED + " DESC, " + TimelineDatabase.ID + " DESC LIMIT 1)";
+    String latestSms  = "(SELECT %s FROM " + SmsDatabase.TABLE_NAME + " WHERE " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID +
+                        " = " + String.format(latest, TimelineDatabase.MESSAGE_ID) + ")";
+    String smsDate    = "CASE WHEN " + SmsDatabase.TYPE + " & " + MmsSmsColumns.Types.PUSH_MESSAGE_BIT + " != 0 AND " +
+                        SmsDatabase.DATE_SENT + " < " + SmsDatabase.DATE_RECEIVED + " THEN " + SmsDatabase.DATE_SENT +
+                        " ELSE " + SmsDatabase.DATE_RECEIVED + " END";
+
+    db.beginTransaction();
+
+    try {
+      db.execSQL("UPDATE " + TABLE_NAME + " SET " +
+                 MESSAGE_COUNT + " = (SELECT COUNT(*) FROM " + TimelineDatabase.TABLE_NAME + " WHERE " +
+                 TimelineDatabase.TABLE_NAME + "." + TimelineDatabase.THREAD_ID + " = " + TABLE_NAME + "." + ID + ")" +
+                 " WHERE " + where);
+
+      db.delete(TABLE_NAME, where + " AND " + MESSAGE_COUNT + " = 0", null);
+
+      db.execSQL("UPDATE " + TABLE_NAME + " SET " +
+                 DATE          + " = " + String.format(latestSms, "(" + smsDate + ") / 1000 * 1000") + ", " +
+                 SNIPPET       + " = " + String.format(latestSms, SmsDatabase.BODY) + ", " +
+                 SNIPPET_TYPE  + " = " + String.format(latestSms, SmsDatabase.TYPE) + ", " +
+                 SNIPPET_URI   + " = NULL, " +
+                 STATUS        + " = " + String.format(latestSms, SmsDatabase.STATUS) + ", " +
+                 RECEIPT_COUNT + " = " + String.format(latestSms, SmsDatabase.RECEIPT_COUNT) + ", " +
+                 EXPIRES_IN    + " = " + String.format(latestSms, SmsDatabase.EXPIRES_IN) + ", " +
+                 ARCHIVED      + " = 0" +
+                 " WHERE " + where + " AND " + String.format(latest, TimelineDatabase.TRANSPORT) + " = '" + MmsSmsDatabase.SMS_TRANSPORT + "'");
+
+      cursor = db.rawQuery("SELECT " + ID + " FROM " + TABLE_NAME + " WHERE " + where + " AND " +
+                           String.format(latest, TimelineDatabase.TRANSPORT) + " = '" + MmsSmsDatabase.MMS_TRANSPORT + "'", null);
+
+      while (cursor != null && cursor.moveToNext()) {
+        mmsLatest.add(cursor.getLong(0));
+      }
+
+      for (long threadId : mmsLatest) {
+        updateSnippetFromLatest(threadId, true);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      if (cursor != null) cursor.close();
+      db.endTransaction();
+    }
+
+    notifyConversationListListeners();
+  }
+
+  /**
+   * Counts a message that shouldn't become the thread's snippet, such as an identity update.
+   */
+  public void incrementMessageCount(long threadId) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + 1 WHERE " + ID_WHERE,
+               new String[] {String.valueOf(threadId)});
+  }
+
+  /**
+   * Applies a deleted message to its thread. Callers check {@link TimelineDatabase#isLatestMessage}
+   * before deleting, since the snippet only needs to be re-read when the latest message went away.
+   *
+   * @return true if the thread was deleted because it no longer has any messages.
+   */
+  public boolean updateForDelete(long threadId, boolean wasLatest) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " - 1 WHERE " +
+               ID_WHERE + " AND " + MESSAGE_COUNT + " > 0",
+               new String[] {String.valueOf(threadId)});
+
+    if (getMessageCount(threadId) <= 0 || (wasLatest && !updateSnippetFromLatest(threadId, false))) {
+      return update(threadId, false);
+    }
+
+    notifyConversationListListeners();
+    return false;
+  }
+
+  /**
+   * Applies a change to an existing message (status, receipt or type) to its thread. The
+   * message count can't change, so nothing is done unless the message is the current snippet.
+   */
+  public void updateForChange(long threadId, String transport, long messageId, boolean unarchive) {
+    if (DatabaseFactory.getTimelineDatabase(context).isLatestMessage(threadId, transport, messageId)) {
+      updateSnippetFromLatest(threadId, unarchive);
+      notifyConversationListListeners();
+    } else if (unarchive) {
+      unarchiveConversation(threadId);
+    }
+  }
+
+  /**
+   * Recounts and re-snippets a thread from scratch. The incremental updateFor* methods
+   * should be preferred on hot paths; this is the repair path for when the thread row
+   * may have drifted from its messages (bulk deletes, trimming, migrations, imports).
+   *
+   * @return true if the thread was deleted because it no longer has any messages.
+   */
   public boolean update(long threadId, boolean unarchive) {
     MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
     long count                    = mmsSmsDatabase.getConversationCount(threadId);
@@ -541,9 +862,7 @@ public class ThreadDatabase extends Database {
       MessageRecord record;
 
       if (reader != null && (record = reader.getNext()) != null) {
-        updateThread(threadId, count, record.getBody().getBody(), getAttachmentUriFor(record),
-                     record.getTimestamp(), record.getDeliveryStatus(), record.getReceiptCount(),
-                     record.getType(), unarchive, record.getExpiresIn());
+        updateThread(threadId, count, record, unarchive);
         notifyConversationListListeners();
         return false;
       } else {
@@ -557,6 +876,45 @@ public class ThreadDatabase extends Database {
     }
   }
 
+  private boolean updateSnippetFromLatest(long threadId, boolean unarchive) {
+    MmsSmsDatabase        mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
+    MmsSmsDatabase.Reader reader         = null;
+
+    try {
+      reader = mmsSmsDatabase.readerFor(mmsSmsDatabase.getConversationSnippet(threadId));
+      MessageRecord record;
+
+      if (reader != null && (record = reader.getNext()) != null) {
+        SQLiteDatabase db = databaseHelper.getWritableDatabase();
+        db.update(TABLE_NAME, getSnippetValues(record, unarchive), ID_WHERE, new String[] {String.valueOf(threadId)});
+        return true;
+      }
+
+      return false;
+    } finally {
+      if (reader != null)
+        reader.close();
+    }
+  }
+
+  private long getMessageCount(long threadId) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {MESSAGE_COUNT}, ID_WHERE, new String[] {String.valueOf(threadId)}, null, null, null);
+
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getLong(0);
+      }
+
+      return 0;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
   private @Nullable Uri getAttachmentUriFor(MessageRecord record) {
     if (!record.isMms() || record.isMmsNotification() || record.isGroupAction()) return null;
 
@@ -566,6 +924,14 @@ public class ThreadDatabase extends Database {
     return thumbnail != null ? thumbnail.getThumbnailUri() : null;
   }
 
+  /**
+   * Running totals of what a trim has deleted, across however many threads it covers.
+   */
+  private static class TrimCount {
+    private int messages;
+    private int mms;
+  }
+
   public static interface ProgressListener {
     public void onProgress(int complete, int total);
   }
@@ -0,0 +1,151 @@
+package org.thoughtcrime.securesms.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+/**
+ * A materialized, per-thread index over the sms and mms tables.
+ *
+ * Every message in either table has exactly one row here, holding its thread,
+ * its normalized received date, its transport, and (for MMS) the id of its
+ * first attachment. The rows are maintained by triggers on the sms, mms and
+ * part tables, so every write path (including bulk imports and migrations)
+ * keeps the timeline in sync without any extra bookkeeping in Java.
+ *
+ * Conversation queries page over this table with a single indexed range scan
+ * and then join out to the message tables, instead of building a UNION of both
+ * message tables for every cursor.
+ */
+public class TimelineDatabase extends Database {
+
+  private static final String TAG = TimelineDatabase.class.getSimpleName();
+
+          static final String TABLE_NAME    = "timeline";
+          static final String ID            = "_id";
+          static final String THREAD_ID     = "thread_id";
+          static final String DATE_RECEIVED = "date_received";
+          static final String TRANSPORT     = "transport";
+          static final String MESSAGE_ID    = "message_id";
+          static final String ATTACHMENT_ID = "attachment_id";
+
+  public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " (" + ID + " INTEGER PRIMARY KEY, " +
+    THREAD_ID + " INTEGER, " + DATE_RECEIVED + " INTEGER, " + TRANSPORT + " TEXT, " +
+    MESSAGE_ID + " INTEGER, " + ATTACHMENT_ID + " INTEGER DEFAULT NULL);";
+
+  public static final String[] CREATE_INDEXS = {
+    "CREATE INDEX IF NOT EXISTS timeline_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");",
+    "CREATE UNIQUE INDEX IF NOT EXISTS timeline_message_index ON " + TABLE_NAME + " (" + TRANSPORT + ", " + MESSAGE_ID + ");"
+  };
+
+  private static final String FIRST_ATTACHMENT_FOR_MMS =
+      "(SELECT MIN(" + AttachmentDatabase.ROW_ID + ") FROM " + AttachmentDatabase.TABLE_NAME +
+      " WHERE " + AttachmentDatabase.MMS_ID + " = %s)";
+
+  private static final String MATCH_SMS = TRANSPORT + " = '" + MmsSmsDatabase.SMS_TRANSPORT + "' AND " + MESSAGE_ID + " = %s";
+  private static final String MATCH_MMS = TRANSPORT + " = '" + MmsSmsDatabase.MMS_TRANSPORT + "' AND " + MESSAGE_ID + " = %s";
+
+  public static final String[] CREATE_TRIGGERS = {
+    "CREATE TRIGGER IF NOT EXISTS timeline_sms_insert AFTER INSERT ON " + SmsDatabase.TABLE_NAME + " BEGIN " +
+        "INSERT INTO " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ", " + TRANSPORT + ", " + MESSAGE_ID + ") " +
+        "VALUES (NEW." + SmsDatabase.THREAD_ID + ", NEW." + SmsDatabase.DATE_RECEIVED + ", '" + MmsSmsDatabase.SMS_TRANSPORT + "', NEW." + SmsDatabase.ID + "); " +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS timeline_sms_update AFTER UPDATE OF " + SmsDatabase.THREAD_ID + ", " + SmsDatabase.DATE_RECEIVED + " ON " + SmsDatabase.TABLE_NAME + " BEGIN " +
+        "UPDATE " + TABLE_NAME + " SET " + THREAD_ID + " = NEW." + SmsDatabase.THREAD_ID + ", " + DATE_RECEIVED + " = NEW." + SmsDatabase.DATE_RECEIVED +
+        " WHERE " + String.format(MATCH_SMS, "OLD." + SmsDatabase.ID) + "; " +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS timeline_sms_delete AFTER DELETE ON " + SmsDatabase.TABLE_NAME + " BEGIN " +
+        "DELETE FROM " + TABLE_NAME + " WHERE " + String.format(MATCH_SMS, "OLD." + SmsDatabase.ID) + "; " +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS timeline_mms_insert AFTER INSERT ON " + MmsDatabase.TABLE_NAME + " BEGIN " +
+        "INSERT INTO " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ", " + TRANSPORT + ", " + MESSAGE_ID + ", " + ATTACHMENT_ID + ") " +
+        "VALUES (NEW." + MmsDatabase.THREAD_ID + ", NEW." + MmsDatabase.DATE_RECEIVED + ", '" + MmsSmsDatabase.MMS_TRANSPORT + "', NEW." + MmsDatabase.ID + ", " +
+        String.format(FIRST_ATTACHMENT_FOR_MMS, "NEW." + MmsDatabase.ID) + "); " +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS timeline_mms_update AFTER UPDATE OF " + MmsDatabase.THREAD_ID + ", " + MmsDatabase.DATE_RECEIVED + " ON " + MmsDatabase.TABLE_NAME + " BEGIN " +
+        "UPDATE " + TABLE_NAME + " SET " + THREAD_ID + " = NEW." + MmsDatabase.THREAD_ID + ", " + DATE_RECEIVED + " = NEW." + MmsDatabase.DATE_RECEIVED +
+        " WHERE " + String.format(MATCH_MMS, "OLD." + MmsDatabase.ID) + "; " +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS timeline_mms_delete AFTER DELETE ON " + MmsDatabase.TABLE_NAME + " BEGIN " +
+        "DELETE FROM " + TABLE_NAME + " WHERE " + String.format(MATCH_MMS, "OLD." + MmsDatabase.ID) + "; " +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS timeline_part_insert AFTER INSERT ON " + AttachmentDatabase.TABLE_NAME + " BEGIN " +
+        "UPDATE " + TABLE_NAME + " SET " + ATTACHMENT_ID + " = " + String.format(FIRST_ATTACHMENT_FOR_MMS, "NEW." + AttachmentDatabase.MMS_ID) +
+        " WHERE " + String.format(MATCH_MMS, "NEW." + AttachmentDatabase.MMS_ID) + "; " +
+    "END;",
+
+    "CREATE TRIGGER IF NOT EXISTS timeline_part_delete AFTER DELETE ON " + AttachmentDatabase.TABLE_NAME + " BEGIN " +
+        "UPDATE " + TABLE_NAME + " SET " + ATTACHMENT_ID + " = " + String.format(FIRST_ATTACHMENT_FOR_MMS, "OLD." + AttachmentDatabase.MMS_ID) +
+        " WHERE " + String.format(MATCH_MMS, "OLD." + AttachmentDatabase.MMS_ID) + "; " +
+    "END;"
+  };
+
+  public TimelineDatabase(Context context, SQLiteOpenHelper databaseHelper) {
+    super(context, databaseHelper);
+  }
+
+  /**
+   * Returns true if the given message is the newest message in its thread, i.e. the one
+   * that {@link MmsSmsDatabase#getConversationSnippet(long)} would return. This only touches
+   * the timeline index, so it is cheap enough to call on every insert, delete and receipt.
+   */
+  public boolean isLatestMessage(long threadId, String transport, long messageId) {
+    SQLiteDatabase db     = databaseHelper.getReadableDatabase();
+    Cursor         cursor = null;
+
+    try {
+      cursor = db.query(TABLE_NAME, new String[] {TRANSPORT, MESSAGE_ID},
+                        THREAD_ID + " = ?", new String[] {String.valueOf(threadId)},
+                        null, null, DATE_RECEIVED + " DESC, " + ID + " DESC", "1");
+
+      return cursor != null && cursor.moveToFirst() &&
+             transport.equals(cursor.getString(0)) &&
+             cursor.getLong(1) == messageId;
+    } finally {
+      if (cursor != null)
+        cursor.close();
+    }
+  }
+
+  /**
+   * Discards and regenerates every timeline row from the message tables. Only
+   * needed when creating the table on upgrade, or to repair a timeline that is
+   * suspected to have drifted from the sms and mms tables.
+   */
+  public void rebuild() {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.beginTransaction();
+
+    try {
+      rebuild(db);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  static void rebuild(SQLiteDatabase db) {
+    long startTime = System.currentTimeMillis();
+
+    db.delete(TABLE_NAME, null, null);
+
+    db.execSQL("INSERT INTO " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ", " + TRANSPORT + ", " + MESSAGE_ID + ") " +
+               "SELECT " + SmsDatabase.THREAD_ID + ", " + SmsDatabase.DATE_RECEIVED + ", '" + MmsSmsDatabase.SMS_TRANSPORT + "', " + SmsDatabase.ID +
+               " FROM " + SmsDatabase.TABLE_NAME);
+
+    db.execSQL("INSERT INTO " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ", " + TRANSPORT + ", " + MESSAGE_ID + ", " + ATTACHMENT_ID + ") " +
+               "SELECT " + MmsDatabase.THREAD_ID + ", " + MmsDatabase.DATE_RECEIVED + ", '" + MmsSmsDatabase.MMS_TRANSPORT + "', " + MmsDatabase.ID + ", " +
+               String.format(FIRST_ATTACHMENT_FOR_MMS, MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID) +
+               " FROM " + MmsDatabase.TABLE_NAME);
+
+    Log.w(TAG, "Rebuilt timeline in " + (System.currentTimeMillis() - startTime) + "ms");
+  }
+}
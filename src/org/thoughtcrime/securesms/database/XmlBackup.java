@@ -1,40 +1,71 @@
 package org.thoughtcrime.securesms.database;
 
-import android.text.TextUtils;
+import android.support.annotation.NonNull;
 
+import com.google.android.mms.pdu_alt.PduHeaders;
+
+import org.thoughtcrime.securesms.util.Base64;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 public class XmlBackup {
 
-  private static final String PROTOCOL       = "protocol";
-  private static final String ADDRESS        = "address";
-  private static final String DATE           = "date";
-  private static final String TYPE           = "type";
-  private static final String SUBJECT        = "subject";
-  private static final String BODY           = "body";
-  private static final String SERVICE_CENTER = "service_center";
-  private static final String READ           = "read";
-  private static final String STATUS         = "status";
-  private static final String TOA            = "toa";
-  private static final String SC_TOA         = "sc_toa";
-  private static final String LOCKED         = "locked";
+  private static final String PROTOCOL         = "protocol";
+  private static final String ADDRESS          = "address";
+  private static final String DATE             = "date";
+  private static final String TYPE             = "type";
+  private static final String SUBJECT          = "subject";
+  private static final String BODY             = "body";
+  private static final String SERVICE_CENTER   = "service_center";
+  private static final String READ             = "read";
+  private static final String STATUS           = "status";
+  private static final String TOA              = "toa";
+  private static final String SC_TOA           = "sc_toa";
+  private static final String LOCKED           = "locked";
+  private static final String MESSAGE_BOX      = "msg_box";
+  private static final String MESSAGE_TYPE     = "m_type";
+  private static final String TEXT_ONLY        = "text_only";
+  private static final String SEQUENCE         = "seq";
+  private static final String CONTENT_TYPE     = "ct";
+  private static final String CHARSET          = "chset";
+  private static final String NAME             = "name";
+  private static final String CONTENT_LOCATION = "cl";
+  private static final String TEXT             = "text";
+  private static final String DATA             = "data";
 
   private final XmlPullParser parser;
 
-  public XmlBackup(String path) throws XmlPullParserException, FileNotFoundException {
+  public XmlBackup(String path) throws XmlPullParserException, IOException {
     this.parser = XmlPullParserFactory.newInstance().newPullParser();
     parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
-    parser.setInput(new FileInputStream(path), null);
+    parser.setInput(openBackup(path), null);
+  }
+
+  /**
+   * Backups may have been compressed on export, which we can tell from the gzip magic.
+   */
+  private static InputStream openBackup(String path) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(path));
+
+    in.mark(2);
+    int first  = in.read();
+    int second = in.read();
+    in.reset();
+
+    if (first == 0x1f && second == 0x8b) return new GZIPInputStream(in);
+    else                                 return in;
   }
 
   public XmlBackupItem getNext() throws IOException, XmlPullParserException {
@@ -141,23 +172,42 @@ public class XmlBackup {
     }
   }
 
+  /**
+   * Streams a backup out one message at a time. Values are escaped in a single pass
+   * straight into the output, and attachments are base64 encoded straight from their
+   * streams, so nothing larger than one attribute is ever held in memory.
+   */
   public static class Writer {
 
-    private static final String  XML_HEADER      = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\" ?>";
-    private static final String  CREATED_BY      = "<!-- File Created By Signal -->";
-    private static final String  OPEN_TAG_SMSES  = "<smses count=\"%d\">";
-    private static final String  CLOSE_TAG_SMSES = "</smses>";
-    private static final String  OPEN_TAG_SMS    = " <sms ";
-    private static final String  CLOSE_EMPTYTAG  = "/>";
-    private static final String  OPEN_ATTRIBUTE  = "=\"";
-    private static final String  CLOSE_ATTRIBUTE = "\" ";
-
-    private static final Pattern PATTERN         = Pattern.compile("[^\u0020-\uD7FF]");
+    private static final String XML_HEADER      = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\" ?>";
+    private static final String CREATED_BY      = "<!-- File Created By Signal -->";
+    private static final String OPEN_TAG_SMSES  = "<smses count=\"%d\">";
+    private static final String CLOSE_TAG_SMSES = "</smses>";
+    private static final String OPEN_TAG_SMS    = " <sms ";
+    private static final String OPEN_TAG_MMS    = " <mms ";
+    private static final String CLOSE_TAG_MMS   = " </mms>";
+    private static final String OPEN_TAG_PARTS  = "  <parts>";
+    private static final String CLOSE_TAG_PARTS = "  </parts>";
+    private static final String OPEN_TAG_PART   = "   <part ";
+    private static final String OPEN_TAG_ADDRS  = "  <addrs>";
+    private static final String CLOSE_TAG_ADDRS = "  </addrs>";
+    private static final String OPEN_TAG_ADDR   = "   <addr ";
+    private static final String CLOSE_TAG       = ">";
+    private static final String CLOSE_EMPTYTAG  = "/>";
+    private static final String OPEN_ATTRIBUTE  = "=\"";
+    private static final String CLOSE_ATTRIBUTE = "\" ";
+
+    private static final String TEXT_CONTENT_TYPE = "text/plain";
+    private static final int    UTF_8_CHARSET     = 106;
 
     private final BufferedWriter bufferedWriter;
 
     public Writer(String path, int count) throws IOException {
-      bufferedWriter = new BufferedWriter(new FileWriter(path, false));
+      this(new FileOutputStream(path, false), count);
+    }
+
+    public Writer(OutputStream out, int count) throws IOException {
+      bufferedWriter = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
 
       bufferedWriter.write(XML_HEADER);
       bufferedWriter.newLine();
@@ -167,29 +217,97 @@ public class XmlBackup {
     }
 
     public void writeItem(XmlBackupItem item) throws IOException {
-      StringBuilder stringBuilder = new StringBuilder();
-
-      stringBuilder.append(OPEN_TAG_SMS);
-      appendAttribute(stringBuilder, PROTOCOL, item.getProtocol());
-      appendAttribute(stringBuilder, ADDRESS, escapeXML(item.getAddress()));
-      appendAttribute(stringBuilder, DATE, item.getDate());
-      appendAttribute(stringBuilder, TYPE, item.getType());
-      appendAttribute(stringBuilder, SUBJECT, escapeXML(item.getSubject()));
-      appendAttribute(stringBuilder, BODY, escapeXML(item.getBody()));
-      appendAttribute(stringBuilder, TOA, "null");
-      appendAttribute(stringBuilder, SC_TOA, "null");
-      appendAttribute(stringBuilder, SERVICE_CENTER, item.getServiceCenter());
-      appendAttribute(stringBuilder, READ, item.getRead());
-      appendAttribute(stringBuilder, STATUS, item.getStatus());
-      appendAttribute(stringBuilder, LOCKED, 0);
-      stringBuilder.append(CLOSE_EMPTYTAG);
+      bufferedWriter.newLine();
+      bufferedWriter.write(OPEN_TAG_SMS);
+      writeAttribute(PROTOCOL, item.getProtocol());
+      writeEscapedAttribute(ADDRESS, item.getAddress());
+      writeAttribute(DATE, item.getDate());
+      writeAttribute(TYPE, item.getType());
+      writeEscapedAttribute(SUBJECT, item.getSubject());
+      writeEscapedAttribute(BODY, item.getBody());
+      writeAttribute(TOA, "null");
+      writeAttribute(SC_TOA, "null");
+      writeAttribute(SERVICE_CENTER, item.getServiceCenter());
+      writeAttribute(READ, item.getRead());
+      writeAttribute(STATUS, item.getStatus());
+      writeAttribute(LOCKED, 0);
+      bufferedWriter.write(CLOSE_EMPTYTAG);
+    }
+
+    /**
+     * Opens an MMS element. Its parts follow, and {@link #endMms(List, List)} closes it.
+     */
+    public void startMms(String address, long date, int messageBox, int read, int messageType, boolean textOnly)
+        throws IOException
+    {
+      bufferedWriter.newLine();
+      bufferedWriter.write(OPEN_TAG_MMS);
+      writeEscapedAttribute(ADDRESS, address);
+      writeAttribute(DATE, date);
+      writeAttribute(MESSAGE_BOX, messageBox);
+      writeAttribute(READ, read);
+      writeAttribute(MESSAGE_TYPE, messageType);
+      writeAttribute(TEXT_ONLY, textOnly ? 1 : 0);
+      writeAttribute(LOCKED, 0);
+      bufferedWriter.write(CLOSE_TAG);
+      bufferedWriter.newLine();
+      bufferedWriter.write(OPEN_TAG_PARTS);
+    }
 
+    public void writeTextPart(int sequence, String text) throws IOException {
       bufferedWriter.newLine();
-      bufferedWriter.write(stringBuilder.toString());
+      bufferedWriter.write(OPEN_TAG_PART);
+      writeAttribute(SEQUENCE, sequence);
+      writeAttribute(CONTENT_TYPE, TEXT_CONTENT_TYPE);
+      writeAttribute(CHARSET, UTF_8_CHARSET);
+      writeEscapedAttribute(TEXT, text);
+      bufferedWriter.write(CLOSE_EMPTYTAG);
     }
 
-    private <T> void appendAttribute(StringBuilder stringBuilder, String name, T value) {
-      stringBuilder.append(name).append(OPEN_ATTRIBUTE).append(value).append(CLOSE_ATTRIBUTE);
+    public void writeDataPart(int sequence, String contentType, String name, InputStream data)
+        throws IOException
+    {
+      bufferedWriter.newLine();
+      bufferedWriter.write(OPEN_TAG_PART);
+      writeAttribute(SEQUENCE, sequence);
+      writeEscapedAttribute(CONTENT_TYPE, contentType);
+      writeEscapedAttribute(NAME, name);
+      writeEscapedAttribute(CONTENT_LOCATION, name);
+
+      bufferedWriter.write(DATA);
+      bufferedWriter.write(OPEN_ATTRIBUTE);
+
+      Base64.OutputStream encoder = new Base64.OutputStream(new AsciiOutputStream(bufferedWriter), Base64.ENCODE);
+      byte[]              buffer  = new byte[8192];
+      int                 read;
+
+      while ((read = data.read(buffer)) != -1) {
+        encoder.write(buffer, 0, read);
+      }
+
+      encoder.flushBase64();
+
+      bufferedWriter.write(CLOSE_ATTRIBUTE);
+      bufferedWriter.write(CLOSE_EMPTYTAG);
+    }
+
+    /**
+     * @param from the sender, or null if this MMS was sent by us.
+     * @param to   the recipients.
+     */
+    public void endMms(List<String> from, List<String> to) throws IOException {
+      bufferedWriter.newLine();
+      bufferedWriter.write(CLOSE_TAG_PARTS);
+      bufferedWriter.newLine();
+      bufferedWriter.write(OPEN_TAG_ADDRS);
+
+      for (String address : from) writeAddress(address, PduHeaders.FROM);
+      for (String address : to)   writeAddress(address, PduHeaders.TO);
+
+      bufferedWriter.newLine();
+      bufferedWriter.write(CLOSE_TAG_ADDRS);
+      bufferedWriter.newLine();
+      bufferedWriter.write(CLOSE_TAG_MMS);
     }
 
     public void close() throws IOException {
@@ -198,26 +316,94 @@ public class XmlBackup {
       bufferedWriter.close();
     }
 
-    private String escapeXML(String s) {
-      if (TextUtils.isEmpty(s)) return s;
+    private void writeAddress(String address, int type) throws IOException {
+      bufferedWriter.newLine();
+      bufferedWriter.write(OPEN_TAG_ADDR);
+      writeEscapedAttribute(ADDRESS, address);
+      writeAttribute(TYPE, type);
+      writeAttribute(CHARSET, UTF_8_CHARSET);
+      bufferedWriter.write(CLOSE_EMPTYTAG);
+    }
 
-      Matcher matcher = PATTERN.matcher( s.replace("&",  "&amp;")
-                                          .replace("<",  "&lt;")
-                                          .replace(">",  "&gt;")
-                                          .replace("\"", "&quot;")
-                                          .replace("'",  "&apos;"));
-      StringBuffer st = new StringBuffer();
+    private <T> void writeAttribute(String name, T value) throws IOException {
+      bufferedWriter.write(name);
+      bufferedWriter.write(OPEN_ATTRIBUTE);
+      bufferedWriter.write(String.valueOf(value));
+      bufferedWriter.write(CLOSE_ATTRIBUTE);
+    }
+
+    private void writeEscapedAttribute(String name, String value) throws IOException {
+      bufferedWriter.write(name);
+      bufferedWriter.write(OPEN_ATTRIBUTE);
+      writeEscaped(value);
+      bufferedWriter.write(CLOSE_ATTRIBUTE);
+    }
 
-      while (matcher.find()) {
-        String escaped="";
-        for (char ch: matcher.group(0).toCharArray()) {
-          escaped += ("&#" + ((int) ch) + ";");
+    /**
+     * Escapes markup characters, and writes anything outside of \u0020-\uD7FF as a numeric
+     * character reference, one UTF-16 unit at a time.
+     */
+    private void writeEscaped(String value) throws IOException {
+      if (value == null) {
+        bufferedWriter.write("null");
+        return;
+      }
+
+      int start = 0;
+
+      for (int i=0;i<value.length();i++) {
+        char   c = value.charAt(i);
+        String replacement;
+
+        switch (c) {
+          case '&':  replacement = "&amp;";  break;
+          case '<':  replacement = "&lt;";   break;
+          case '>':  replacement = "&gt;";   break;
+          case '"':  replacement = "&quot;"; break;
+          case '\'': replacement = "&apos;"; break;
+          default:
+            if (c >= '\u0020' && c <= '\uD7FF') continue;
+            replacement = "&#" + (int)c + ";";
         }
-        matcher.appendReplacement(st, escaped);
+
+        bufferedWriter.write(value, start, i - start);
+        bufferedWriter.write(replacement);
+        start = i + 1;
       }
-      matcher.appendTail(st);
-      return st.toString();
+
+      bufferedWriter.write(value, start, value.length() - start);
+    }
+  }
+
+  /**
+   * Feeds base64 output, which is all ASCII, into a character writer. Closing it leaves
+   * the writer open.
+   */
+  private static class AsciiOutputStream extends OutputStream {
+
+    private final java.io.Writer writer;
+
+    private AsciiOutputStream(java.io.Writer writer) {
+      this.writer = writer;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      writer.write(b & 0xff);
+    }
+
+    @Override
+    public void write(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      char[] characters = new char[length];
+
+      for (int i=0;i<length;i++) {
+        characters[i] = (char)(buffer[offset + i] & 0xff);
+      }
+
+      writer.write(characters);
     }
 
+    @Override
+    public void close() {}
   }
 }
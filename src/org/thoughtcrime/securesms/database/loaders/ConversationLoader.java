@@ -1,37 +1,355 @@
 package org.thoughtcrime.securesms.database.loaders;
 
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DataSetObservable;
+import android.database.DataSetObserver;
+import android.database.MergeCursor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+import android.util.Pair;
 
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MmsSmsColumns;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 import org.thoughtcrime.securesms.util.AbstractCursorLoader;
 
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads a conversation as a series of keyset pages, newest first.
+ *
+ * Each page covers a fixed range of (date_received, timeline_row_id) keys, from its own lower
+ * bound up to the lower bound of the next newer page, and the newest page runs to the end of
+ * the thread. {@link #loadOlder()} appends one page below the oldest loaded one, without
+ * re-reading the pages already loaded.
+ *
+ * When the conversation changes, only the newest page is queried again, since that is where
+ * new messages land. Each older page keeps a version of its range, an aggregate over the
+ * columns a conversation displays, and is queried again only if that version has changed,
+ * i.e. if a deletion, receipt or other update fell inside its range. A page's version is
+ * always read before its rows, so a change that lands in between is seen on the next check.
+ *
+ * Pages are shared by the merged cursors handed to the adapter, and are closed once neither
+ * the loader nor any of those cursors still uses them. A page's bounds are fixed when the page
+ * is built, so a cursor is never moved after it has been published.
+ */
 public class ConversationLoader extends AbstractCursorLoader {
+
+  private static final String TAG = ConversationLoader.class.getSimpleName();
+
   private final long threadId;
-  private       long limit;
+  private final long pageSize;
   private       long lastSeen;
 
-  public ConversationLoader(Context context, long threadId, long limit, long lastSeen) {
+  private final AtomicBoolean contentChanged     = new AtomicBoolean(false);
+  private final AtomicBoolean loadOlderRequested = new AtomicBoolean(false);
+
+  private final Object     pageLock = new Object();
+  private final List<Page> pages    = new LinkedList<>();
+  private       int        generation;
+
+  private volatile boolean hasOlder;
+
+  public ConversationLoader(Context context, long threadId, long pageSize, long lastSeen) {
     super(context);
     this.threadId = threadId;
-    this.limit    = limit;
+    this.pageSize = pageSize;
     this.lastSeen = lastSeen;
   }
 
-  public boolean hasLimit() {
-    return limit > 0;
+  public boolean hasOlder() {
+    return hasOlder;
   }
 
   public long getLastSeen() {
     return lastSeen;
   }
 
+  public void loadOlder() {
+    if (hasOlder) {
+      loadOlderRequested.set(true);
+      forceLoad();
+    }
+  }
+
+  @Override
+  public void onContentChanged() {
+    contentChanged.set(true);
+    super.onContentChanged();
+  }
+
   @Override
   public Cursor getCursor() {
     if (lastSeen == -1) {
       this.lastSeen = DatabaseFactory.getThreadDatabase(context).getLastSeen(threadId);
     }
 
-    return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId, limit);
+    MmsSmsDatabase database  = DatabaseFactory.getMmsSmsDatabase(context);
+    long           startTime = System.currentTimeMillis();
+    List<Page>     loaded    = new LinkedList<>();
+    int            loadedGeneration;
+
+    synchronized (pageLock) {
+      for (Page page : pages) {
+        page.acquire();
+        loaded.add(page);
+      }
+
+      loadedGeneration = generation;
+    }
+
+    try {
+      List<Page> updated = new ArrayList<>(loaded);
+      boolean    changed = contentChanged.getAndSet(false);
+
+      if (updated.isEmpty()) {
+        updated.add(getNewest(database, null));
+      } else if (changed) {
+        refreshOlder(database, updated);
+        updated.set(0, getNewest(database, updated.get(0)));
+      }
+
+      if (loadOlderRequested.getAndSet(false) && hasOlder) {
+        updated.add(getPageBefore(database, updated.get(updated.size() - 1)));
+      }
+
+      Log.w(TAG, "Loaded conversation page in " + (System.currentTimeMillis() - startTime) + "ms");
+
+      return publish(loaded, updated, loadedGeneration);
+    } finally {
+      for (Page page : loaded) {
+        page.release();
+      }
+    }
+  }
+
+  @Override
+  public Cursor loadInBackground() {
+    Cursor cursor = getCursor();
+    cursor.getCount();
+    return cursor;
+  }
+
+  @Override
+  protected void onReset() {
+    super.onReset();
+
+    synchronized (pageLock) {
+      for (Page page : pages) {
+        page.drop(observer);
+      }
+
+      pages.clear();
+      generation++;
+    }
+  }
+
+  /**
+   * Makes updated the loader's pages, unless the loader was reset while they were being
+   * queried, and returns a merged cursor over them that holds its own reference to each.
+   */
+  private Cursor publish(@NonNull List<Page> loaded, @NonNull List<Page> updated, int loadedGeneration) {
+    Cursor[] cursors = new Cursor[updated.size()];
+
+    for (int i=0;i<cursors.length;i++) {
+      cursors[i] = new PageCursor(updated.get(i));
+    }
+
+    synchronized (pageLock) {
+      if (generation == loadedGeneration) {
+        for (Page page : pages) {
+          if (!updated.contains(page)) page.drop(observer);
+        }
+
+        pages.clear();
+        pages.addAll(updated);
+      } else {
+        for (Page page : updated) {
+          if (!loaded.contains(page)) page.drop(observer);
+        }
+      }
+    }
+
+    return new MergeCursor(cursors);
+  }
+
+  private Page getNewest(@NonNull MmsSmsDatabase database, @Nullable Page newest) {
+    Page page;
+
+    if (newest == null || !newest.hasKey) {
+      Cursor cursor = database.getConversation(threadId, pageSize);
+
+      hasOlder = cursor.getCount() >= pageSize;
+      page     = new Page(cursor);
+    } else {
+      page = new Page(database.getConversationAfter(threadId, newest.dateReceived, newest.rowId - 1, 0), newest, null);
+    }
+
+    page.observe(observer);
+    return page;
+  }
+
+  /**
+   * Queries again every page but the newest whose range has changed since it was read.
+   */
+  private void refreshOlder(@NonNull MmsSmsDatabase database, @NonNull List<Page> pages) {
+    int refreshed = 0;
+
+    for (int i=1;i<pages.size();i++) {
+      Page   page    = pages.get(i);
+      Page   newer   = pages.get(i - 1);
+      String version = database.getConversationVersion(threadId, page.dateReceived, page.rowId,
+                                                       newer.dateReceived, newer.rowId);
+
+      if (!version.equals(page.version)) {
+        Cursor cursor = database.getConversationBetween(threadId, page.dateReceived, page.rowId,
+                                                        newer.dateReceived, newer.rowId);
+
+        pages.set(i, new Page(cursor, page, version));
+        refreshed++;
+      }
+    }
+
+    if (pages.size() > 1) {
+      Log.w(TAG, "Refreshed " + refreshed + " of " + (pages.size() - 1) + " older pages");
+    }
+  }
+
+  private Page getPageBefore(@NonNull MmsSmsDatabase database, @NonNull Page oldest) {
+    Pair<Long, Long> key          = database.getConversationKeyBefore(threadId, oldest.dateReceived, oldest.rowId, pageSize);
+    long             dateReceived = key != null ? key.first  : Long.MIN_VALUE;
+    long             rowId        = key != null ? key.second : Long.MIN_VALUE;
+    String           version      = database.getConversationVersion(threadId, dateReceived, rowId,
+                                                                    oldest.dateReceived, oldest.rowId);
+    Cursor           cursor       = database.getConversationBetween(threadId, dateReceived, rowId,
+                                                                    oldest.dateReceived, oldest.rowId);
+
+    hasOlder = key != null;
+    return new Page(cursor, true, dateReceived, rowId, version);
+  }
+
+  /**
+   * One query's worth of messages, the lower bound of the keys it covers, and for all but the
+   * newest page, the version of that range when it was read.
+   */
+  private static class Page {
+    private final Cursor        cursor;
+    private final boolean       hasKey;
+    private final long          dateReceived;
+    private final long          rowId;
+    private final String        version;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private boolean observed;
+
+    /**
+     * A newest page read with a limit, bounded below by its oldest message.
+     */
+    Page(@NonNull Cursor cursor) {
+      this.cursor  = cursor;
+      this.version = null;
+
+      if (cursor.moveToLast()) {
+        this.hasKey       = true;
+        this.dateReceived = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
+        this.rowId        = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TIMELINE_ROW_ID));
+      } else {
+        this.hasKey       = false;
+        this.dateReceived = 0;
+        this.rowId        = 0;
+      }
+
+      cursor.moveToPosition(-1);
+    }
+
+    /**
+     * A page read again over the same range as the one it replaces.
+     */
+    Page(@NonNull Cursor cursor, @NonNull Page previous, @Nullable String version) {
+      this(cursor, previous.hasKey, previous.dateReceived, previous.rowId, version);
+    }
+
+    Page(@NonNull Cursor cursor, boolean hasKey, long dateReceived, long rowId, @Nullable String version) {
+      this.cursor       = cursor;
+      this.hasKey       = hasKey;
+      this.dateReceived = dateReceived;
+      this.rowId        = rowId;
+      this.version      = version;
+    }
+
+    void observe(ContentObserver observer) {
+      cursor.registerContentObserver(observer);
+      observed = true;
+    }
+
+    void drop(ContentObserver observer) {
+      if (observed) {
+        cursor.unregisterContentObserver(observer);
+        observed = false;
+      }
+
+      release();
+    }
+
+    void acquire() {
+      references.incrementAndGet();
+    }
+
+    void release() {
+      if (references.decrementAndGet() == 0) {
+        cursor.close();
+      }
+    }
+  }
+
+  /**
+   * A merged cursor's handle on a shared page. Closing it releases the page once, and data set
+   * observers are kept per handle, so that merged cursors sharing a page don't see each
+   * other's observers.
+   */
+  private static class PageCursor extends CursorWrapper {
+
+    private final Page              page;
+    private final DataSetObservable dataSetObservable = new DataSetObservable();
+
+    private boolean closed;
+
+    PageCursor(Page page) {
+      super(page.cursor);
+      this.page = page;
+      page.acquire();
+    }
+
+    @Override
+    public void registerDataSetObserver(DataSetObserver observer) {
+      dataSetObservable.registerObserver(observer);
+    }
+
+    @Override
+    public void unregisterDataSetObserver(DataSetObserver observer) {
+      dataSetObservable.unregisterObserver(observer);
+    }
+
+    @Override
+    public synchronized boolean isClosed() {
+      return closed;
+    }
+
+    @Override
+    public synchronized void close() {
+      if (closed) return;
+
+      closed = true;
+      dataSetObservable.unregisterAll();
+      page.release();
+    }
   }
 }
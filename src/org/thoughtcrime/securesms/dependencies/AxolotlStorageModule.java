@@ -2,9 +2,8 @@ package org.thoughtcrime.securesms.dependencies;
 
 import android.content.Context;
 
-import org.thoughtcrime.securesms.crypto.storage.SignalProtocolStoreImpl;
+import org.thoughtcrime.securesms.crypto.storage.TextSecurePreKeyStore;
 import org.thoughtcrime.securesms.jobs.CleanPreKeysJob;
-import org.whispersystems.libsignal.state.SignedPreKeyStore;
 
 import dagger.Module;
 import dagger.Provides;
@@ -21,13 +20,13 @@ public class AxolotlStorageModule {
   @Provides SignedPreKeyStoreFactory provideSignedPreKeyStoreFactory() {
     return new SignedPreKeyStoreFactory() {
       @Override
-      public SignedPreKeyStore create() {
-        return new SignalProtocolStoreImpl(context);
+      public TextSecurePreKeyStore create() {
+        return new TextSecurePreKeyStore(context);
       }
     };
   }
 
   public static interface SignedPreKeyStoreFactory {
-    public SignedPreKeyStore create();
+    public TextSecurePreKeyStore create();
   }
 }
@@ -0,0 +1,57 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirement;
+import org.whispersystems.jobqueue.JobParameters;
+
+/**
+ * Re-encrypts attachments stored in the legacy CBC format into the seekable chunked format.
+ * Legacy files remain readable, so this runs in the background after upgrade, and since
+ * already migrated files are skipped, it simply starts over if it is interrupted.
+ */
+public class AttachmentFormatMigrationJob extends MasterSecretJob {
+
+  private static final long   serialVersionUID = 1L;
+  private static final String TAG              = AttachmentFormatMigrationJob.class.getSimpleName();
+
+  private static final int BATCH_SIZE = 50;
+
+  public AttachmentFormatMigrationJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withPersistence()
+                                .withRequirement(new MasterSecretRequirement(context))
+                                .withGroupId(AttachmentFormatMigrationJob.class.getSimpleName())
+                                .create());
+  }
+
+  @Override
+  public void onAdded() {}
+
+  @Override
+  public void onRun(MasterSecret masterSecret) {
+    AttachmentDatabase database  = DatabaseFactory.getAttachmentDatabase(context);
+    long               startTime = System.currentTimeMillis();
+    long               lastRowId = 0;
+
+    while ((lastRowId = database.migrateLegacyAttachmentFiles(masterSecret, lastRowId, BATCH_SIZE)) != -1) {
+      Log.w(TAG, "Migrated attachments through " + lastRowId);
+    }
+
+    Log.w(TAG, "Attachment migration finished in " + (System.currentTimeMillis() - startTime) + "ms");
+  }
+
+  @Override
+  public boolean onShouldRetryThrowable(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Attachment migration canceled");
+  }
+}
@@ -0,0 +1,50 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.whispersystems.jobqueue.JobParameters;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes attachment files that no attachment row refers to any more, by comparing the parts
+ * directory against the part table. Trimming deletes attachment rows only, and queues this
+ * to clean up after it.
+ */
+public class AttachmentOrphanSweepJob extends ContextJob {
+
+  private static final long   serialVersionUID = 1L;
+  private static final String TAG              = AttachmentOrphanSweepJob.class.getSimpleName();
+
+  private static final long MIN_ORPHAN_AGE = TimeUnit.HOURS.toMillis(1);
+
+  public AttachmentOrphanSweepJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withPersistence()
+                                .withGroupId(AttachmentOrphanSweepJob.class.getSimpleName())
+                                .create());
+  }
+
+  @Override
+  public void onAdded() {}
+
+  @Override
+  public void onRun() {
+    long startTime = System.currentTimeMillis();
+    int  deleted   = DatabaseFactory.getAttachmentDatabase(context).deleteOrphanedFiles(startTime - MIN_ORPHAN_AGE);
+
+    Log.w(TAG, "Deleted " + deleted + " orphaned attachment files in " + (System.currentTimeMillis() - startTime) + "ms");
+  }
+
+  @Override
+  public boolean onShouldRetry(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Orphaned attachment sweep canceled");
+  }
+}
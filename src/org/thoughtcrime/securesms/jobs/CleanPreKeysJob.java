@@ -5,12 +5,12 @@ import android.util.Log;
 
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.crypto.PreKeyUtil;
+import org.thoughtcrime.securesms.crypto.storage.TextSecurePreKeyStore;
 import org.thoughtcrime.securesms.dependencies.InjectableType;
 import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirement;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.libsignal.InvalidKeyIdException;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
-import org.whispersystems.libsignal.state.SignedPreKeyStore;
 import org.whispersystems.signalservice.api.SignalServiceAccountManager;
 import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException;
 import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
@@ -53,8 +53,8 @@ public class CleanPreKeysJob extends MasterSecretJob implements InjectableType {
     try {
       Log.w(TAG, "Cleaning prekeys...");
 
-      int                activeSignedPreKeyId = PreKeyUtil.getActiveSignedPreKeyId(context);
-      SignedPreKeyStore  signedPreKeyStore    = signedPreKeyStoreFactory.create();
+      int                   activeSignedPreKeyId = PreKeyUtil.getActiveSignedPreKeyId(context);
+      TextSecurePreKeyStore signedPreKeyStore    = signedPreKeyStoreFactory.create();
 
       if (activeSignedPreKeyId < 0) return;
 
@@ -67,7 +67,8 @@ public class CleanPreKeysJob extends MasterSecretJob implements InjectableType {
       Log.w(TAG, "Active signed prekey: " + activeSignedPreKeyId);
       Log.w(TAG, "Old signed prekey record count: " + oldRecords.size());
 
-      boolean foundAgedRecord = false;
+      boolean       foundAgedRecord = false;
+      List<Integer> removedIds      = new LinkedList<>();
 
       for (SignedPreKeyRecord oldRecord : oldRecords) {
         long archiveDuration = System.currentTimeMillis() - oldRecord.getTimestamp();
@@ -77,10 +78,12 @@ public class CleanPreKeysJob extends MasterSecretJob implements InjectableType {
             foundAgedRecord = true;
           } else {
             Log.w(TAG, "Removing signed prekey record: " + oldRecord.getId() + " with timestamp: " + oldRecord.getTimestamp());
-            signedPreKeyStore.removeSignedPreKey(oldRecord.getId());
+            removedIds.add(oldRecord.getId());
           }
         }
       }
+
+      signedPreKeyStore.removeSignedPreKeys(removedIds);
     } catch (InvalidKeyIdException e) {
       Log.w(TAG, e);
     }
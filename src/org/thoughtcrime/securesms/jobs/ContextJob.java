@@ -2,6 +2,8 @@ package org.thoughtcrime.securesms.jobs;
 
 import android.content.Context;
 
+import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.jobs.PriorityJobManager.Priority;
 import org.whispersystems.jobqueue.Job;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.jobqueue.dependencies.ContextDependent;
@@ -10,6 +12,9 @@ public abstract class ContextJob extends Job implements ContextDependent {
 
   protected transient Context context;
 
+  private transient Priority queuedPriority;
+  private transient long     queuedTime;
+
   protected ContextJob(Context context, JobParameters parameters) {
     super(parameters);
     this.context = context;
@@ -22,4 +27,21 @@ public abstract class ContextJob extends Job implements ContextDependent {
   protected Context getContext() {
     return context;
   }
+
+  void setQueued(Priority priority, long queuedTime) {
+    this.queuedPriority = priority;
+    this.queuedTime     = queuedTime;
+  }
+
+  /**
+   * Reports how long this job waited in its lane, the first time it runs after being added.
+   */
+  protected void onRunStarted() {
+    if (queuedTime > 0) {
+      ApplicationContext.getInstance(context)
+                        .getJobManager()
+                        .onJobStarted(queuedPriority, System.currentTimeMillis() - queuedTime);
+      queuedTime = 0;
+    }
+  }
 }
@@ -14,6 +14,8 @@ public abstract class MasterSecretJob extends ContextJob {
 
   @Override
   public void onRun() throws Exception {
+    onRunStarted();
+
     MasterSecret masterSecret = getMasterSecret();
     onRun(masterSecret);
   }
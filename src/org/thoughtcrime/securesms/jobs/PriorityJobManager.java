@@ -0,0 +1,152 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.jobs.persistence.EncryptingJobSerializer;
+import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirementProvider;
+import org.thoughtcrime.securesms.jobs.requirements.MediaNetworkRequirementProvider;
+import org.thoughtcrime.securesms.jobs.requirements.ServiceRequirementProvider;
+import org.whispersystems.jobqueue.Job;
+import org.whispersystems.jobqueue.JobManager;
+import org.whispersystems.jobqueue.dependencies.DependencyInjector;
+import org.whispersystems.jobqueue.requirements.NetworkRequirementProvider;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs jobs in separate lanes by priority, so that a long attachment download or contact
+ * sync can't hold every consumer thread while a message waits to be sent or received.
+ *
+ * Each lane is its own {@link JobManager}, with its own consumer threads and its own
+ * persisted queue. The interactive lane keeps the original queue name, so jobs persisted
+ * before lanes existed still run, in that lane. Jobs that share a group id must share a
+ * lane, since a group is only serialized within one lane.
+ */
+public class PriorityJobManager {
+
+  private static final String TAG = PriorityJobManager.class.getSimpleName();
+
+  private static final int STATS_LOG_INTERVAL = 50;
+
+  public enum Priority {
+    INTERACTIVE("TextSecureJobs", 3),
+    MEDIA("TextSecureMediaJobs", 2),
+    BACKGROUND("TextSecureBackgroundJobs", 1);
+
+    private final String name;
+    private final int    consumerThreads;
+
+    Priority(String name, int consumerThreads) {
+      this.name            = name;
+      this.consumerThreads = consumerThreads;
+    }
+  }
+
+  private static final Map<Class<? extends Job>, Priority> PRIORITIES = new HashMap<Class<? extends Job>, Priority>() {{
+    put(AttachmentDownloadJob.class, Priority.MEDIA);
+    put(AvatarDownloadJob.class, Priority.MEDIA);
+
+    put(AttachmentFileNameJob.class, Priority.BACKGROUND);
+    put(AttachmentFormatMigrationJob.class, Priority.BACKGROUND);
+    put(AttachmentOrphanSweepJob.class, Priority.BACKGROUND);
+    put(CleanPreKeysJob.class, Priority.BACKGROUND);
+    put(CreateSignedPreKeyJob.class, Priority.BACKGROUND);
+    put(DirectoryRefreshJob.class, Priority.BACKGROUND);
+    put(GcmRefreshJob.class, Priority.BACKGROUND);
+    put(MultiDeviceBlockedUpdateJob.class, Priority.BACKGROUND);
+    put(MultiDeviceContactUpdateJob.class, Priority.BACKGROUND);
+    put(MultiDeviceGroupUpdateJob.class, Priority.BACKGROUND);
+    put(RefreshAttributesJob.class, Priority.BACKGROUND);
+    put(RefreshPreKeysJob.class, Priority.BACKGROUND);
+    put(RotateSignedPreKeyJob.class, Priority.BACKGROUND);
+    put(SearchIndexBackfillJob.class, Priority.BACKGROUND);
+    put(TrimThreadJob.class, Priority.BACKGROUND);
+    put(UpdateApkJob.class, Priority.BACKGROUND);
+  }};
+
+  private final Map<Priority, JobManager>             lanes          = new EnumMap<>(Priority.class);
+  private final Map<Priority, QueueStats>             stats          = new EnumMap<>(Priority.class);
+  private final List<MediaNetworkRequirementProvider> mediaProviders = new LinkedList<>();
+
+  public PriorityJobManager(@NonNull Context context, @NonNull DependencyInjector dependencyInjector) {
+    for (Priority priority : Priority.values()) {
+      MediaNetworkRequirementProvider mediaProvider = new MediaNetworkRequirementProvider();
+
+      lanes.put(priority, JobManager.newBuilder(context)
+                                    .withName(priority.name)
+                                    .withDependencyInjector(dependencyInjector)
+                                    .withJobSerializer(new EncryptingJobSerializer())
+                                    .withRequirementProviders(new MasterSecretRequirementProvider(context),
+                                                              new ServiceRequirementProvider(context),
+                                                              new NetworkRequirementProvider(context),
+                                                              mediaProvider)
+                                    .withConsumerThreads(priority.consumerThreads)
+                                    .build());
+
+      stats.put(priority, new QueueStats());
+      mediaProviders.add(mediaProvider);
+    }
+  }
+
+  public void add(@NonNull Job job) {
+    Priority priority = getPriority(job);
+
+    if (job instanceof ContextJob) {
+      ((ContextJob) job).setQueued(priority, System.currentTimeMillis());
+    }
+
+    lanes.get(priority).add(job);
+  }
+
+  public void notifyMediaControlEvent() {
+    for (MediaNetworkRequirementProvider mediaProvider : mediaProviders) {
+      mediaProvider.notifyMediaControlEvent();
+    }
+  }
+
+  public static @NonNull Priority getPriority(@NonNull Job job) {
+    Priority priority = PRIORITIES.get(job.getClass());
+    return priority != null ? priority : Priority.INTERACTIVE;
+  }
+
+  void onJobStarted(@NonNull Priority priority, long queueWait) {
+    QueueStats queueStats = stats.get(priority);
+    long       started    = queueStats.record(queueWait);
+
+    if (started % STATS_LOG_INTERVAL == 0) {
+      Log.w(TAG, priority + " lane: " + queueStats);
+    }
+  }
+
+  private static class QueueStats {
+    private final AtomicLong started   = new AtomicLong();
+    private final AtomicLong totalWait = new AtomicLong();
+    private final AtomicLong maxWait   = new AtomicLong();
+
+    private long record(long wait) {
+      totalWait.addAndGet(wait);
+
+      long max = maxWait.get();
+      while (wait > max && !maxWait.compareAndSet(max, wait)) {
+        max = maxWait.get();
+      }
+
+      return started.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+      long count = started.get();
+
+      return count + " jobs started, average queue wait " + (count == 0 ? 0 : totalWait.get() / count) + "ms" +
+             ", longest " + maxWait.get() + "ms";
+    }
+  }
+}
@@ -75,7 +75,10 @@ import org.whispersystems.signalservice.api.messages.multidevice.RequestMessage;
 import org.whispersystems.signalservice.api.messages.multidevice.SentTranscriptMessage;
 import org.whispersystems.signalservice.api.messages.multidevice.SignalServiceSyncMessage;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.Envelope;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -87,17 +90,37 @@ public class PushDecryptJob extends ContextJob {
 
   public static final String TAG = PushDecryptJob.class.getSimpleName();
 
+  private static final String GROUP_ID_PREFIX = "__PUSH_DECRYPT_JOB__";
+
+  /**
+   * An envelope doesn't say whether it carries a group message until it's decrypted, so the
+   * lane is picked by sender. Anyone who shares a group with us, and our own other devices,
+   * go through the one shared group so that group messages are handled in arrival order.
+   * Everyone else gets a group per (source, device) session, so a backlog from many
+   * contacts is handled concurrently while each session stays in order.
+   *
+   * Someone who shares no group with us yet can still send a group creation from their own
+   * lane, so handling anything with a group context also takes this lock, and messages other
+   * members send to that group before it's created go through the unknown group path.
+   */
+  private static final Object GROUP_LOCK = new Object();
+
+  /**
+   * The most queued rows from one sender device that a job decrypts and stores together.
+   */
+  private static final int BATCH_SIZE = 50;
+
   private final long messageId;
   private final long smsMessageId;
 
-  public PushDecryptJob(Context context, long pushMessageId, String sender) {
-    this(context, pushMessageId, -1, sender);
+  public PushDecryptJob(Context context, long pushMessageId, String sender, int senderDevice) {
+    this(context, pushMessageId, -1, sender, senderDevice);
   }
 
-  public PushDecryptJob(Context context, long pushMessageId, long smsMessageId, String sender) {
+  public PushDecryptJob(Context context, long pushMessageId, long smsMessageId, String sender, int senderDevice) {
     super(context, JobParameters.newBuilder()
                                 .withPersistence()
-                                .withGroupId("__PUSH_DECRYPT_JOB__")
+                                .withGroupId(getGroupId(context, sender, senderDevice))
                                 .withWakeLock(true, 5, TimeUnit.SECONDS)
                                 .create());
     this.messageId    = pushMessageId;
@@ -108,7 +131,8 @@ public class PushDecryptJob extends ContextJob {
   public void onAdded() {}
 
   @Override
-  public void onRun() throws NoSuchMessageException {
+  public void onRun() throws NoSuchMessageException, IOException {
+    onRunStarted();
 
     if (!IdentityKeyUtil.hasIdentityKey(context)) {
       Log.w(TAG, "Skipping job, waiting for migration...");
@@ -117,17 +141,38 @@ public class PushDecryptJob extends ContextJob {
 
     MasterSecret          masterSecret         = KeyCachingService.getMasterSecret(context);
     PushDatabase          database             = DatabaseFactory.getPushDatabase(context);
-    SignalServiceEnvelope envelope             = database.get(messageId);
     Optional<Long>        optionalSmsMessageId = smsMessageId > 0 ? Optional.of(smsMessageId) :
                                                                  Optional.<Long>absent();
+    SignalServiceEnvelope envelope;
+
+    try {
+      envelope = database.get(messageId);
+    } catch (NoSuchMessageException e) {
+      Log.w(TAG, "Push message " + messageId + " is gone, it was handled with an earlier batch");
+      return;
+    }
 
     MasterSecretUnion masterSecretUnion;
 
     if (masterSecret == null) masterSecretUnion = new MasterSecretUnion(MasterSecretUtil.getAsymmetricMasterSecret(context, null));
     else                      masterSecretUnion = new MasterSecretUnion(masterSecret);
 
-    handleMessage(masterSecretUnion, envelope, optionalSmsMessageId);
-    database.delete(messageId);
+    DecryptedBatch batch = new DecryptedBatch(masterSecretUnion);
+
+    handleMessage(masterSecretUnion, messageId, envelope, optionalSmsMessageId, batch);
+
+    if (!optionalSmsMessageId.isPresent()) {
+      List<Pair<Long, SignalServiceEnvelope>> queued = database.getPendingRun(messageId, envelope.getSource(),
+                                                                              envelope.getSourceDevice(),
+                                                                              Envelope.Type.CIPHERTEXT_VALUE,
+                                                                              BATCH_SIZE - 1);
+
+      for (Pair<Long, SignalServiceEnvelope> message : queued) {
+        handleMessage(masterSecretUnion, message.first, message.second, Optional.<Long>absent(), batch);
+      }
+    }
+
+    batch.commit();
   }
 
   @Override
@@ -140,68 +185,123 @@ public class PushDecryptJob extends ContextJob {
 
   }
 
-  private void handleMessage(MasterSecretUnion masterSecret, SignalServiceEnvelope envelope, Optional<Long> smsMessageId) {
+  private void handleMessage(MasterSecretUnion masterSecret, long pushId, SignalServiceEnvelope envelope,
+                             Optional<Long> smsMessageId, DecryptedBatch batch)
+      throws IOException
+  {
     try {
-      GroupDatabase        groupDatabase = DatabaseFactory.getGroupDatabase(context);
       SignalProtocolStore  axolotlStore  = new SignalProtocolStoreImpl(context);
       SignalServiceAddress localAddress  = new SignalServiceAddress(TextSecurePreferences.getLocalNumber(context));
       SignalServiceCipher  cipher        = new SignalServiceCipher(localAddress, axolotlStore);
 
       SignalServiceContent content = cipher.decrypt(envelope);
 
-      if (content.getDataMessage().isPresent()) {
-        SignalServiceDataMessage message = content.getDataMessage().get();
+      if (envelope.isPreKeySignalMessage()) {
+        ApplicationContext.getInstance(context).getJobManager().add(new RefreshPreKeysJob(context));
+      }
 
-        if      (message.isEndSession())               handleEndSessionMessage(masterSecret, envelope, message, smsMessageId);
-        else if (message.isGroupUpdate())              handleGroupMessage(masterSecret, envelope, message, smsMessageId);
-        else if (message.isExpirationUpdate())         handleExpirationUpdate(masterSecret, envelope, message, smsMessageId);
-        else if (message.getAttachments().isPresent()) handleMediaMessage(masterSecret, envelope, message, smsMessageId);
-        else                                           handleTextMessage(masterSecret, envelope, message, smsMessageId);
+      if (batch.add(pushId, envelope, content, smsMessageId)) {
+        return;
+      }
+
+      batch.commit();
 
-        if (message.getGroupInfo().isPresent() && groupDatabase.isUnknownGroup(message.getGroupInfo().get().getGroupId())) {
-          handleUnknownGroupMessage(envelope, message.getGroupInfo().get());
+      if (hasGroupContext(content)) {
+        synchronized (GROUP_LOCK) {
+          handleContent(masterSecret, envelope, content, smsMessageId);
         }
-      } else if (content.getSyncMessage().isPresent()) {
-        SignalServiceSyncMessage syncMessage = content.getSyncMessage().get();
-
-        if      (syncMessage.getSent().isPresent())    handleSynchronizeSentMessage(masterSecret, envelope, syncMessage.getSent().get(), smsMessageId);
-        else if (syncMessage.getRequest().isPresent()) handleSynchronizeRequestMessage(masterSecret, syncMessage.getRequest().get());
-        else if (syncMessage.getRead().isPresent())    handleSynchronizeReadMessage(masterSecret, syncMessage.getRead().get(), envelope.getTimestamp());
-        else                                           Log.w(TAG, "Contains no known sync types...");
-      } else if (content.getCallMessage().isPresent()) {
-        Log.w(TAG, "Got call message...");
-        SignalServiceCallMessage message = content.getCallMessage().get();
-
-        if      (message.getOfferMessage().isPresent())      handleCallOfferMessage(envelope, message.getOfferMessage().get(), smsMessageId);
-        else if (message.getAnswerMessage().isPresent())     handleCallAnswerMessage(envelope, message.getAnswerMessage().get());
-        else if (message.getIceUpdateMessages().isPresent()) handleCallIceUpdateMessage(envelope, message.getIceUpdateMessages().get());
-        else if (message.getHangupMessage().isPresent())     handleCallHangupMessage(envelope, message.getHangupMessage().get(), smsMessageId);
       } else {
-        Log.w(TAG, "Got unrecognized message...");
-      }
-
-      if (envelope.isPreKeySignalMessage()) {
-        ApplicationContext.getInstance(context).getJobManager().add(new RefreshPreKeysJob(context));
+        handleContent(masterSecret, envelope, content, smsMessageId);
       }
     } catch (InvalidVersionException e) {
       Log.w(TAG, e);
+      batch.commit();
       handleInvalidVersionMessage(masterSecret, envelope, smsMessageId);
     } catch (InvalidMessageException | InvalidKeyIdException | InvalidKeyException | MmsException e) {
       Log.w(TAG, e);
+      batch.commit();
       handleCorruptMessage(masterSecret, envelope, smsMessageId);
     } catch (NoSessionException e) {
       Log.w(TAG, e);
+      batch.commit();
       handleNoSessionMessage(masterSecret, envelope, smsMessageId);
     } catch (LegacyMessageException e) {
       Log.w(TAG, e);
+      batch.commit();
       handleLegacyMessage(masterSecret, envelope, smsMessageId);
     } catch (DuplicateMessageException e) {
       Log.w(TAG, e);
+      batch.commit();
       handleDuplicateMessage(masterSecret, envelope, smsMessageId);
     } catch (UntrustedIdentityException e) {
       Log.w(TAG, e);
+      batch.commit();
       handleUntrustedIdentityMessage(masterSecret, envelope, smsMessageId);
     }
+
+    DatabaseFactory.getPushDatabase(context).delete(pushId);
+  }
+
+  private void handleContent(@NonNull MasterSecretUnion masterSecret,
+                             @NonNull SignalServiceEnvelope envelope,
+                             @NonNull SignalServiceContent content,
+                             @NonNull Optional<Long> smsMessageId)
+      throws MmsException
+  {
+    GroupDatabase groupDatabase = DatabaseFactory.getGroupDatabase(context);
+
+    if (content.getDataMessage().isPresent()) {
+      SignalServiceDataMessage message = content.getDataMessage().get();
+
+      if      (message.isEndSession())               handleEndSessionMessage(masterSecret, envelope, message, smsMessageId);
+      else if (message.isGroupUpdate())              handleGroupMessage(masterSecret, envelope, message, smsMessageId);
+      else if (message.isExpirationUpdate())         handleExpirationUpdate(masterSecret, envelope, message, smsMessageId);
+      else if (message.getAttachments().isPresent()) handleMediaMessage(masterSecret, envelope, message, smsMessageId);
+      else                                           handleTextMessage(masterSecret, envelope, message, smsMessageId);
+
+      if (message.getGroupInfo().isPresent() && groupDatabase.isUnknownGroup(message.getGroupInfo().get().getGroupId())) {
+        handleUnknownGroupMessage(envelope, message.getGroupInfo().get());
+      }
+    } else if (content.getSyncMessage().isPresent()) {
+      SignalServiceSyncMessage syncMessage = content.getSyncMessage().get();
+
+      if      (syncMessage.getSent().isPresent())    handleSynchronizeSentMessage(masterSecret, envelope, syncMessage.getSent().get(), smsMessageId);
+      else if (syncMessage.getRequest().isPresent()) handleSynchronizeRequestMessage(masterSecret, syncMessage.getRequest().get());
+      else if (syncMessage.getRead().isPresent())    handleSynchronizeReadMessage(masterSecret, syncMessage.getRead().get(), envelope.getTimestamp());
+      else                                           Log.w(TAG, "Contains no known sync types...");
+    } else if (content.getCallMessage().isPresent()) {
+      Log.w(TAG, "Got call message...");
+      SignalServiceCallMessage message = content.getCallMessage().get();
+
+      if      (message.getOfferMessage().isPresent())      handleCallOfferMessage(envelope, message.getOfferMessage().get(), smsMessageId);
+      else if (message.getAnswerMessage().isPresent())     handleCallAnswerMessage(envelope, message.getAnswerMessage().get());
+      else if (message.getIceUpdateMessages().isPresent()) handleCallIceUpdateMessage(envelope, message.getIceUpdateMessages().get());
+      else if (message.getHangupMessage().isPresent())     handleCallHangupMessage(envelope, message.getHangupMessage().get(), smsMessageId);
+    } else {
+      Log.w(TAG, "Got unrecognized message...");
+    }
+  }
+
+  private boolean hasGroupContext(@NonNull SignalServiceContent content) {
+    if (content.getDataMessage().isPresent()) {
+      return content.getDataMessage().get().getGroupInfo().isPresent();
+    }
+
+    if (content.getSyncMessage().isPresent() && content.getSyncMessage().get().getSent().isPresent()) {
+      return content.getSyncMessage().get().getSent().get().getMessage().getGroupInfo().isPresent();
+    }
+
+    return false;
+  }
+
+  private static String getGroupId(Context context, String source, int sourceDevice) {
+    if (source.equals(TextSecurePreferences.getLocalNumber(context)) ||
+        DatabaseFactory.getGroupDatabase(context).isMemberOfAnyGroup(source))
+    {
+      return GROUP_ID_PREFIX;
+    }
+
+    return GROUP_ID_PREFIX + source + "." + sourceDevice;
   }
 
   private void handleCallOfferMessage(@NonNull SignalServiceEnvelope envelope,
@@ -466,15 +566,8 @@ public class PushDecryptJob extends ContextJob {
       throws MmsException
   {
     MmsDatabase          database     = DatabaseFactory.getMmsDatabase(context);
-    String               localNumber  = TextSecurePreferences.getLocalNumber(context);
     Recipients           recipients   = getMessageDestination(envelope, message);
-    IncomingMediaMessage mediaMessage = new IncomingMediaMessage(masterSecret, envelope.getSource(),
-                                                                 localNumber, message.getTimestamp(), -1,
-                                                                 message.getExpiresInSeconds() * 1000, false,
-                                                                 Optional.fromNullable(envelope.getRelay()),
-                                                                 message.getBody(),
-                                                                 message.getGroupInfo(),
-                                                                 message.getAttachments());
+    IncomingMediaMessage mediaMessage = getMediaMessage(masterSecret, envelope, message);
 
     if (message.getExpiresInSeconds() != recipients.getExpireMessages()) {
       handleExpirationUpdate(masterSecret, envelope, message, Optional.<Long>absent());
@@ -483,20 +576,7 @@ public class PushDecryptJob extends ContextJob {
     Optional<InsertResult> insertResult = database.insertSecureDecryptedMessageInbox(masterSecret, mediaMessage, -1);
 
     if (insertResult.isPresent()) {
-      List<DatabaseAttachment> attachments = DatabaseFactory.getAttachmentDatabase(context).getAttachmentsForMessage(null, insertResult.get().getMessageId());
-
-      for (DatabaseAttachment attachment : attachments) {
-        ApplicationContext.getInstance(context)
-                          .getJobManager()
-                          .add(new AttachmentDownloadJob(context, insertResult.get().getMessageId(),
-                                                         attachment.getAttachmentId()));
-
-        if (!masterSecret.getMasterSecret().isPresent()) {
-          ApplicationContext.getInstance(context)
-                            .getJobManager()
-                            .add(new AttachmentFileNameJob(context, masterSecret.getAsymmetricMasterSecret().get(), attachment, mediaMessage));
-        }
-      }
+      scheduleAttachmentDownloads(masterSecret, insertResult.get().getMessageId(), mediaMessage);
 
       if (smsMessageId.isPresent()) {
         DatabaseFactory.getSmsDatabase(context).deleteMessage(smsMessageId.get());
@@ -597,13 +677,7 @@ public class PushDecryptJob extends ContextJob {
     if (smsMessageId.isPresent() && !message.getGroupInfo().isPresent()) {
       threadId = database.updateBundleMessageBody(masterSecret, smsMessageId.get(), body).second;
     } else {
-      IncomingTextMessage textMessage = new IncomingTextMessage(envelope.getSource(),
-                                                                envelope.getSourceDevice(),
-                                                                message.getTimestamp(), body,
-                                                                message.getGroupInfo(),
-                                                                message.getExpiresInSeconds() * 1000);
-
-      textMessage = new IncomingEncryptedMessage(textMessage, body);
+      IncomingTextMessage    textMessage  = getTextMessage(envelope, message);
       Optional<InsertResult> insertResult = database.insertMessageInbox(masterSecret, textMessage);
 
       if (insertResult.isPresent()) threadId = insertResult.get().getThreadId();
@@ -774,6 +848,51 @@ public class PushDecryptJob extends ContextJob {
     }
   }
 
+  private IncomingTextMessage getTextMessage(@NonNull SignalServiceEnvelope envelope,
+                                             @NonNull SignalServiceDataMessage message)
+  {
+    String              body        = message.getBody().isPresent() ? message.getBody().get() : "";
+    IncomingTextMessage textMessage = new IncomingTextMessage(envelope.getSource(),
+                                                              envelope.getSourceDevice(),
+                                                              message.getTimestamp(), body,
+                                                              message.getGroupInfo(),
+                                                              message.getExpiresInSeconds() * 1000);
+
+    return new IncomingEncryptedMessage(textMessage, body);
+  }
+
+  private IncomingMediaMessage getMediaMessage(@NonNull MasterSecretUnion masterSecret,
+                                               @NonNull SignalServiceEnvelope envelope,
+                                               @NonNull SignalServiceDataMessage message)
+  {
+    return new IncomingMediaMessage(masterSecret, envelope.getSource(),
+                                    TextSecurePreferences.getLocalNumber(context),
+                                    message.getTimestamp(), -1,
+                                    message.getExpiresInSeconds() * 1000, false,
+                                    Optional.fromNullable(envelope.getRelay()),
+                                    message.getBody(),
+                                    message.getGroupInfo(),
+                                    message.getAttachments());
+  }
+
+  private void scheduleAttachmentDownloads(@NonNull MasterSecretUnion masterSecret, long messageId,
+                                           @NonNull IncomingMediaMessage mediaMessage)
+  {
+    List<DatabaseAttachment> attachments = DatabaseFactory.getAttachmentDatabase(context).getAttachmentsForMessage(null, messageId);
+
+    for (DatabaseAttachment attachment : attachments) {
+      ApplicationContext.getInstance(context)
+                        .getJobManager()
+                        .add(new AttachmentDownloadJob(context, messageId, attachment.getAttachmentId()));
+
+      if (!masterSecret.getMasterSecret().isPresent()) {
+        ApplicationContext.getInstance(context)
+                          .getJobManager()
+                          .add(new AttachmentFileNameJob(context, masterSecret.getAsymmetricMasterSecret().get(), attachment, mediaMessage));
+      }
+    }
+  }
+
   private Optional<InsertResult> insertPlaceholder(@NonNull SignalServiceEnvelope envelope) {
     EncryptingSmsDatabase database    = DatabaseFactory.getEncryptingSmsDatabase(context);
     IncomingTextMessage   textMessage = new IncomingTextMessage(envelope.getSource(), envelope.getSourceDevice(),
@@ -799,4 +918,126 @@ public class PushDecryptJob extends ContextJob {
       return RecipientFactory.getRecipientsFromString(context, envelope.getSource(), false);
     }
   }
+
+  /**
+   * Plain incoming messages decrypted from a run of one sender device's queued rows, held so
+   * that they are stored together, in one transaction with one thread update and one
+   * notification. Only 1:1 messages that need nothing but an insert are held. Anything else
+   * commits the batch before it's handled, so messages are still stored in arrival order.
+   */
+  private class DecryptedBatch {
+
+    private final MasterSecretUnion           masterSecret;
+    private final List<Long>                  pushIds       = new ArrayList<>();
+    private final List<SignalServiceEnvelope> envelopes     = new ArrayList<>();
+    private final List<IncomingTextMessage>   textMessages  = new ArrayList<>();
+    private final List<IncomingMediaMessage>  mediaMessages = new ArrayList<>();
+
+    DecryptedBatch(@NonNull MasterSecretUnion masterSecret) {
+      this.masterSecret = masterSecret;
+    }
+
+    boolean add(long pushId, @NonNull SignalServiceEnvelope envelope,
+                @NonNull SignalServiceContent content, @NonNull Optional<Long> smsMessageId)
+        throws IOException
+    {
+      if (smsMessageId.isPresent() || !content.getDataMessage().isPresent()) {
+        return false;
+      }
+
+      SignalServiceDataMessage message = content.getDataMessage().get();
+
+      if (message.isEndSession() || message.isGroupUpdate() || message.isExpirationUpdate() ||
+          message.getGroupInfo().isPresent()                                                ||
+          message.getExpiresInSeconds() != getMessageDestination(envelope, message).getExpireMessages())
+      {
+        return false;
+      }
+
+      boolean media = message.getAttachments().isPresent();
+
+      if (media ? !textMessages.isEmpty() : !mediaMessages.isEmpty()) {
+        commit();
+      }
+
+      if (media) mediaMessages.add(getMediaMessage(masterSecret, envelope, message));
+      else       textMessages.add(getTextMessage(envelope, message));
+
+      pushIds.add(pushId);
+      envelopes.add(envelope);
+
+      return true;
+    }
+
+    void commit() throws IOException {
+      // Saved before anything is stored, so that redelivering these rows after a crash is
+      // rejected as duplicates. If it can't be saved, the job fails and keeps the rows.
+      new TextSecureSessionStore(context).flush();
+
+      if (pushIds.isEmpty()) {
+        return;
+      }
+
+      List<Optional<InsertResult>> results;
+      Long                         threadId = null;
+
+      if (!textMessages.isEmpty()) results = DatabaseFactory.getEncryptingSmsDatabase(context).insertMessagesInbox(masterSecret, textMessages);
+      else                         results = insertMediaMessages();
+
+      for (int i=0;i<results.size();i++) {
+        if (!results.get(i).isPresent()) continue;
+
+        threadId = results.get(i).get().getThreadId();
+
+        if (!mediaMessages.isEmpty()) {
+          scheduleAttachmentDownloads(masterSecret, results.get(i).get().getMessageId(), mediaMessages.get(i));
+        }
+      }
+
+      PushDatabase pushDatabase = DatabaseFactory.getPushDatabase(context);
+
+      for (long pushId : pushIds) {
+        pushDatabase.delete(pushId);
+      }
+
+      Log.w(TAG, "Stored a batch of " + pushIds.size() + " messages");
+
+      if (threadId != null) {
+        MessageNotifier.updateNotification(context, masterSecret.getMasterSecret().orNull(), threadId);
+      }
+
+      pushIds.clear();
+      envelopes.clear();
+      textMessages.clear();
+      mediaMessages.clear();
+    }
+
+    /**
+     * If the batch can't be stored, its messages are stored one at a time, and the ones that
+     * still fail are marked as corrupt, as they would have been on their own.
+     */
+    private List<Optional<InsertResult>> insertMediaMessages() {
+      MmsDatabase database = DatabaseFactory.getMmsDatabase(context);
+
+      try {
+        return database.insertSecureDecryptedMessagesInbox(masterSecret, mediaMessages);
+      } catch (MmsException e) {
+        Log.w(TAG, e);
+      }
+
+      List<Optional<InsertResult>> results = new ArrayList<>();
+
+      for (int i=0;i<mediaMessages.size();i++) {
+        try {
+          results.add(database.insertSecureDecryptedMessageInbox(masterSecret, mediaMessages.get(i), -1));
+        } catch (MmsException e) {
+          Log.w(TAG, e);
+          handleCorruptMessage(masterSecret, envelopes.get(i), Optional.<Long>absent());
+          results.add(Optional.<InsertResult>absent());
+        }
+      }
+
+      return results;
+    }
+  }
 }
@@ -12,7 +12,6 @@ import org.thoughtcrime.securesms.database.TextSecureDirectory;
 import org.thoughtcrime.securesms.recipients.RecipientFactory;
 import org.thoughtcrime.securesms.recipients.Recipients;
 import org.thoughtcrime.securesms.service.KeyCachingService;
-import org.whispersystems.jobqueue.JobManager;
 import org.whispersystems.jobqueue.JobParameters;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 import org.whispersystems.signalservice.api.push.ContactTokenDetails;
@@ -48,11 +47,11 @@ public abstract class PushReceivedJob extends ContextJob {
 
   private void handleMessage(SignalServiceEnvelope envelope, boolean sendExplicitReceipt) {
     Recipients recipients = RecipientFactory.getRecipientsFromString(context, envelope.getSource(), false);
-    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+    PriorityJobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
 
     if (!recipients.isBlocked()) {
       long messageId = DatabaseFactory.getPushDatabase(context).insert(envelope);
-      jobManager.add(new PushDecryptJob(context, messageId, envelope.getSource()));
+      jobManager.add(new PushDecryptJob(context, messageId, envelope.getSource(), envelope.getSourceDevice()));
     } else {
       Log.w(TAG, "*** Received blocked push message, ignoring...");
     }
@@ -8,6 +8,7 @@ import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.TextSecureExpiredException;
 import org.thoughtcrime.securesms.attachments.Attachment;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.crypto.storage.TextSecureSessionStore;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.TextSecureDirectory;
 import org.thoughtcrime.securesms.events.PartProgressEvent;
@@ -59,7 +60,19 @@ public abstract class PushSendJob extends SendJob {
       throw new TextSecureExpiredException("Too many signed prekey rotation failures");
     }
 
-    onPushSend(masterSecret);
+    try {
+      onPushSend(masterSecret);
+    } finally {
+      flushSessions();
+    }
+  }
+
+  private void flushSessions() {
+    try {
+      new TextSecureSessionStore(context).flush();
+    } catch (IOException e) {
+      Log.w(TAG, "Sessions couldn't be written after sending, leaving them to the flusher", e);
+    }
   }
 
   protected SignalServiceAddress getPushAddress(String number) throws InvalidNumberException {
@@ -57,15 +57,21 @@ public class RefreshPreKeysJob extends MasterSecretJob implements InjectableType
       return;
     }
 
+    long               startTime           = System.currentTimeMillis();
     List<PreKeyRecord> preKeyRecords       = PreKeyUtil.generatePreKeys(context);
     PreKeyRecord       lastResortKeyRecord = PreKeyUtil.generateLastResortKey(context);
     IdentityKeyPair    identityKey         = IdentityKeyUtil.getIdentityKeyPair(context);
     SignedPreKeyRecord signedPreKeyRecord  = PreKeyUtil.generateSignedPreKey(context, identityKey, false);
 
+    long generatedTime = System.currentTimeMillis();
+
     Log.w(TAG, "Registering new prekeys...");
 
     accountManager.setPreKeys(identityKey.getPublicKey(), lastResortKeyRecord, signedPreKeyRecord, preKeyRecords);
 
+    Log.w(TAG, "Generated " + preKeyRecords.size() + " prekeys in " + (generatedTime - startTime) + "ms, " +
+               "uploaded in " + (System.currentTimeMillis() - generatedTime) + "ms");
+
     PreKeyUtil.setActiveSignedPreKeyId(context, signedPreKeyRecord.getId());
     TextSecurePreferences.setSignedPreKeyRegistered(context, true);
 
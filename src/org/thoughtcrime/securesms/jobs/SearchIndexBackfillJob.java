@@ -0,0 +1,64 @@
+package org.thoughtcrime.securesms.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.SearchDatabase;
+import org.thoughtcrime.securesms.jobs.requirements.MasterSecretRequirement;
+import org.whispersystems.jobqueue.JobParameters;
+
+/**
+ * Adds every existing message to the search index. New messages are indexed as they
+ * are written, so this only needs to run once, after the index is introduced. It is
+ * idempotent, so if it is interrupted it simply starts over.
+ */
+public class SearchIndexBackfillJob extends MasterSecretJob {
+
+  private static final long   serialVersionUID = 1L;
+  private static final String TAG              = SearchIndexBackfillJob.class.getSimpleName();
+
+  private static final int BATCH_SIZE = 500;
+
+  public SearchIndexBackfillJob(Context context) {
+    super(context, JobParameters.newBuilder()
+                                .withPersistence()
+                                .withRequirement(new MasterSecretRequirement(context))
+                                .withGroupId(SearchIndexBackfillJob.class.getSimpleName())
+                                .create());
+  }
+
+  @Override
+  public void onAdded() {}
+
+  @Override
+  public void onRun(MasterSecret masterSecret) {
+    long startTime = System.currentTimeMillis();
+
+    backfill(masterSecret, MmsSmsDatabase.SMS_TRANSPORT);
+    backfill(masterSecret, MmsSmsDatabase.MMS_TRANSPORT);
+
+    Log.w(TAG, "Backfilled search index in " + (System.currentTimeMillis() - startTime) + "ms");
+  }
+
+  private void backfill(MasterSecret masterSecret, String transport) {
+    SearchDatabase database = DatabaseFactory.getSearchDatabase(context);
+    long           lastId   = 0;
+
+    while ((lastId = database.indexMessagesAfter(masterSecret, transport, lastId, BATCH_SIZE)) != -1) {
+      Log.w(TAG, "Indexed " + transport + " messages through " + lastId);
+    }
+  }
+
+  @Override
+  public boolean onShouldRetryThrowable(Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Search index backfill canceled");
+  }
+}
@@ -28,7 +28,6 @@ import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MessagingDatabase.MarkedMessageInfo;
 import org.whispersystems.libsignal.logging.Log;
 
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -57,17 +56,11 @@ public class AndroidAutoHeardReceiver extends MasterSecretBroadcastReceiver {
       new AsyncTask<Void, Void, Void>() {
         @Override
         protected Void doInBackground(Void... params) {
-          List<MarkedMessageInfo> messageIdsCollection = new LinkedList<>();
-
-          for (long threadId : threadIds) {
-            Log.i(TAG, "Marking meassage as read: " + threadId);
-            List<MarkedMessageInfo> messageIds = DatabaseFactory.getThreadDatabase(context).setRead(threadId, true);
-
-            messageIdsCollection.addAll(messageIds);
-          }
+          Log.i(TAG, "Marking messages as read: " + threadIds.length + " threads");
+          List<MarkedMessageInfo> messageIds = DatabaseFactory.getThreadDatabase(context).setRead(threadIds, true);
 
           MessageNotifier.updateNotification(context, masterSecret);
-          MarkReadReceiver.process(context, messageIdsCollection);
+          MarkReadReceiver.process(context, messageIds);
 
           return null;
         }
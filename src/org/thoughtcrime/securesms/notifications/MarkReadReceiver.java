@@ -16,6 +16,7 @@ import org.thoughtcrime.securesms.database.MessagingDatabase.MarkedMessageInfo;
 import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
 import org.thoughtcrime.securesms.jobs.MultiDeviceReadUpdateJob;
 import org.thoughtcrime.securesms.service.ExpiringMessageManager;
+import org.thoughtcrime.securesms.util.Util;
 
 import java.util.LinkedList;
 import java.util.List;
@@ -27,6 +28,9 @@ public class MarkReadReceiver extends MasterSecretBroadcastReceiver {
   public static final  String THREAD_IDS_EXTRA      = "thread_ids";
   public static final  String NOTIFICATION_ID_EXTRA = "notification_id";
 
+  private static final int SYNC_BATCH_SIZE   = 500;
+  private static final int EXPIRE_BATCH_SIZE = 500;
+
   @Override
   protected void onReceive(final Context context, Intent intent, @Nullable final MasterSecret masterSecret)
   {
@@ -41,15 +45,10 @@ public class MarkReadReceiver extends MasterSecretBroadcastReceiver {
       new AsyncTask<Void, Void, Void>() {
         @Override
         protected Void doInBackground(Void... params) {
-          List<MarkedMessageInfo> messageIdsCollection = new LinkedList<>();
-
-          for (long threadId : threadIds) {
-            Log.w(TAG, "Marking as read: " + threadId);
-            List<MarkedMessageInfo> messageIds = DatabaseFactory.getThreadDatabase(context).setRead(threadId, true);
-            messageIdsCollection.addAll(messageIds);
-          }
+          Log.w(TAG, "Marking as read: " + threadIds.length + " threads");
+          List<MarkedMessageInfo> messageIds = DatabaseFactory.getThreadDatabase(context).setRead(threadIds, true);
 
-          process(context, messageIdsCollection);
+          process(context, messageIds);
 
           MessageNotifier.updateNotification(context, masterSecret);
 
@@ -59,29 +58,60 @@ public class MarkReadReceiver extends MasterSecretBroadcastReceiver {
     }
   }
 
+  /**
+   * Starts expiration timers and sends read syncs for messages that were just marked read.
+   * Expiration starts are written with one statement per batch, and sync messages are
+   * sent in jobs of at most {@link #SYNC_BATCH_SIZE} messages each.
+   */
   public static void process(@NonNull Context context, @NonNull List<MarkedMessageInfo> markedReadMessages) {
     if (markedReadMessages.isEmpty()) return;
 
-    List<SyncMessageId> syncMessageIds = new LinkedList<>();
+    long                 startTime      = System.currentTimeMillis();
+    List<SyncMessageId>  syncMessageIds = new LinkedList<>();
+    List<ExpirationInfo> expiring       = new LinkedList<>();
 
     for (MarkedMessageInfo messageInfo : markedReadMessages) {
-      scheduleDeletion(context, messageInfo.getExpirationInfo());
+      ExpirationInfo expirationInfo = messageInfo.getExpirationInfo();
+
+      if (expirationInfo.getExpiresIn() > 0 && expirationInfo.getExpireStarted() <= 0) {
+        expiring.add(expirationInfo);
+      }
+
       syncMessageIds.add(messageInfo.getSyncMessageId());
     }
 
-    ApplicationContext.getInstance(context)
-                      .getJobManager()
-                      .add(new MultiDeviceReadUpdateJob(context, syncMessageIds));
+    scheduleDeletion(context, expiring);
+
+    for (List<SyncMessageId> batch : Util.partition(syncMessageIds, SYNC_BATCH_SIZE)) {
+      ApplicationContext.getInstance(context)
+                        .getJobManager()
+                        .add(new MultiDeviceReadUpdateJob(context, batch));
+    }
+
+    Log.w(TAG, "Processed " + markedReadMessages.size() + " read messages in " + (System.currentTimeMillis() - startTime) + "ms");
   }
 
-  private static void scheduleDeletion(Context context, ExpirationInfo expirationInfo) {
-    if (expirationInfo.getExpiresIn() > 0 && expirationInfo.getExpireStarted() <= 0) {
-      ExpiringMessageManager expirationManager = ApplicationContext.getInstance(context).getExpiringMessageManager();
+  private static void scheduleDeletion(Context context, List<ExpirationInfo> expiring) {
+    if (expiring.isEmpty()) return;
+
+    ExpiringMessageManager expirationManager = ApplicationContext.getInstance(context).getExpiringMessageManager();
+    long                   startedAt         = System.currentTimeMillis();
+
+    for (List<ExpirationInfo> batch : Util.partition(expiring, EXPIRE_BATCH_SIZE)) {
+      List<Long> smsIds = new LinkedList<>();
+      List<Long> mmsIds = new LinkedList<>();
+
+      for (ExpirationInfo expirationInfo : batch) {
+        if (expirationInfo.isMms()) mmsIds.add(expirationInfo.getId());
+        else                        smsIds.add(expirationInfo.getId());
+      }
 
-      if (expirationInfo.isMms()) DatabaseFactory.getMmsDatabase(context).markExpireStarted(expirationInfo.getId());
-      else                        DatabaseFactory.getSmsDatabase(context).markExpireStarted(expirationInfo.getId());
+      if (!smsIds.isEmpty()) DatabaseFactory.getSmsDatabase(context).markExpireStarted(Util.toLongArray(smsIds), startedAt);
+      if (!mmsIds.isEmpty()) DatabaseFactory.getMmsDatabase(context).markExpireStarted(Util.toLongArray(mmsIds), startedAt);
 
-      expirationManager.scheduleDeletion(expirationInfo.getId(), expirationInfo.isMms(), expirationInfo.getExpiresIn());
+      for (ExpirationInfo expirationInfo : batch) {
+        expirationManager.scheduleDeletion(expirationInfo.getId(), expirationInfo.isMms(), expirationInfo.getExpiresIn());
+      }
     }
   }
 }
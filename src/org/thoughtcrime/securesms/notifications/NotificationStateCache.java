@@ -0,0 +1,241 @@
+package org.thoughtcrime.securesms.notifications;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.crypto.MasterSecret;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MmsSmsColumns;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.SmsDatabase;
+import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
+import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.mms.SlideDeck;
+import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.recipients.Recipients;
+import org.thoughtcrime.securesms.util.SpanUtil;
+import org.thoughtcrime.securesms.util.Util;
+import org.whispersystems.libsignal.util.guava.Optional;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps a {@link NotificationItem} for every unread message between notification updates.
+ *
+ * Each update reads only the ids and a change marker of the unread messages. Messages that
+ * were read or deleted are dropped, and only messages that are new or have changed are read
+ * in full and decrypted. The recipients of each thread are kept until the recipient cache
+ * marks them stale, as it does when their preferences or contact change, and that thread's
+ * items are then rebuilt against the new ones. Everything is rebuilt when the cache is first
+ * used, and whenever the master secret becomes available or goes away, since that changes
+ * how every body is displayed.
+ *
+ * Updates are poll-and-diff: each one scans every unread message's id and change marker,
+ * and only skips reading and decrypting the ones it already has.
+ */
+class NotificationStateCache {
+
+  private static final String TAG = NotificationStateCache.class.getSimpleName();
+
+  private static final int LOAD_BATCH_SIZE = 500;
+
+  private final Map<String, CachedItem>         items            = new HashMap<>();
+  private final Map<Long, Optional<Recipients>> threadRecipients = new HashMap<>();
+
+  private boolean loaded;
+  private boolean unlocked;
+
+  public synchronized @NonNull NotificationState getNotificationState(@NonNull Context context,
+                                                                      @Nullable MasterSecret masterSecret)
+  {
+    long startTime = System.currentTimeMillis();
+
+    if (!loaded || unlocked != (masterSecret != null)) {
+      items.clear();
+      threadRecipients.clear();
+
+      loaded   = true;
+      unlocked = masterSecret != null;
+    }
+
+    dropStaleRecipients();
+
+    Set<String>         unread   = new LinkedHashSet<>();
+    Map<String, String> versions = new HashMap<>();
+    List<Long>          smsIds   = new LinkedList<>();
+    List<Long>          mmsIds   = new LinkedList<>();
+
+    Cursor cursor = DatabaseFactory.getMmsSmsDatabase(context).getUnreadSummaries();
+
+    try {
+      while (cursor != null && cursor.moveToNext()) {
+        long       id         = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID));
+        String     transport  = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT));
+        long       type       = cursor.getLong(cursor.getColumnIndexOrThrow(SmsDatabase.TYPE));
+        long       bodyLength = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsDatabase.BODY_LENGTH));
+        String     key        = getKey(transport, id);
+        String     version    = type + ":" + bodyLength;
+        CachedItem cached     = items.get(key);
+
+        unread.add(key);
+
+        if (cached == null || !cached.version.equals(version)) {
+          versions.put(key, version);
+
+          if (MmsSmsDatabase.MMS_TRANSPORT.equals(transport)) mmsIds.add(id);
+          else                                                smsIds.add(id);
+        }
+      }
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+
+    items.keySet().retainAll(unread);
+
+    for (List<Long> batch : Util.partition(smsIds, LOAD_BATCH_SIZE)) {
+      load(context, masterSecret, Util.toLongArray(batch), new long[0], versions);
+    }
+
+    for (List<Long> batch : Util.partition(mmsIds, LOAD_BATCH_SIZE)) {
+      load(context, masterSecret, new long[0], Util.toLongArray(batch), versions);
+    }
+
+    NotificationState notificationState = new NotificationState();
+    Set<Long>         threads           = new HashSet<>();
+
+    for (String key : unread) {
+      CachedItem cached = items.get(key);
+      if (cached == null) continue;
+
+      Recipients recipients = getThreadRecipients(context, cached.item.getThreadId());
+
+      if (recipients == null || !recipients.isMuted()) {
+        notificationState.addNotification(cached.item);
+      }
+
+      threads.add(cached.item.getThreadId());
+    }
+
+    threadRecipients.keySet().retainAll(threads);
+
+    Log.w(TAG, "Built notification state for " + unread.size() + " messages, read " +
+               versions.size() + " in " + (System.currentTimeMillis() - startTime) + "ms");
+
+    return notificationState;
+  }
+
+  /**
+   * Forgets thread recipients that have since changed, along with the items built against
+   * them, so that both are read again.
+   */
+  private void dropStaleRecipients() {
+    Set<Long> staleThreads = new HashSet<>();
+
+    for (Map.Entry<Long, Optional<Recipients>> entry : threadRecipients.entrySet()) {
+      if (entry.getValue().isPresent() && entry.getValue().get().isStale()) {
+        staleThreads.add(entry.getKey());
+      }
+    }
+
+    if (staleThreads.isEmpty()) return;
+
+    threadRecipients.keySet().removeAll(staleThreads);
+
+    Iterator<CachedItem> iterator = items.values().iterator();
+
+    while (iterator.hasNext()) {
+      if (staleThreads.contains(iterator.next().item.getThreadId())) {
+        iterator.remove();
+      }
+    }
+  }
+
+  private void load(@NonNull Context context, @Nullable MasterSecret masterSecret,
+                    @NonNull long[] smsIds, @NonNull long[] mmsIds,
+                    @NonNull Map<String, String> versions)
+  {
+    MmsSmsDatabase        database = DatabaseFactory.getMmsSmsDatabase(context);
+    MmsSmsDatabase.Reader reader   = database.readerFor(database.getMessages(smsIds, mmsIds), masterSecret);
+    MessageRecord         record;
+
+    try {
+      while ((record = reader.getNext()) != null) {
+        String key     = getKey(record.isMms() || record.isMmsNotification() ? MmsSmsDatabase.MMS_TRANSPORT
+                                                                             : MmsSmsDatabase.SMS_TRANSPORT,
+                                record.getId());
+        String version = versions.get(key);
+
+        if (version != null) {
+          items.put(key, new CachedItem(createItem(context, record), version));
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  private NotificationItem createItem(@NonNull Context context, @NonNull MessageRecord record) {
+    long         id               = record.getId();
+    boolean      mms              = record.isMms() || record.isMmsNotification();
+    Recipient    recipient        = record.getIndividualRecipient();
+    Recipients   recipients       = record.getRecipients();
+    long         threadId         = record.getThreadId();
+    CharSequence body             = record.getDisplayBody();
+    Recipients   threadRecipients = getThreadRecipients(context, threadId);
+    SlideDeck    slideDeck        = null;
+    long         timestamp        = record.getTimestamp();
+
+    if (SmsDatabase.Types.isDecryptInProgressType(record.getType()) || !record.getBody().isPlaintext()) {
+      body = SpanUtil.italic(context.getString(R.string.MessageNotifier_locked_message));
+    } else if (record.isMms() && TextUtils.isEmpty(body)) {
+      body = SpanUtil.italic(context.getString(R.string.MessageNotifier_media_message));
+      slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
+    } else if (record.isMms() && !record.isMmsNotification()) {
+      String message      = context.getString(R.string.MessageNotifier_media_message_with_text, body);
+      int    italicLength = message.length() - body.length();
+      body = SpanUtil.italic(message, italicLength);
+      slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
+    }
+
+    return new NotificationItem(id, mms, recipient, recipients, threadRecipients, threadId, body, timestamp, slideDeck);
+  }
+
+  private @Nullable Recipients getThreadRecipients(@NonNull Context context, long threadId) {
+    if (threadId == -1) return null;
+
+    Optional<Recipients> recipients = threadRecipients.get(threadId);
+
+    if (recipients == null) {
+      recipients = Optional.fromNullable(DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadId(threadId));
+      threadRecipients.put(threadId, recipients);
+    }
+
+    return recipients.orNull();
+  }
+
+  private static String getKey(String transport, long id) {
+    return transport + ":" + id;
+  }
+
+  private static class CachedItem {
+    private final NotificationItem item;
+    private final String           version;
+
+    private CachedItem(NotificationItem item, String version) {
+      this.item    = item;
+      this.version = version;
+    }
+  }
+}
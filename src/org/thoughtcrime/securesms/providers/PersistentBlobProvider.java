@@ -10,8 +10,8 @@ import android.support.annotation.Nullable;
 import android.util.Log;
 import android.webkit.MimeTypeMap;
 
+import org.thoughtcrime.securesms.crypto.ChunkedEncryptingPartOutputStream;
 import org.thoughtcrime.securesms.crypto.DecryptingPartInputStream;
-import org.thoughtcrime.securesms.crypto.EncryptingPartOutputStream;
 import org.thoughtcrime.securesms.crypto.MasterCipher;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.util.Util;
@@ -114,7 +114,7 @@ public class PersistentBlobProvider {
       @Override
       public void run() {
         try {
-          OutputStream output = new EncryptingPartOutputStream(getFile(id), masterSecret);
+          OutputStream output = new ChunkedEncryptingPartOutputStream(getFile(id), masterSecret);
           Log.w(TAG, "Starting stream copy....");
           Util.copy(input, output);
           Log.w(TAG, "Stream copy finished...");
@@ -47,7 +47,7 @@ public class Recipient {
   private @NonNull  String  number;
   private @Nullable String  name;
   private @Nullable String  customLabel;
-  private boolean stale;
+  private volatile boolean stale;
   private boolean resolving;
 
   private ContactPhoto contactPhoto;
@@ -141,4 +141,23 @@ public class RecipientFactory {
     context.sendBroadcast(new Intent(RECIPIENT_CLEAR_ACTION));
   }
 
+  public static void clearCache(Context context, long recipientId) {
+    provider.clearCache(new long[] {recipientId});
+    context.sendBroadcast(new Intent(RECIPIENT_CLEAR_ACTION));
+  }
+
+  /**
+   * Marks the given recipients stale without notifying anyone, for changes that the caller
+   * has already applied to the {@link Recipients} it holds.
+   */
+  public static void invalidate(long[] recipientIds) {
+    provider.clearCache(recipientIds);
+  }
+
+  public static void clearCacheForChangedContacts(Context context) {
+    if (provider.clearCacheForChangedContacts(context)) {
+      context.sendBroadcast(new Intent(RECIPIENT_CLEAR_ACTION));
+    }
+  }
+
 }
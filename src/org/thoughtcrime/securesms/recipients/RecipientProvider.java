@@ -16,10 +16,15 @@
  */
 package org.thoughtcrime.securesms.recipients;
 
+import android.annotation.TargetApi;
+import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.DeletedContacts;
 import android.provider.ContactsContract.PhoneLookup;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -35,26 +40,35 @@ import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.GroupDatabase;
 import org.thoughtcrime.securesms.database.RecipientPreferenceDatabase.RecipientsPreferences;
 import org.thoughtcrime.securesms.util.GroupUtil;
-import org.thoughtcrime.securesms.util.LRUCache;
+import org.thoughtcrime.securesms.util.ConcurrentLRUCache;
 import org.thoughtcrime.securesms.util.ListenableFutureTask;
 import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.util.InvalidNumberException;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingDeque;
 
 class RecipientProvider {
 
   private static final String TAG = RecipientProvider.class.getSimpleName();
 
-  private static final RecipientCache  recipientCache         = new RecipientCache();
-  private static final RecipientsCache recipientsCache        = new RecipientsCache();
+  private static final int DEFAULT_CACHE_SIZE = 1000;
+  private static final int LOOKUP_BATCH_SIZE  = 50;
+
   private static final ExecutorService asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
 
   private static final String[] CALLER_ID_PROJECTION = new String[] {
@@ -65,12 +79,38 @@ class RecipientProvider {
     PhoneLookup.LABEL
   };
 
+  private static final String[] BATCH_CALLER_ID_PROJECTION = new String[] {
+    Phone.DISPLAY_NAME,
+    Phone.LOOKUP_KEY,
+    Phone.CONTACT_ID,
+    Phone.NUMBER,
+    Phone.LABEL,
+    Phone.NORMALIZED_NUMBER
+  };
+
   private static final Map<String, RecipientDetails> STATIC_DETAILS = new HashMap<String, RecipientDetails>() {{
     put("262966", new RecipientDetails("Amazon", "262966", null, null,
                                        ContactPhotoFactory.getResourceContactPhoto(R.drawable.ic_amazon),
                                        ContactColors.UNKNOWN_COLOR));
   }};
 
+  private final RecipientCache  recipientCache;
+  private final RecipientsCache recipientsCache;
+
+  private final ConcurrentMap<Long, ListenableFutureTask<RecipientDetails>> inFlightLookups = new ConcurrentHashMap<>();
+  private final BlockingDeque<PendingLookup>                                pendingLookups  = new LinkedBlockingDeque<>();
+
+  private long contactsCheckedTime = System.currentTimeMillis();
+
+  RecipientProvider() {
+    this(DEFAULT_CACHE_SIZE);
+  }
+
+  RecipientProvider(int cacheSize) {
+    this.recipientCache  = new RecipientCache(cacheSize);
+    this.recipientsCache = new RecipientsCache(cacheSize);
+  }
+
   @NonNull Recipient getRecipient(Context context, long recipientId, boolean asynchronous) {
     Recipient cachedRecipient = recipientCache.get(recipientId);
     if (cachedRecipient != null && !cachedRecipient.isStale() && (asynchronous || !cachedRecipient.isResolving())) {
@@ -109,49 +149,267 @@ class RecipientProvider {
   }
 
   void clearCache() {
+    Log.w(TAG, "Clearing recipient cache (" + recipientCache + "), recipients cache (" + recipientsCache + ")");
+
+    inFlightLookups.clear();
     recipientCache.reset();
     recipientsCache.reset();
   }
 
+  /**
+   * Marks the given recipients stale, along with every cached {@link Recipients} that contains
+   * one of them.
+   */
+  void clearCache(long[] recipientIds) {
+    Set<Long> ids = new HashSet<>();
+
+    for (long recipientId : recipientIds) {
+      ids.add(recipientId);
+      inFlightLookups.remove(recipientId);
+      recipientCache.invalidate(recipientId);
+    }
+
+    recipientsCache.invalidate(ids);
+  }
+
+  /**
+   * Marks stale the cached recipients whose system contact was added, changed or deleted since
+   * the last call, matched both by number and by the contact they were resolved to. Falls back
+   * to clearing everything when the platform doesn't record when contacts change.
+   *
+   * @return true if anything was marked stale.
+   */
+  synchronized boolean clearCacheForChangedContacts(Context context) {
+    long since = contactsCheckedTime;
+    contactsCheckedTime = System.currentTimeMillis();
+
+    if (Build.VERSION.SDK_INT < 18) {
+      clearCache();
+      return true;
+    }
+
+    Set<String> changedNumbers  = getNumbersChangedSince(context, since);
+    Set<Long>   changedContacts = getContactsChangedSince(context, since);
+    List<Long>  changedIds      = new LinkedList<>();
+
+    if (changedNumbers.isEmpty() && changedContacts.isEmpty()) return false;
+
+    for (Recipient recipient : recipientCache.values()) {
+      if (GroupUtil.isEncodedGroup(recipient.getNumber())) continue;
+
+      Uri contactUri = recipient.getContactUri();
+
+      if ((contactUri != null && changedContacts.contains(ContentUris.parseId(contactUri))) ||
+          changedNumbers.contains(canonicalize(context, recipient.getNumber())))
+      {
+        changedIds.add(recipient.getRecipientId());
+      }
+    }
+
+    Log.w(TAG, changedContacts.size() + " contacts changed, invalidating " + changedIds.size() + " recipients");
+
+    if (changedIds.isEmpty()) return false;
+
+    clearCache(Util.toLongArray(changedIds));
+    return true;
+  }
+
+  @TargetApi(18)
+  private @NonNull Set<String> getNumbersChangedSince(Context context, long since) {
+    Set<String> numbers = new HashSet<>();
+    Cursor      cursor  = context.getContentResolver().query(Phone.CONTENT_URI,
+                                                             new String[] {Phone.NUMBER},
+                                                             Phone.CONTACT_LAST_UPDATED_TIMESTAMP + " >= ?",
+                                                             new String[] {String.valueOf(since)},
+                                                             null);
+
+    try {
+      while (cursor != null && cursor.moveToNext()) {
+        String number = cursor.getString(0);
+        if (number != null) numbers.add(canonicalize(context, number));
+      }
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+
+    return numbers;
+  }
+
+  @TargetApi(18)
+  private @NonNull Set<Long> getContactsChangedSince(Context context, long since) {
+    Set<Long> contactIds = new HashSet<>();
+
+    addContactIds(context, contactIds, Contacts.CONTENT_URI, Contacts._ID,
+                  Contacts.CONTACT_LAST_UPDATED_TIMESTAMP, since);
+    addContactIds(context, contactIds, DeletedContacts.CONTENT_URI, DeletedContacts.CONTACT_ID,
+                  DeletedContacts.CONTACT_DELETED_TIMESTAMP, since);
+
+    return contactIds;
+  }
+
+  private void addContactIds(Context context, Set<Long> contactIds, Uri uri,
+                             String idColumn, String timestampColumn, long since)
+  {
+    Cursor cursor = context.getContentResolver().query(uri, new String[] {idColumn},
+                                                       timestampColumn + " >= ?",
+                                                       new String[] {String.valueOf(since)},
+                                                       null);
+
+    try {
+      while (cursor != null && cursor.moveToNext()) {
+        contactIds.add(cursor.getLong(0));
+      }
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+  }
+
+  private @NonNull String canonicalize(Context context, @NonNull String number) {
+    try {
+      return Util.canonicalizeNumber(context, number);
+    } catch (InvalidNumberException e) {
+      return number;
+    }
+  }
+
+  /**
+   * Returns the lookup already in flight for this recipient, if there is one. Otherwise queues
+   * a new lookup, which the resolver thread runs together with whatever else has been queued
+   * by then, newest first.
+   */
   private @NonNull ListenableFutureTask<RecipientDetails> getRecipientDetailsAsync(final Context context,
                                                                                    final long recipientId,
                                                                                    final @NonNull String number)
   {
+    ListenableFutureTask<RecipientDetails> inFlightLookup = inFlightLookups.get(recipientId);
+    if (inFlightLookup != null) return inFlightLookup;
+
+    final PendingLookup pendingLookup = new PendingLookup(recipientId, number);
+
     Callable<RecipientDetails> task = new Callable<RecipientDetails>() {
       @Override
       public RecipientDetails call() throws Exception {
-        return getRecipientDetailsSync(context, recipientId, number);
+        if (pendingLookup.details != null) return pendingLookup.details;
+        else                               return getRecipientDetailsSync(context, recipientId, number);
       }
     };
 
     ListenableFutureTask<RecipientDetails> future = new ListenableFutureTask<>(task);
-    asyncRecipientResolver.submit(future);
+    pendingLookup.future = future;
+
+    inFlightLookup = inFlightLookups.putIfAbsent(recipientId, future);
+    if (inFlightLookup != null) return inFlightLookup;
+
+    pendingLookups.addFirst(pendingLookup);
+    asyncRecipientResolver.execute(new Runnable() {
+      @Override
+      public void run() {
+        resolvePendingLookups(context);
+      }
+    });
+
     return future;
   }
 
+  /**
+   * Resolves a batch of queued lookups with one contacts query. Anything the batch query
+   * doesn't answer, including the whole batch if the query fails, is resolved on its own
+   * when its future runs, so every queued future is always completed.
+   */
+  private void resolvePendingLookups(Context context) {
+    List<PendingLookup> batch = new LinkedList<>();
+    pendingLookups.drainTo(batch, LOOKUP_BATCH_SIZE);
+
+    if (batch.isEmpty()) return;
+
+    int found = 0;
+
+    try {
+      Set<String> numbers = new HashSet<>();
+
+      for (PendingLookup pendingLookup : batch) {
+        if (!GroupUtil.isEncodedGroup(pendingLookup.number)) {
+          numbers.add(pendingLookup.number);
+        }
+      }
+
+      Map<String, ContactDetails> contacts = getContactDetails(context, numbers);
+
+      for (PendingLookup pendingLookup : batch) {
+        ContactDetails contact = contacts.get(pendingLookup.number);
+
+        if (contact != null) {
+          pendingLookup.details = contact.toRecipientDetails(getColor(context, pendingLookup.recipientId));
+          found++;
+        }
+      }
+    } catch (RuntimeException e) {
+      Log.w(TAG, e);
+    } finally {
+      for (PendingLookup pendingLookup : batch) {
+        try {
+          pendingLookup.future.run();
+        } finally {
+          inFlightLookups.remove(pendingLookup.recipientId, pendingLookup.future);
+        }
+      }
+    }
+
+    Log.w(TAG, "Resolved " + batch.size() + " recipients, " + found + " from one contacts query");
+  }
+
+  /**
+   * Finds the system contacts for many E164 numbers with one query. Numbers that aren't found
+   * here still get the looser matching of a {@link PhoneLookup} when they're resolved alone.
+   */
+  private @NonNull Map<String, ContactDetails> getContactDetails(Context context, Set<String> numbers) {
+    Map<String, ContactDetails> results = new HashMap<>();
+    List<String>                e164    = new LinkedList<>();
+
+    if (Build.VERSION.SDK_INT < 16) return results;
+
+    for (String number : numbers) {
+      if (number.startsWith("+")) e164.add(number);
+    }
+
+    if (e164.isEmpty()) return results;
+
+    String[] arguments = e164.toArray(new String[e164.size()]);
+    String   selection = Phone.NORMALIZED_NUMBER + " IN (" + Util.join(Collections.nCopies(arguments.length, "?"), ", ") + ")";
+    Cursor   cursor    = context.getContentResolver().query(Phone.CONTENT_URI, BATCH_CALLER_ID_PROJECTION,
+                                                            selection, arguments, null);
+
+    try {
+      while (cursor != null && cursor.moveToNext()) {
+        String normalizedNumber = cursor.getString(5);
+
+        if (!results.containsKey(normalizedNumber) && cursor.getString(3) != null) {
+          results.put(normalizedNumber, new ContactDetails(context, cursor));
+        }
+      }
+    } finally {
+      if (cursor != null) cursor.close();
+    }
+
+    return results;
+  }
+
   private @NonNull RecipientDetails getRecipientDetailsSync(Context context, long recipientId, @NonNull String number) {
     if (GroupUtil.isEncodedGroup(number)) return getGroupRecipientDetails(context, number);
     else                                  return getIndividualRecipientDetails(context, recipientId, number);
   }
 
   private @NonNull RecipientDetails getIndividualRecipientDetails(Context context, long recipientId, @NonNull String number) {
-    Optional<RecipientsPreferences> preferences = DatabaseFactory.getRecipientPreferenceDatabase(context).getRecipientsPreferences(new long[]{recipientId});
-    MaterialColor                   color       = preferences.isPresent() ? preferences.get().getColor() : null;
-    Uri                             uri         = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
-    Cursor                          cursor      = context.getContentResolver().query(uri, CALLER_ID_PROJECTION,
-                                                                                     null, null, null);
+    MaterialColor color  = getColor(context, recipientId);
+    Uri           uri    = Uri.withAppendedPath(PhoneLookup.CONTENT_FILTER_URI, Uri.encode(number));
+    Cursor        cursor = context.getContentResolver().query(uri, CALLER_ID_PROJECTION,
+                                                              null, null, null);
 
     try {
       if (cursor != null && cursor.moveToFirst()) {
         final String resultNumber = cursor.getString(3);
         if (resultNumber != null) {
-          Uri          contactUri   = Contacts.getLookupUri(cursor.getLong(2), cursor.getString(1));
-          String       name         = resultNumber.equals(cursor.getString(0)) ? null : cursor.getString(0);
-          ContactPhoto contactPhoto = ContactPhotoFactory.getContactPhoto(context,
-                                                                          Uri.withAppendedPath(Contacts.CONTENT_URI, cursor.getLong(2) + ""),
-                                                                          name);
-
-          return new RecipientDetails(cursor.getString(0), resultNumber, cursor.getString(4), contactUri, contactPhoto, color);
+          return new ContactDetails(context, cursor).toRecipientDetails(color);
         } else {
           Log.w(TAG, "resultNumber is null");
         }
@@ -165,6 +423,11 @@ class RecipientProvider {
     else                                    return new RecipientDetails(null, number, null, null, ContactPhotoFactory.getDefaultContactPhoto(null), color);
   }
 
+  private @Nullable MaterialColor getColor(Context context, long recipientId) {
+    Optional<RecipientsPreferences> preferences = DatabaseFactory.getRecipientPreferenceDatabase(context).getRecipientsPreferences(new long[]{recipientId});
+    return preferences.isPresent() ? preferences.get().getColor() : null;
+  }
+
   private @NonNull RecipientDetails getGroupRecipientDetails(Context context, String groupId) {
     try {
       GroupDatabase.GroupRecord record = DatabaseFactory.getGroupDatabase(context)
@@ -228,6 +491,45 @@ class RecipientProvider {
     }
   }
 
+  /**
+   * A system contact's row from either {@link #CALLER_ID_PROJECTION} or
+   * {@link #BATCH_CALLER_ID_PROJECTION}, which share their first five columns.
+   */
+  private static class ContactDetails {
+    private final String       name;
+    private final String       number;
+    private final String       label;
+    private final Uri          contactUri;
+    private final ContactPhoto contactPhoto;
+
+    private ContactDetails(Context context, Cursor cursor) {
+      this.number       = cursor.getString(3);
+      this.name         = cursor.getString(0);
+      this.label        = cursor.getString(4);
+      this.contactUri   = Contacts.getLookupUri(cursor.getLong(2), cursor.getString(1));
+      this.contactPhoto = ContactPhotoFactory.getContactPhoto(context,
+                                                              Uri.withAppendedPath(Contacts.CONTENT_URI, cursor.getLong(2) + ""),
+                                                              number.equals(name) ? null : name);
+    }
+
+    private RecipientDetails toRecipientDetails(@Nullable MaterialColor color) {
+      return new RecipientDetails(name, number, label, contactUri, contactPhoto, color);
+    }
+  }
+
+  private static class PendingLookup {
+    private final long   recipientId;
+    private final String number;
+
+    private          ListenableFutureTask<RecipientDetails> future;
+    private volatile RecipientDetails                       details;
+
+    private PendingLookup(long recipientId, String number) {
+      this.recipientId = recipientId;
+      this.number      = number;
+    }
+  }
+
   private static class RecipientIds {
     private final long[] ids;
 
@@ -247,44 +549,78 @@ class RecipientProvider {
 
   private static class RecipientCache {
 
-    private final Map<Long,Recipient> cache = new LRUCache<>(1000);
+    private final ConcurrentLRUCache<Long,Recipient> cache;
+
+    private RecipientCache(int size) {
+      this.cache = new ConcurrentLRUCache<>(size);
+    }
 
-    public synchronized Recipient get(long recipientId) {
+    public Recipient get(long recipientId) {
       return cache.get(recipientId);
     }
 
-    public synchronized void set(long recipientId, Recipient recipient) {
+    public void set(long recipientId, Recipient recipient) {
       cache.put(recipientId, recipient);
     }
 
-    public synchronized void reset() {
+    public List<Recipient> values() {
+      return cache.values();
+    }
+
+    public void invalidate(long recipientId) {
+      Recipient recipient = cache.get(recipientId);
+      if (recipient != null) recipient.setStale();
+    }
+
+    public void reset() {
       for (Recipient recipient : cache.values()) {
         recipient.setStale();
       }
     }
 
+    @Override
+    public String toString() {
+      return cache.toString();
+    }
   }
 
   private static class RecipientsCache {
 
-    private final Map<RecipientIds,Recipients> cache = new LRUCache<>(1000);
+    private final ConcurrentLRUCache<RecipientIds,Recipients> cache;
+
+    private RecipientsCache(int size) {
+      this.cache = new ConcurrentLRUCache<>(size);
+    }
 
-    public synchronized Recipients get(RecipientIds ids) {
+    public Recipients get(RecipientIds ids) {
       return cache.get(ids);
     }
 
-    public synchronized void set(RecipientIds ids, Recipients recipients) {
+    public void set(RecipientIds ids, Recipients recipients) {
       cache.put(ids, recipients);
     }
 
-    public synchronized void reset() {
+    public void invalidate(Set<Long> recipientIds) {
+      for (Recipients recipients : cache.values()) {
+        for (long id : recipients.getIds()) {
+          if (recipientIds.contains(id)) {
+            recipients.setStale();
+            break;
+          }
+        }
+      }
+    }
+
+    public void reset() {
       for (Recipients recipients : cache.values()) {
         recipients.setStale();
       }
     }
 
+    @Override
+    public String toString() {
+      return cache.toString();
+    }
   }
 
-
-
-}
\ No newline at end of file
+}
@@ -57,7 +57,8 @@ public class Recipients implements Iterable<Recipient>, RecipientModifiedListene
   private boolean      blocked        = false;
   private VibrateState vibrate        = VibrateState.DEFAULT;
   private int          expireMessages = 0;
-  private boolean      stale          = false;
+
+  private volatile boolean stale = false;
 
   Recipients() {
     this(new LinkedList<Recipient>(), null);
@@ -337,7 +338,7 @@ public class Recipients implements Iterable<Recipient>, RecipientModifiedListene
     }
   }
 
-  boolean isStale() {
+  public boolean isStale() {
     return stale;
   }
 
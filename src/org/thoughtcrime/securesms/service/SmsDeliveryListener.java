@@ -7,8 +7,8 @@ import android.telephony.SmsMessage;
 import android.util.Log;
 
 import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.jobs.PriorityJobManager;
 import org.thoughtcrime.securesms.jobs.SmsSentJob;
-import org.whispersystems.jobqueue.JobManager;
 
 public class SmsDeliveryListener extends BroadcastReceiver {
 
@@ -19,8 +19,8 @@ public class SmsDeliveryListener extends BroadcastReceiver {
 
   @Override
   public void onReceive(Context context, Intent intent) {
-    JobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
-    long       messageId  = intent.getLongExtra("message_id", -1);
+    PriorityJobManager jobManager = ApplicationContext.getInstance(context).getJobManager();
+    long               messageId  = intent.getLongExtra("message_id", -1);
 
     switch (intent.getAction()) {
       case SENT_SMS_ACTION:
@@ -0,0 +1,171 @@
+package org.thoughtcrime.securesms.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache that can be read from any number of threads without locking.
+ *
+ * Each read stamps its entry with a logical clock that only writes advance, so reads don't
+ * contend on it, and entries read between the same two writes count as equally recent. When
+ * a write takes the cache past its capacity, the least recently read entries are evicted in
+ * one pass until it is back to nine tenths of its capacity, so the cost of eviction is spread
+ * over many writes. Only eviction itself is serialized.
+ */
+public class ConcurrentLRUCache<K, V> {
+
+  private final ConcurrentHashMap<K, Entry<V>> cache;
+  private final int                            maxSize;
+  private final Object                         evictionLock = new Object();
+
+  private final AtomicLong clock     = new AtomicLong();
+  private final AtomicLong hits      = new AtomicLong();
+  private final AtomicLong misses    = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public ConcurrentLRUCache(int maxSize) {
+    if (maxSize < 1) throw new IllegalArgumentException("Bad size: " + maxSize);
+
+    this.maxSize = maxSize;
+    this.cache   = new ConcurrentHashMap<>(maxSize + maxSize / 4);
+  }
+
+  public @Nullable V get(@NonNull K key) {
+    Entry<V> entry = cache.get(key);
+
+    if (entry == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+
+    long now = clock.get();
+
+    if (entry.accessed != now) {
+      entry.accessed = now;
+    }
+
+    hits.incrementAndGet();
+
+    return entry.value;
+  }
+
+  public void put(@NonNull K key, @NonNull V value) {
+    cache.put(key, new Entry<>(value, clock.incrementAndGet()));
+
+    if (cache.size() > maxSize) {
+      evict();
+    }
+  }
+
+  public void remove(@NonNull K key) {
+    cache.remove(key);
+  }
+
+  /**
+   * A weakly consistent copy of the cached values, which doesn't count as a read.
+   */
+  public @NonNull List<V> values() {
+    List<V> values = new LinkedList<>();
+
+    for (Entry<V> entry : cache.values()) {
+      values.add(entry.value);
+    }
+
+    return values;
+  }
+
+  public int size() {
+    return cache.size();
+  }
+
+  public int getMaxSize() {
+    return maxSize;
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  @Override
+  public String toString() {
+    long hitCount  = hits.get();
+    long missCount = misses.get();
+    long total     = hitCount + missCount;
+
+    return "size: " + cache.size() + "/" + maxSize +
+           ", hits: " + hitCount + ", misses: " + missCount +
+           ", hit rate: " + (total == 0 ? 0 : hitCount * 100 / total) + "%" +
+           ", evictions: " + evictions.get();
+  }
+
+  private void evict() {
+    synchronized (evictionLock) {
+      if (cache.size() <= maxSize) return;
+
+      List<Candidate<K, V>> candidates = new ArrayList<>(cache.size());
+
+      for (Map.Entry<K, Entry<V>> entry : cache.entrySet()) {
+        candidates.add(new Candidate<>(entry.getKey(), entry.getValue()));
+      }
+
+      Collections.sort(candidates, new Comparator<Candidate<K, V>>() {
+        @Override
+        public int compare(Candidate<K, V> lhs, Candidate<K, V> rhs) {
+          return lhs.accessed < rhs.accessed ? -1 : (lhs.accessed == rhs.accessed ? 0 : 1);
+        }
+      });
+
+      int excess = candidates.size() - (maxSize - maxSize / 10);
+
+      for (int i=0;i<excess;i++) {
+        Candidate<K, V> eldest = candidates.get(i);
+
+        if (cache.remove(eldest.key, eldest.entry)) {
+          evictions.incrementAndGet();
+        }
+      }
+    }
+  }
+
+  private static class Entry<V> {
+    private final    V    value;
+    private volatile long accessed;
+
+    private Entry(V value, long accessed) {
+      this.value    = value;
+      this.accessed = accessed;
+    }
+  }
+
+  /**
+   * An entry with its read stamp fixed, since reads keep moving the live one while sorting.
+   */
+  private static class Candidate<K, V> {
+    private final K        key;
+    private final Entry<V> entry;
+    private final long     accessed;
+
+    private Candidate(K key, Entry<V> entry) {
+      this.key      = key;
+      this.entry    = entry;
+      this.accessed = entry.accessed;
+    }
+  }
+}
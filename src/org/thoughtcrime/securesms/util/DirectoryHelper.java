@@ -2,9 +2,11 @@ package org.thoughtcrime.securesms.util;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
+import android.annotation.TargetApi;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.OperationApplicationException;
+import android.os.Build;
 import android.os.RemoteException;
 import android.provider.ContactsContract;
 import android.support.annotation.NonNull;
@@ -19,6 +21,7 @@ import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.NotInDirectoryException;
 import org.thoughtcrime.securesms.database.MessagingDatabase.InsertResult;
 import org.thoughtcrime.securesms.database.TextSecureDirectory;
+import org.thoughtcrime.securesms.database.TextSecureDirectory.Capabilities;
 import org.thoughtcrime.securesms.jobs.MultiDeviceContactUpdateJob;
 import org.thoughtcrime.securesms.notifications.MessageNotifier;
 import org.thoughtcrime.securesms.push.AccountManagerFactory;
@@ -75,9 +78,27 @@ public class DirectoryHelper {
   public static void refreshDirectory(@NonNull Context context, @Nullable MasterSecret masterSecret)
       throws IOException
   {
-    RefreshResult result = refreshDirectory(context,
-                                            AccountManagerFactory.createManager(context),
-                                            TextSecurePreferences.getLocalNumber(context));
+    refreshDirectory(context, masterSecret, false);
+  }
+
+  /**
+   * @param incremental only look up the numbers of system contacts that changed since the last
+   *                    refresh. Falls back to a full refresh when there is no earlier refresh to
+   *                    start from, or when the platform doesn't record when contacts change.
+   */
+  public static void refreshDirectory(@NonNull Context context, @Nullable MasterSecret masterSecret, boolean incremental)
+      throws IOException
+  {
+    SignalServiceAccountManager accountManager = AccountManagerFactory.createManager(context);
+    String                      localNumber    = TextSecurePreferences.getLocalNumber(context);
+    long                        lastSyncTime   = TextSecurePreferences.getDirectoryContactsSyncTime(context);
+    RefreshResult               result;
+
+    if (incremental && lastSyncTime > 0 && Build.VERSION.SDK_INT >= 18) {
+      result = refreshDirectoryIncremental(context, accountManager, localNumber, lastSyncTime);
+    } else {
+      result = refreshDirectory(context, accountManager, localNumber);
+    }
 
     if (!result.getNewUsers().isEmpty() && TextSecurePreferences.isMultiDevice(context)) {
       ApplicationContext.getInstance(context)
@@ -95,21 +116,70 @@ public class DirectoryHelper {
                                                         @NonNull String localNumber)
       throws IOException
   {
-    TextSecureDirectory       directory              = TextSecureDirectory.getInstance(context);
-    Set<String>               eligibleContactNumbers = directory.getPushEligibleContactNumbers(localNumber);
-    List<ContactTokenDetails> activeTokens           = accountManager.getContacts(eligibleContactNumbers);
-
-    if (activeTokens != null) {
-      for (ContactTokenDetails activeToken : activeTokens) {
-        eligibleContactNumbers.remove(activeToken.getNumber());
-        activeToken.setNumber(activeToken.getNumber());
-      }
+    long                startTime              = System.currentTimeMillis();
+    TextSecureDirectory directory              = TextSecureDirectory.getInstance(context);
+    Set<String>         eligibleContactNumbers = directory.getPushEligibleContactNumbers(localNumber);
+
+    return refreshNumbers(context, accountManager, localNumber, eligibleContactNumbers, true, startTime);
+  }
 
-      directory.setNumbers(activeTokens, eligibleContactNumbers);
-      return updateContactsDatabase(context, localNumber, activeTokens, true);
+  @TargetApi(18)
+  private static @NonNull RefreshResult refreshDirectoryIncremental(@NonNull Context context,
+                                                                    @NonNull SignalServiceAccountManager accountManager,
+                                                                    @NonNull String localNumber,
+                                                                    long lastSyncTime)
+      throws IOException
+  {
+    long                startTime             = System.currentTimeMillis();
+    TextSecureDirectory directory             = TextSecureDirectory.getInstance(context);
+    Set<String>         changedContactNumbers = directory.getContactNumbersChangedSince(lastSyncTime, localNumber);
+
+    if (changedContactNumbers.isEmpty()) {
+      Log.w(TAG, "No contacts changed since " + lastSyncTime);
+      TextSecurePreferences.setDirectoryContactsSyncTime(context, startTime);
+      return new RefreshResult(new LinkedList<String>(), false);
     }
 
-    return new RefreshResult(new LinkedList<String>(), false);
+    return refreshNumbers(context, accountManager, localNumber, changedContactNumbers, false, startTime);
+  }
+
+  private static @NonNull RefreshResult refreshNumbers(@NonNull Context context,
+                                                       @NonNull SignalServiceAccountManager accountManager,
+                                                       @NonNull String localNumber,
+                                                       @NonNull Set<String> numbers,
+                                                       boolean full,
+                                                       long startTime)
+      throws IOException
+  {
+    long                      gatheredTime = System.currentTimeMillis();
+    List<ContactTokenDetails> activeTokens = accountManager.getContacts(numbers);
+    long                      lookupTime   = System.currentTimeMillis();
+
+    if (activeTokens == null) {
+      return new RefreshResult(new LinkedList<String>(), false);
+    }
+
+    int lookupCount = numbers.size();
+
+    for (ContactTokenDetails activeToken : activeTokens) {
+      numbers.remove(activeToken.getNumber());
+    }
+
+    TextSecureDirectory.getInstance(context).setNumbers(activeTokens, numbers);
+    long directoryTime = System.currentTimeMillis();
+
+    RefreshResult result = updateContactsDatabase(context, localNumber, activeTokens, full);
+    long contactsTime = System.currentTimeMillis();
+
+    TextSecurePreferences.setDirectoryContactsSyncTime(context, startTime);
+
+    Log.w(TAG, (full ? "Full" : "Incremental") + " refresh of " + lookupCount + " numbers (" + activeTokens.size() + " active): " +
+               "gather " + (gatheredTime - startTime) + "ms, " +
+               "lookup " + (lookupTime - gatheredTime) + "ms, " +
+               "directory " + (directoryTime - lookupTime) + "ms, " +
+               "contacts " + (contactsTime - directoryTime) + "ms");
+
+    return result;
   }
 
   public static UserCapabilities refreshDirectoryFor(@NonNull  Context context,
@@ -178,14 +248,12 @@ public class DirectoryHelper {
         return UserCapabilities.UNSUPPORTED;
       }
 
-      String  e164number  = Util.canonicalizeNumber(context, number);
-      boolean secureText  = TextSecureDirectory.getInstance(context).isSecureTextSupported(e164number);
-      boolean secureVoice = TextSecureDirectory.getInstance(context).isSecureVoiceSupported(e164number);
-      boolean secureVideo = TextSecureDirectory.getInstance(context).isSecureVideoSupported(e164number);
+      String       e164number   = Util.canonicalizeNumber(context, number);
+      Capabilities capabilities = TextSecureDirectory.getInstance(context).getCapabilities(e164number);
 
-      return new UserCapabilities(secureText  ? Capability.SUPPORTED : Capability.UNSUPPORTED,
-                                  secureVoice ? Capability.SUPPORTED : Capability.UNSUPPORTED,
-                                  secureVideo ? Capability.SUPPORTED : Capability.UNSUPPORTED);
+      return new UserCapabilities(capabilities.isRegistered() ? Capability.SUPPORTED : Capability.UNSUPPORTED,
+                                  capabilities.isVoice()      ? Capability.SUPPORTED : Capability.UNSUPPORTED,
+                                  capabilities.isVideo()      ? Capability.SUPPORTED : Capability.UNSUPPORTED);
 
     } catch (InvalidNumberException e) {
       Log.w(TAG, e);
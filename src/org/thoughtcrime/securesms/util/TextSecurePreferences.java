@@ -74,6 +74,7 @@ public class TextSecurePreferences {
   private static final String PROMPTED_SHARE_PREF              = "pref_prompted_share";
   private static final String SIGNALING_KEY_PREF               = "pref_signaling_key";
   private static final String DIRECTORY_FRESH_TIME_PREF        = "pref_directory_refresh_time";
+  private static final String DIRECTORY_CONTACTS_SYNC_TIME_PREF = "pref_directory_contacts_sync_time";
   private static final String UPDATE_APK_REFRESH_TIME_PREF     = "pref_update_apk_refresh_time";
   private static final String UPDATE_APK_DOWNLOAD_ID           = "pref_update_apk_download_id";
   private static final String UPDATE_APK_DIGEST                = "pref_update_apk_digest";
@@ -288,6 +289,14 @@ public class TextSecurePreferences {
     setLongPreference(context, DIRECTORY_FRESH_TIME_PREF, value);
   }
 
+  public static long getDirectoryContactsSyncTime(Context context) {
+    return getLongPreference(context, DIRECTORY_CONTACTS_SYNC_TIME_PREF, 0L);
+  }
+
+  public static void setDirectoryContactsSyncTime(Context context, long value) {
+    setLongPreference(context, DIRECTORY_CONTACTS_SYNC_TIME_PREF, value);
+  }
+
   public static long getUpdateApkRefreshTime(Context context) {
     return getLongPreference(context, UPDATE_APK_REFRESH_TIME_PREF, 0L);
   }
@@ -281,6 +281,17 @@ public class Util {
     return results;
   }
 
+  public static long[] toLongArray(Collection<Long> list) {
+    long[] results = new long[list.size()];
+    int    index   = 0;
+
+    for (long value : list) {
+      results[index++] = value;
+    }
+
+    return results;
+  }
+
   public static List<String> split(String source, String delimiter) {
     List<String> results = new LinkedList<>();
 
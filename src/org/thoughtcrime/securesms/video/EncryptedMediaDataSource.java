@@ -5,6 +5,7 @@ import android.annotation.TargetApi;
 import android.media.MediaDataSource;
 import android.os.Build;
 
+import org.thoughtcrime.securesms.crypto.DecryptingPartChannel;
 import org.thoughtcrime.securesms.crypto.DecryptingPartInputStream;
 import org.thoughtcrime.securesms.crypto.MasterSecret;
 import org.thoughtcrime.securesms.util.Util;
@@ -19,6 +20,10 @@ public class EncryptedMediaDataSource extends MediaDataSource {
   private final File         mediaFile;
   private final MasterSecret masterSecret;
 
+  private Boolean               chunked;
+  private DecryptingPartChannel channel;
+  private long                  legacySize = -1;
+
   public EncryptedMediaDataSource(MasterSecret masterSecret, File mediaFile) {
     this.mediaFile    = mediaFile;
     this.masterSecret = masterSecret;
@@ -26,6 +31,12 @@ public class EncryptedMediaDataSource extends MediaDataSource {
 
   @Override
   public int readAt(long position, byte[] bytes, int offset, int length) throws IOException {
+    DecryptingPartChannel channel = getChannel();
+
+    if (channel != null) {
+      return channel.read(position, bytes, offset, length);
+    }
+
     InputStream inputStream     = DecryptingPartInputStream.createFor(masterSecret, mediaFile);
     byte[]      buffer          = new byte[4096];
     long        headerRemaining = position;
@@ -45,21 +56,47 @@ public class EncryptedMediaDataSource extends MediaDataSource {
 
   @Override
   public long getSize() throws IOException {
-    InputStream inputStream = DecryptingPartInputStream.createFor(masterSecret, mediaFile);
-    byte[]      buffer      = new byte[4096];
-    long        size        = 0;
+    DecryptingPartChannel channel = getChannel();
+
+    if (channel != null) {
+      return channel.size();
+    }
+
+    if (legacySize == -1) {
+      InputStream inputStream = DecryptingPartInputStream.createFor(masterSecret, mediaFile);
+      byte[]      buffer      = new byte[4096];
+      long        size        = 0;
 
-    int read;
+      int read;
 
-    while ((read = inputStream.read(buffer)) != -1) {
-      size += read;
+      while ((read = inputStream.read(buffer)) != -1) {
+        size += read;
+      }
+
+      inputStream.close();
+      legacySize = size;
     }
 
-    return size;
+    return legacySize;
   }
 
   @Override
-  public void close() throws IOException {
+  public synchronized void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+      channel = null;
+    }
+  }
+
+  private synchronized DecryptingPartChannel getChannel() throws IOException {
+    if (chunked == null) {
+      chunked = DecryptingPartChannel.isChunked(mediaFile);
+    }
+
+    if (channel == null && chunked) {
+      channel = new DecryptingPartChannel(masterSecret, mediaFile);
+    }
 
+    return channel;
   }
 }
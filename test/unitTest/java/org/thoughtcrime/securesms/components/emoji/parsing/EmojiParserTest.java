@@ -0,0 +1,82 @@
+package org.thoughtcrime.securesms.components.emoji.parsing;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.powermock.api.mockito.PowerMockito.mock;
+
+public class EmojiParserTest extends BaseUnitTest {
+
+  private static final String HEART          = "\u2764";
+  private static final String HEART_VARIANT  = "\u2764\uFE0F";
+  private static final String THUMBS_UP      = "\uD83D\uDC4D";
+  private static final String SKIN_TONE_TYPE = "\uD83C\uDFFD";
+
+  private EmojiDrawInfo heart;
+  private EmojiDrawInfo heartVariant;
+  private EmojiDrawInfo thumbsUp;
+  private EmojiParser   parser;
+
+  @Before
+  public void setUp() throws Exception {
+    super.setUp();
+
+    EmojiPageBitmap page = mock(EmojiPageBitmap.class);
+    EmojiTree       tree = new EmojiTree();
+
+    heart        = new EmojiDrawInfo(page, 0);
+    heartVariant = new EmojiDrawInfo(page, 1);
+    thumbsUp     = new EmojiDrawInfo(page, 2);
+
+    tree.add(HEART, heart);
+    tree.add(HEART_VARIANT, heartVariant);
+    tree.add(THUMBS_UP, thumbsUp);
+
+    parser = new EmojiParser(tree);
+  }
+
+  @Test public void testPlainText() {
+    EmojiParser.CandidateList candidates = parser.findCandidates("hello there");
+
+    assertEquals(0, candidates.size());
+    assertFalse(candidates.allEmojis);
+  }
+
+  @Test public void testLongestMatchWins() {
+    EmojiParser.CandidateList candidates = parser.findCandidates("a" + HEART_VARIANT + HEART + "b");
+
+    assertEquals(2, candidates.size());
+    assertSame(heartVariant, candidates.list.get(0).getDrawInfo());
+    assertEquals(1, candidates.list.get(0).getStartIndex());
+    assertEquals(3, candidates.list.get(0).getEndIndex());
+    assertSame(heart, candidates.list.get(1).getDrawInfo());
+    assertEquals(4, candidates.list.get(1).getEndIndex());
+  }
+
+  @Test public void testSkinToneExtendsMatch() {
+    EmojiParser.CandidateList candidates = parser.findCandidates(THUMBS_UP + SKIN_TONE_TYPE + THUMBS_UP);
+
+    assertEquals(2, candidates.size());
+    assertEquals(4, candidates.list.get(0).getEndIndex());
+    assertEquals(4, candidates.list.get(1).getStartIndex());
+    assertTrue(candidates.allEmojis);
+  }
+
+  @Test public void testPartialMatchAtEnd() {
+    EmojiParser.CandidateList candidates = parser.findCandidates("\uD83D");
+
+    assertEquals(0, candidates.size());
+    assertFalse(candidates.allEmojis);
+  }
+
+  @Test public void testNullText() {
+    assertEquals(0, parser.findCandidates(null).size());
+    assertNull(Fitzpatrick.fitzpatrickFromUnicode("\uD83C", 0));
+  }
+}
@@ -0,0 +1,106 @@
+package org.thoughtcrime.securesms.crypto;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DecryptingPartChannelTest extends BaseUnitTest {
+
+  private static final int CHUNK_SIZE = 64;
+
+  @Test public void testRandomAccess() throws IOException {
+    byte[] data = randomBytes(1000);
+    File   file = encrypt(data);
+
+    assertTrue(DecryptingPartChannel.isChunked(file));
+
+    DecryptingPartChannel channel = new DecryptingPartChannel(masterSecret, file);
+    assertEquals(data.length, channel.size());
+
+    byte[] buffer = new byte[100];
+    assertEquals(100, channel.read(630, buffer, 0, buffer.length));
+    assertArrayEquals(Arrays.copyOfRange(data, 630, 730), buffer);
+
+    assertEquals(10, channel.read(990, buffer, 0, buffer.length));
+    assertEquals(-1, channel.read(1000, buffer, 0, buffer.length));
+
+    channel.close();
+    file.delete();
+  }
+
+  @Test public void testStreamSkip() throws IOException {
+    byte[]      data   = randomBytes(CHUNK_SIZE * 3);
+    File        file   = encrypt(data);
+    InputStream stream = new DecryptingPartChannel(masterSecret, file).createInputStream();
+
+    assertEquals(CHUNK_SIZE + 1, stream.skip(CHUNK_SIZE + 1));
+    assertEquals(data[CHUNK_SIZE + 1] & 0xff, stream.read());
+
+    stream.close();
+    file.delete();
+  }
+
+  @Test public void testEmpty() throws IOException {
+    File file = encrypt(new byte[0]);
+
+    DecryptingPartChannel channel = new DecryptingPartChannel(masterSecret, file);
+    assertEquals(0, channel.size());
+    assertEquals(-1, channel.read(0, new byte[1], 0, 1));
+
+    channel.close();
+    file.delete();
+  }
+
+  @Test(expected = IOException.class)
+  public void testBadMac() throws IOException {
+    byte[] data = randomBytes(CHUNK_SIZE * 2);
+    File   file = encrypt(data);
+
+    RandomAccessFile raw = new RandomAccessFile(file, "rw");
+    raw.seek(ChunkedEncryptingPartOutputStream.HEADER_LENGTH + 1);
+    raw.write(0x42);
+    raw.close();
+
+    new DecryptingPartChannel(masterSecret, file).read(0, new byte[data.length], 0, data.length);
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncatedChunk() throws IOException {
+    byte[] data = randomBytes(CHUNK_SIZE * 3);
+    File   file = encrypt(data);
+
+    RandomAccessFile raw = new RandomAccessFile(file, "rw");
+    raw.setLength(file.length() - CHUNK_SIZE - ChunkedEncryptingPartOutputStream.MAC_LENGTH);
+    raw.close();
+
+    DecryptingPartChannel channel = new DecryptingPartChannel(masterSecret, file);
+    channel.read(channel.size() - 1, new byte[1], 0, 1);
+  }
+
+  private File encrypt(byte[] data) throws IOException {
+    File         file = File.createTempFile("part", ".mms");
+    OutputStream out  = new ChunkedEncryptingPartOutputStream(file, masterSecret, CHUNK_SIZE);
+
+    out.write(data);
+    out.close();
+
+    return file;
+  }
+
+  private byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(length).nextBytes(bytes);
+    return bytes;
+  }
+}
@@ -4,8 +4,13 @@ import org.junit.Before;
 import org.junit.Test;
 import org.powermock.core.classloader.annotations.PowerMockIgnore;
 import org.thoughtcrime.securesms.BaseUnitTest;
+import org.thoughtcrime.securesms.util.Base64;
 import org.whispersystems.libsignal.InvalidMessageException;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
 @PowerMockIgnore("javax.crypto.*")
 public class MasterCipherTest extends BaseUnitTest {
   private MasterCipher masterCipher;
@@ -21,4 +26,39 @@ public class MasterCipherTest extends BaseUnitTest {
   public void testEncryptBytesWithZeroBody() throws Exception {
     masterCipher.decryptBytes(new byte[]{});
   }
+
+  @Test
+  public void testDecryptBytesAtOffset() throws Exception {
+    byte[] encrypted = Base64.decode(masterCipher.encryptBody("hello"));
+    byte[] buffer    = new byte[encrypted.length + 10];
+
+    System.arraycopy(encrypted, 0, buffer, 5, encrypted.length);
+
+    assertEquals("hello", new String(masterCipher.decryptBytes(buffer, 5, encrypted.length)));
+  }
+
+  @Test(expected = InvalidMessageException.class)
+  public void testDecryptBytesWithBadMac() throws Exception {
+    byte[] encrypted = Base64.decode(masterCipher.encryptBody("hello"));
+    encrypted[encrypted.length - 1] ^= 0x01;
+
+    masterCipher.decryptBytes(encrypted);
+  }
+
+  @Test
+  public void testThreadLocalInstanceIsReused() throws Exception {
+    MasterCipher threadCipher = MasterCipher.getThreadLocalInstance(masterSecret);
+
+    assertSame(threadCipher, MasterCipher.getThreadLocalInstance(masterSecret));
+    assertEquals("hello", threadCipher.decryptBody(masterCipher.encryptBody("hello")));
+  }
+
+  @Test
+  public void testClearThreadLocalInstances() throws Exception {
+    MasterCipher threadCipher = MasterCipher.getThreadLocalInstance(masterSecret);
+
+    MasterCipher.clearThreadLocalInstances();
+
+    assertNotSame(threadCipher, MasterCipher.getThreadLocalInstance(masterSecret));
+  }
 }
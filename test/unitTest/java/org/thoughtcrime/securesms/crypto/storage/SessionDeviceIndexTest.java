@@ -0,0 +1,82 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SessionDeviceIndexTest extends BaseUnitTest {
+
+  private File directory;
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    directory = File.createTempFile("sessions", "");
+    assertTrue(directory.delete());
+    assertTrue(directory.mkdir());
+  }
+
+  @After
+  public void tearDown() {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+
+    directory.delete();
+  }
+
+  @Test public void testRebuildsFromDirectory() throws IOException {
+    writeFile("1");
+    writeFile("1.2");
+    writeFile("1.3");
+    writeFile("4.5");
+
+    SessionDeviceIndex index = new SessionDeviceIndex(new WriteBackFileCache(directory, 10));
+
+    assertEquals(new HashSet<>(Arrays.asList(2, 3)), new HashSet<>(index.getSubDevices(1)));
+    assertEquals(Collections.singletonList(5), index.getSubDevices(4));
+    assertTrue(index.getSubDevices(6).isEmpty());
+  }
+
+  @Test public void testLoadsSavedIndexWithoutScanning() throws IOException {
+    WriteBackFileCache cache = new WriteBackFileCache(directory, 10);
+    SessionDeviceIndex index = new SessionDeviceIndex(cache);
+
+    index.add(1, 2);
+    index.add(1, 3);
+    index.add(4, 5);
+    index.remove(1, 3);
+    cache.flush();
+
+    writeFile("6.7");
+
+    SessionDeviceIndex loaded = new SessionDeviceIndex(new WriteBackFileCache(directory, 10));
+
+    assertEquals(Collections.singletonList(2), loaded.getSubDevices(1));
+    assertEquals(Collections.singletonList(5), loaded.getSubDevices(4));
+    assertTrue(loaded.getSubDevices(6).isEmpty());
+
+    loaded.rebuild();
+
+    assertEquals(Collections.singletonList(7), loaded.getSubDevices(6));
+  }
+
+  private void writeFile(String name) throws IOException {
+    FileOutputStream out = new FileOutputStream(new File(directory, name));
+    out.write(new byte[] {1});
+    out.close();
+  }
+}
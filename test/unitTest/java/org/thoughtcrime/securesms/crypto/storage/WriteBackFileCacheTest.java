@@ -0,0 +1,86 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class WriteBackFileCacheTest extends BaseUnitTest {
+
+  private File directory;
+
+  @Before
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+
+    directory = File.createTempFile("sessions", "");
+    assertTrue(directory.delete());
+    assertTrue(directory.mkdir());
+  }
+
+  @After
+  public void tearDown() {
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+
+    directory.delete();
+  }
+
+  @Test public void testReadsExistingFiles() throws IOException {
+    writeFile("1", new byte[] {1, 2, 3});
+
+    WriteBackFileCache cache = new WriteBackFileCache(directory, 10);
+
+    assertArrayEquals(new byte[] {1, 2, 3}, cache.read("1"));
+    assertNull(cache.read("2"));
+  }
+
+  @Test public void testWritesAreVisibleBeforeFlush() throws IOException {
+    writeFile("1", new byte[] {1});
+
+    WriteBackFileCache cache = new WriteBackFileCache(directory, 10);
+
+    cache.write("2.3", new byte[] {2});
+    cache.delete("1");
+
+    assertNull(cache.read("1"));
+    assertArrayEquals(new byte[] {2}, cache.read("2.3"));
+    assertEquals(new HashSet<>(Arrays.asList("2.3")), cache.list());
+  }
+
+  @Test public void testFlushReplacesFiles() throws IOException {
+    writeFile("1", new byte[] {1});
+    writeFile("2.tmp", new byte[] {9});
+
+    WriteBackFileCache cache = new WriteBackFileCache(directory, 1);
+
+    cache.write("3", new byte[] {3});
+    cache.delete("1");
+    cache.flush();
+
+    assertFalse(new File(directory, "1").exists());
+    assertFalse(new File(directory, "2.tmp").exists());
+    assertEquals(new HashSet<>(Arrays.asList("3")), new HashSet<>(Arrays.asList(directory.list())));
+    assertArrayEquals(new byte[] {3}, new WriteBackFileCache(directory, 10).read("3"));
+  }
+
+  private void writeFile(String name, byte[] contents) throws IOException {
+    FileOutputStream out = new FileOutputStream(new File(directory, name));
+    out.write(contents);
+    out.close();
+  }
+}
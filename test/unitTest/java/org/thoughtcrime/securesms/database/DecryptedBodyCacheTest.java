@@ -0,0 +1,46 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DecryptedBodyCacheTest extends BaseUnitTest {
+
+  private static final String CIPHERTEXT       = "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAbWFjbWFjbWFjbWFjbWFjbWFjbWFj";
+  private static final String OTHER_CIPHERTEXT = "AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAb3RoZXJvdGhlcm90aGVyb3RoZXJv";
+
+  @Test public void testHitAndMiss() {
+    DecryptedBodyCache cache = new DecryptedBodyCache(1024 * 1024);
+
+    assertNull(cache.get(MmsSmsDatabase.SMS_TRANSPORT, 1, CIPHERTEXT));
+
+    cache.put(MmsSmsDatabase.SMS_TRANSPORT, 1, CIPHERTEXT, "hello");
+
+    assertEquals("hello", cache.get(MmsSmsDatabase.SMS_TRANSPORT, 1, CIPHERTEXT));
+    assertNull(cache.get(MmsSmsDatabase.MMS_TRANSPORT, 1, CIPHERTEXT));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(2, cache.getMissCount());
+  }
+
+  @Test public void testReusedIdWithDifferentCiphertextMisses() {
+    DecryptedBodyCache cache = new DecryptedBodyCache(1024 * 1024);
+
+    cache.put(MmsSmsDatabase.SMS_TRANSPORT, 1, CIPHERTEXT, "hello");
+
+    assertNull(cache.get(MmsSmsDatabase.SMS_TRANSPORT, 1, OTHER_CIPHERTEXT));
+  }
+
+  @Test public void testEvictsBySize() {
+    DecryptedBodyCache cache = new DecryptedBodyCache(16 * 1024);
+
+    for (int i=0;i<1000;i++) {
+      cache.put(MmsSmsDatabase.SMS_TRANSPORT, i, CIPHERTEXT, "a message body that takes up some space");
+    }
+
+    assertTrue(cache.getEvictionCount() > 0);
+    assertTrue(cache.getSizeInBytes() <= 16 * 1024);
+  }
+}
@@ -0,0 +1,31 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SearchDatabaseTest extends BaseUnitTest {
+
+  @Test public void testGetWords() {
+    assertEquals(new LinkedHashSet<>(Arrays.asList("hello", "world", "it", "42")),
+                 SearchDatabase.getWords("Hello, WORLD! it's a 42 hello"));
+  }
+
+  @Test public void testGetWordsEmpty() {
+    assertTrue(SearchDatabase.getWords("").isEmpty());
+    assertTrue(SearchDatabase.getWords("a . ! ?").isEmpty());
+  }
+
+  @Test public void testHashIsKeyed() {
+    SearchDatabase.TermHasher hasher = new SearchDatabase.TermHasher(masterSecret);
+
+    assertEquals(hasher.hash("hello"), new SearchDatabase.TermHasher(masterSecret).hash("hello"));
+    assertNotEquals(hasher.hash("hello"), hasher.hash("world"));
+  }
+}
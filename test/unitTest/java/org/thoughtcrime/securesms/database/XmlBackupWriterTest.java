@@ -0,0 +1,47 @@
+package org.thoughtcrime.securesms.database;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertTrue;
+
+public class XmlBackupWriterTest extends BaseUnitTest {
+
+  @Test public void testEscapesSmsBody() throws IOException {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    XmlBackup.Writer      writer = new XmlBackup.Writer(out, 1);
+
+    writer.writeItem(new XmlBackup.XmlBackupItem(0, "+14152222222", 1000, 1, null,
+                                                 "<a href='x'>\"&\"</a>\u0001", null, 1, -1));
+    writer.close();
+
+    String xml = out.toString("UTF-8");
+
+    assertTrue(xml.contains("body=\"&lt;a href=&apos;x&apos;&gt;&quot;&amp;&quot;&lt;/a&gt;&#1;\""));
+    assertTrue(xml.contains("subject=\"null\""));
+    assertTrue(xml.trim().endsWith("</smses>"));
+  }
+
+  @Test public void testWritesMmsParts() throws IOException {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    XmlBackup.Writer      writer = new XmlBackup.Writer(out, 1);
+
+    writer.startMms("+14152222222~+14153333333", 1000, 2, 1, 128, false);
+    writer.writeTextPart(0, "hello");
+    writer.writeDataPart(1, "image/png", "a.png", new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5}));
+    writer.endMms(Collections.<String>emptyList(), Arrays.asList("+14152222222", "+14153333333"));
+    writer.close();
+
+    String xml = out.toString("UTF-8");
+
+    assertTrue(xml.contains("<part seq=\"0\" ct=\"text/plain\" chset=\"106\" text=\"hello\" />"));
+    assertTrue(xml.contains("data=\"AQIDBAU=\""));
+    assertTrue(xml.contains("<addr address=\"+14153333333\" type=\"151\" chset=\"106\" />"));
+  }
+}
@@ -0,0 +1,49 @@
+package org.thoughtcrime.securesms.util;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.BaseUnitTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentLRUCacheTest extends BaseUnitTest {
+
+  @Test public void testEvictsLeastRecentlyRead() {
+    ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<>(10);
+
+    for (int i=0;i<10;i++) {
+      cache.put(i, String.valueOf(i));
+    }
+
+    cache.get(0);
+    cache.put(10, "10");
+
+    assertTrue(cache.size() <= 10);
+    assertEquals("0", cache.get(0));
+    assertEquals("10", cache.get(10));
+    assertNull(cache.get(1));
+  }
+
+  @Test public void testCountsHitsAndMisses() {
+    ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<>(10);
+
+    cache.put(1, "1");
+    cache.get(1);
+    cache.get(1);
+    cache.get(2);
+
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test public void testRemove() {
+    ConcurrentLRUCache<Integer, String> cache = new ConcurrentLRUCache<>(10);
+
+    cache.put(1, "1");
+    cache.remove(1);
+
+    assertNull(cache.get(1));
+    assertEquals(0, cache.size());
+  }
+}